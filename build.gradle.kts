@@ -13,6 +13,16 @@ repositories {
     jcenter()
 }
 
+// JMH microbenchmarks of the storage engine
+sourceSets {
+    create("jmh") {
+        compileClasspath += sourceSets["main"].output
+        runtimeClasspath += sourceSets["main"].output
+    }
+}
+
+configurations["jmhImplementation"].extendsFrom(configurations["implementation"])
+
 dependencies {
     // Logging
     compile("org.slf4j:slf4j-api:1.7.26")
@@ -27,6 +37,10 @@ dependencies {
     // JUnit Jupiter test framework
     testCompile("org.junit.jupiter:junit-jupiter-api:5.4.0")
     testRuntime("org.junit.jupiter:junit-jupiter-engine:5.4.0")
+
+    // JMH
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.21")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.21")
 }
 
 val run by tasks.getting(JavaExec::class) {
@@ -38,6 +52,15 @@ tasks {
         maxHeapSize = "128m"
         useJUnitPlatform()
     }
+
+    // Runs benchmarks, JMH options go to -Pjmh, e.g. -Pjmh="DaoBenchmark -p tables=16"
+    register<JavaExec>("jmh") {
+        group = "verification"
+        description = "Runs JMH benchmarks."
+        classpath = sourceSets["jmh"].runtimeClasspath
+        main = "org.openjdk.jmh.Main"
+        args = (project.findProperty("jmh") as String?)?.split(" ")?.filter { it.isNotEmpty() } ?: listOf()
+    }
 }
 
 application {
@@ -0,0 +1,102 @@
+package ru.mail.polis.brainlux;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+/**
+ * Data of the benchmarks, random but the same from run to run.
+ */
+final class BenchmarkData {
+    static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private BenchmarkData() {
+    }
+
+    @NotNull
+    static ByteBuffer[] keys(
+            final int count,
+            final int size,
+            final long seed) {
+        final Random random = new Random(seed);
+        final ByteBuffer[] keys = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = bytes(random, size);
+        }
+        return keys;
+    }
+
+    @NotNull
+    static ByteBuffer value(
+            final int size,
+            final long seed) {
+        return bytes(new Random(seed), size);
+    }
+
+    @NotNull
+    private static ByteBuffer bytes(
+            @NotNull final Random random,
+            final int size) {
+        final byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Settings keeping every flushed table as it is until an explicit compaction.
+     */
+    @NotNull
+    static Config config() {
+        return Config.builder(256L * 1024 * 1024)
+                .compactionStrategy(new FullCompactionStrategy(Integer.MAX_VALUE))
+                .durability(Durability.OS)
+                .build();
+    }
+
+    /**
+     * Writes the given number of tables, each holding its own share of the keys.
+     */
+    static void fill(
+            @NotNull final File dir,
+            @NotNull final ByteBuffer[] keys,
+            @NotNull final ByteBuffer value,
+            final int tables) throws IOException {
+        for (int table = 0; table < tables; table++) {
+            // Every close flushes the memTable into a table of its own
+            try (LSMDao dao = new LSMDao(dir, config())) {
+                for (int i = table; i < keys.length; i += tables) {
+                    dao.upsert(keys[i], value);
+                }
+            }
+        }
+    }
+
+    @NotNull
+    static File tempDir() throws IOException {
+        return Files.createTempDirectory("lsm-bench").toFile();
+    }
+
+    static void delete(@NotNull final File dir) throws IOException {
+        Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(final Path directory, final IOException exc) throws IOException {
+                Files.delete(directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,71 @@
+package ru.mail.polis.brainlux;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of {@link LSMDao#compact()} merging the given number of tables, which are written anew for every run.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+public class CompactionBenchmark {
+    private static final int ROWS = 1 << 17;
+
+    @Param({"16", "128"})
+    private int keySize;
+
+    @Param({"64", "1024"})
+    private int valueSize;
+
+    @Param({"4", "16"})
+    private int tables;
+
+    private ByteBuffer[] keys;
+    private ByteBuffer value;
+    private File dir;
+    private LSMDao dao;
+
+    @Setup(Level.Trial)
+    public void data() {
+        keys = BenchmarkData.keys(ROWS, keySize, 1L);
+        value = BenchmarkData.value(valueSize, 2L);
+    }
+
+    @Setup(Level.Iteration)
+    public void dao() throws IOException {
+        dir = BenchmarkData.tempDir();
+        BenchmarkData.fill(dir, keys, value, tables);
+        dao = new LSMDao(dir, BenchmarkData.config());
+    }
+
+    @TearDown(Level.Iteration)
+    public void delete() throws IOException {
+        dao.close();
+        BenchmarkData.delete(dir);
+    }
+
+    @Benchmark
+    public void compact() throws IOException {
+        dao.compact();
+    }
+}
@@ -0,0 +1,93 @@
+package ru.mail.polis.brainlux;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.mail.polis.Record;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads of {@link LSMDao} over the given number of tables, the keys are spread over all of them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DaoBenchmark {
+    private static final int ROWS = 1 << 17;
+
+    @Param({"16", "128"})
+    private int keySize;
+
+    @Param({"64", "1024"})
+    private int valueSize;
+
+    @Param({"1", "4", "16"})
+    private int tables;
+
+    private ByteBuffer[] keys;
+    private ByteBuffer[] absent;
+    private File dir;
+    private LSMDao dao;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void dao() throws IOException {
+        keys = BenchmarkData.keys(ROWS, keySize, 1L);
+        absent = BenchmarkData.keys(ROWS, keySize, 3L);
+        dir = BenchmarkData.tempDir();
+        BenchmarkData.fill(dir, keys, BenchmarkData.value(valueSize, 2L), tables);
+        dao = new LSMDao(dir, BenchmarkData.config());
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        dao.close();
+        BenchmarkData.delete(dir);
+    }
+
+    @Benchmark
+    public ByteBuffer getHit() throws IOException {
+        return dao.get(keys[next++ & (ROWS - 1)]);
+    }
+
+    @Benchmark
+    public boolean getMiss() throws IOException {
+        try {
+            dao.get(absent[next++ & (ROWS - 1)]);
+            return true;
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads 100 records from a random key on.
+     */
+    @Benchmark
+    public void scan(final Blackhole blackhole) throws IOException {
+        final Iterator<Record> records = dao.iterator(keys[next++ & (ROWS - 1)]);
+        for (int i = 0; i < 100 && records.hasNext(); i++) {
+            blackhole.consume(records.next());
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package ru.mail.polis.brainlux;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of writes to a memTable overwriting a fixed set of keys, so that the table stops growing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MemTableBenchmark {
+    private static final int KEYS = 1 << 16;
+
+    @Param({"16", "128"})
+    private int keySize;
+
+    @Param({"64", "1024"})
+    private int valueSize;
+
+    private ByteBuffer[] keys;
+    private ByteBuffer value;
+    private MemTable memTable;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void data() {
+        keys = BenchmarkData.keys(KEYS, keySize, 1L);
+        value = BenchmarkData.value(valueSize, 2L);
+    }
+
+    @Setup(Level.Iteration)
+    public void memTable() {
+        memTable = new MemTable();
+    }
+
+    @Benchmark
+    public void upsert() {
+        memTable.upsert(keys[next++ & (KEYS - 1)], value);
+    }
+}
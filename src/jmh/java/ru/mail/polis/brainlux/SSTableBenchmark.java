@@ -0,0 +1,107 @@
+package ru.mail.polis.brainlux;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads of a single table and writing of a memTable into a table, the flush.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SSTableBenchmark {
+    private static final int ROWS = 1 << 17;
+
+    @Param({"16", "128"})
+    private int keySize;
+
+    @Param({"64", "1024"})
+    private int valueSize;
+
+    @Param({"NONE", "LZ"})
+    private Compression compression;
+
+    private ByteBuffer[] keys;
+    private MemTable memTable;
+    private Config config;
+    private File dir;
+    private SSTable ssTable;
+    private int next;
+    private int written;
+
+    @Setup(Level.Trial)
+    public void table() throws IOException {
+        keys = BenchmarkData.keys(ROWS, keySize, 1L);
+        final ByteBuffer value = BenchmarkData.value(valueSize, 2L);
+        memTable = new MemTable();
+        for (final ByteBuffer key : keys) {
+            memTable.upsert(key, value);
+        }
+        config = Config.builder(Long.MAX_VALUE).compression(compression).forceTables(false).build();
+        dir = BenchmarkData.tempDir();
+        final File file = new File(dir, "SSTABLE1.db");
+        SSTable.write(memTable.iterator(BenchmarkData.EMPTY), file, config);
+        ssTable = new SSTable(file, 1, 0, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        BenchmarkData.delete(dir);
+    }
+
+    @Benchmark
+    public Value get() {
+        return ssTable.get(keys[next++ & (ROWS - 1)]);
+    }
+
+    @Benchmark
+    public Cell seek() {
+        return ssTable.iterator(keys[next++ & (ROWS - 1)]).next();
+    }
+
+    /**
+     * Reads 100 cells from a random key on.
+     */
+    @Benchmark
+    public void scan(final Blackhole blackhole) {
+        final Iterator<Cell> cells = ssTable.iterator(keys[next++ & (ROWS - 1)]);
+        for (int i = 0; i < 100 && cells.hasNext(); i++) {
+            blackhole.consume(cells.next());
+        }
+    }
+
+    /**
+     * Writes the whole memTable, the written table is deleted right away, so that the disk doesn't fill up.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void write() throws IOException {
+        final File file = new File(dir, "SSTABLE" + (written++ + 2) + ".db");
+        SSTable.write(memTable.iterator(BenchmarkData.EMPTY), file, config);
+        Files.delete(file.toPath());
+        Files.delete(SSTable.filterFile(file).toPath());
+    }
+}
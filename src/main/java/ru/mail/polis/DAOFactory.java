@@ -21,6 +21,7 @@ import org.jetbrains.annotations.NotNull;
 import java.io.File;
 import java.io.IOException;
 
+import ru.mail.polis.brainlux.Config;
 import ru.mail.polis.brainlux.LSMDao;
 
 /**
@@ -30,6 +31,8 @@ import ru.mail.polis.brainlux.LSMDao;
  */
 public final class DAOFactory {
     static final long MAX_HEAP = 128 * 1024 * 1024;
+    // 64 slabs of 1 MB for keys and values of memTables, regardless of the heap size
+    static final long OFF_HEAP_BUDGET = 64L * 1024 * 1024;
 
     private DAOFactory() {
         // Not instantiatable
@@ -55,6 +58,12 @@ public final class DAOFactory {
             throw new IllegalArgumentException("Path is not a directory: " + data);
         }
 
-        return new LSMDao(data, MAX_HEAP / 60);
+        // Keys and values live off heap and memTables are flushed by the slabs they fill, the threshold
+        // on heap only bounds their indexes
+        return new LSMDao(data, Config.builder(MAX_HEAP / 16)
+                .offHeapBudget(OFF_HEAP_BUDGET)
+                .blockCacheSize(MAX_HEAP / 16)
+                .rowCacheSize(MAX_HEAP / 32)
+                .build());
     }
 }
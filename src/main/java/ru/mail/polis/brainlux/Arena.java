@@ -0,0 +1,144 @@
+package ru.mail.polis.brainlux;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies keys and values of a single {@link MemTable} into direct memory slabs.
+ * Space is carved with a lock-free bump pointer and freed all at once when nobody reads the table anymore.
+ */
+final class Arena {
+    private final SlabAllocator allocator;
+    private final Queue<ByteBuffer> slabs = new ConcurrentLinkedQueue<>();
+    private final AtomicLong direct = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private volatile Slab current;
+
+    Arena(@NotNull final SlabAllocator allocator) {
+        this.allocator = allocator;
+    }
+
+    /**
+     * Copies remaining bytes of the buffer into the arena, falling back to heap if the budget is exhausted
+     * or the buffer is larger than a slab.
+     *
+     * @param src buffer to copy, its position is not changed
+     * @return copy of the bytes
+     */
+    @NotNull
+    ByteBuffer copy(@NotNull final ByteBuffer src) {
+        final int size = src.remaining();
+        ByteBuffer dst = null;
+        if (size > allocator.slabSize() / 2) {
+            // Large buffers get slabs of their own so that they don't waste the rest of the current one
+            if (size <= allocator.slabSize()) {
+                dst = whole(size);
+            }
+        } else {
+            dst = carve(size);
+        }
+        if (dst == null) {
+            dst = ByteBuffer.allocate(size);
+            spilled.addAndGet(size);
+        } else {
+            direct.addAndGet(size);
+        }
+        dst.duplicate().put(src.duplicate());
+        return dst;
+    }
+
+    /**
+     * Returns bytes taken by the copies including the ones overwritten since.
+     */
+    long sizeInBytes() {
+        return direct.get() + spilled.get();
+    }
+
+    /**
+     * Returns bytes of the copies made in the slabs including the ones overwritten since.
+     */
+    long offHeapBytes() {
+        return direct.get();
+    }
+
+    /**
+     * Returns bytes of the copies which spilled to heap.
+     */
+    long spilledBytes() {
+        return spilled.get();
+    }
+
+    /**
+     * Gives the slabs back to the allocator, the copies must not be read anymore.
+     */
+    void release() {
+        current = null;
+        ByteBuffer slab;
+        while ((slab = slabs.poll()) != null) {
+            allocator.release(slab);
+        }
+    }
+
+    @Nullable
+    private ByteBuffer whole(final int size) {
+        final ByteBuffer slab = allocate();
+        return slab == null ? null : slice(slab, 0, size);
+    }
+
+    @Nullable
+    private ByteBuffer carve(final int size) {
+        while (true) {
+            final Slab slab = current;
+            if (slab != null) {
+                final int offset = slab.next.getAndAdd(size);
+                if (offset <= slab.buffer.capacity() - size) {
+                    return slice(slab.buffer, offset, size);
+                }
+            }
+            synchronized (this) {
+                if (current == slab) {
+                    final ByteBuffer buffer = allocate();
+                    if (buffer == null) {
+                        return null;
+                    }
+                    current = new Slab(buffer);
+                }
+            }
+        }
+    }
+
+    @Nullable
+    private ByteBuffer allocate() {
+        final ByteBuffer slab = allocator.allocate();
+        if (slab != null) {
+            slabs.add(slab);
+        }
+        return slab;
+    }
+
+    @NotNull
+    private static ByteBuffer slice(
+            @NotNull final ByteBuffer slab,
+            final int offset,
+            final int size) {
+        final ByteBuffer result = slab.duplicate();
+        result.position(offset);
+        result.limit(offset + size);
+        return result.slice();
+    }
+
+    private static final class Slab {
+        private final ByteBuffer buffer;
+        private final AtomicInteger next = new AtomicInteger();
+
+        Slab(@NotNull final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package ru.mail.polis.brainlux;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Non-empty sorted run of cells, the unit of reading of {@link SSTable}.
+ */
+interface Block {
+    @Nullable
+    Value get(@NotNull ByteBuffer key);
+
+    /**
+     * Returns cells with keys not less than the given one.
+     */
+    @NotNull
+    Iterator<Cell> iterator(@NotNull ByteBuffer from);
+
+    @NotNull
+    ByteBuffer firstKey();
+
+    @NotNull
+    ByteBuffer lastKey();
+
+    /**
+     * Returns size of the decoded block data.
+     */
+    int sizeInBytes();
+
+    /**
+     * Reads value stored as {@code [long timestamp, negative for tombstone][int valueSize][value]},
+     * the value and its size are omitted for tombstones.
+     *
+     * @param cells  block data
+     * @param offset offset of the timestamp
+     * @return value viewing the block data once it is read
+     */
+    @NotNull
+    static Value valueAt(
+            @NotNull final ByteBuffer cells,
+            final int offset) {
+        final long timestamp = cells.getLong(offset);
+        if (timestamp < 0) {
+            return new Value(-timestamp, null);
+        }
+        return new Value(timestamp, cells, offset + Long.BYTES + Integer.BYTES, cells.getInt(offset + Long.BYTES));
+    }
+}
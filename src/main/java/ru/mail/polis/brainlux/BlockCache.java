@@ -0,0 +1,182 @@
+package ru.mail.polis.brainlux;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of decoded {@link SSTable} blocks shared by all the tables of {@link LSMDao}, bounded by their total size.
+ * Blocks are spread over independently locked stripes, each one a segmented LRU: a new block enters
+ * the probation segment and moves to the protected one on its second hit, so a long scan evicts
+ * only the blocks read once.
+ */
+final class BlockCache {
+    private static final int STRIPES = 16;
+    private static final double PROTECTED_SHARE = 0.8;
+    // Rough footprint of a cache entry besides the block data
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicInteger tableCounter = new AtomicInteger();
+    private final Metrics metrics;
+    private final LongAdder size = new LongAdder();
+
+    BlockCache(
+            final long capacity,
+            @NotNull final Metrics metrics) {
+        assert capacity > 0L;
+        this.metrics = metrics;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(Math.max(1L, capacity / STRIPES));
+        }
+    }
+
+    /**
+     * Returns a new id of a table to store its blocks under.
+     */
+    int newTable() {
+        return tableCounter.getAndIncrement();
+    }
+
+    private static long key(
+            final int table,
+            final int block) {
+        return (long) table << Integer.SIZE | block;
+    }
+
+    @NotNull
+    private Stripe stripe(final long key) {
+        return stripes[Long.hashCode(key * 0x9E3779B97F4A7C15L) & (STRIPES - 1)];
+    }
+
+    @Nullable
+    Block get(
+            final int table,
+            final int block) {
+        final long key = key(table, block);
+        final Block result = stripe(key).get(key);
+        metrics.increment(result == null ? Metrics.Counter.BLOCK_CACHE_MISSES : Metrics.Counter.BLOCK_CACHE_HITS);
+        return result;
+    }
+
+    void put(
+            final int table,
+            final int block,
+            @NotNull final Block value) {
+        final long key = key(table, block);
+        stripe(key).put(key, value, value.sizeInBytes() + ENTRY_OVERHEAD);
+    }
+
+    /**
+     * Drops blocks {@code [from, to)} of a table which is no longer read.
+     */
+    void invalidate(
+            final int table,
+            final int from,
+            final int to) {
+        for (int i = from; i < to; i++) {
+            final long key = key(table, i);
+            stripe(key).remove(key);
+        }
+    }
+
+    long sizeInBytes() {
+        return size.sum();
+    }
+
+    private static final class Entry {
+        private final Block block;
+        private final int size;
+
+        Entry(
+                @NotNull final Block block,
+                final int size) {
+            this.block = block;
+            this.size = size;
+        }
+    }
+
+    private final class Stripe {
+        private final long capacity;
+        private final long protectedCapacity;
+        // Both in the order of access, the least recent first
+        private final LinkedHashMap<Long, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<Long, Entry> protect = new LinkedHashMap<>(16, 0.75f, true);
+        private long probationSize;
+        private long protectedSize;
+
+        Stripe(final long capacity) {
+            this.capacity = capacity;
+            this.protectedCapacity = (long) (capacity * PROTECTED_SHARE);
+        }
+
+        @Nullable
+        synchronized Block get(final long key) {
+            final Entry hot = protect.get(key);
+            if (hot != null) {
+                return hot.block;
+            }
+            final Entry entry = probation.remove(key);
+            if (entry == null) {
+                return null;
+            }
+            probationSize -= entry.size;
+            protect.put(key, entry);
+            protectedSize += entry.size;
+            // Overflow of the protected segment gets one more chance in probation
+            final Iterator<Map.Entry<Long, Entry>> lru = protect.entrySet().iterator();
+            while (protectedSize > protectedCapacity) {
+                final Map.Entry<Long, Entry> demoted = lru.next();
+                lru.remove();
+                protectedSize -= demoted.getValue().size;
+                probation.put(demoted.getKey(), demoted.getValue());
+                probationSize += demoted.getValue().size;
+            }
+            return entry.block;
+        }
+
+        synchronized void put(
+                final long key,
+                @NotNull final Block block,
+                final int blockSize) {
+            if (blockSize > capacity || probation.containsKey(key) || protect.containsKey(key)) {
+                return;
+            }
+            probation.put(key, new Entry(block, blockSize));
+            probationSize += blockSize;
+            size.add(blockSize);
+            while (probationSize + protectedSize > capacity) {
+                final LinkedHashMap<Long, Entry> segment = probation.isEmpty() ? protect : probation;
+                final Iterator<Entry> lru = segment.values().iterator();
+                final Entry evicted = lru.next();
+                lru.remove();
+                if (segment == probation) {
+                    probationSize -= evicted.size;
+                } else {
+                    protectedSize -= evicted.size;
+                }
+                size.add(-evicted.size);
+                metrics.increment(Metrics.Counter.BLOCK_CACHE_EVICTIONS);
+            }
+        }
+
+        synchronized void remove(final long key) {
+            Entry entry = probation.remove(key);
+            if (entry != null) {
+                probationSize -= entry.size;
+            } else {
+                entry = protect.remove(key);
+                if (entry == null) {
+                    return;
+                }
+                protectedSize -= entry.size;
+            }
+            size.add(-entry.size);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package ru.mail.polis.brainlux;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Bloom filter over the keys of a single {@link SSTable}.
+ * Uses double hashing of one 64-bit key hash, so a probe does not allocate.
+ * The file is {@code [int MARKER][int hashes][int words][long bits]...}, filters of the first format
+ * have no marker and keep only 31 bits of every probe, so they are probed the way they were built.
+ */
+final class BloomFilter {
+    private static final double LN2 = Math.log(2);
+    // Negative, while the first format starts with the positive number of hashes
+    private static final int MARKER = 0xB100F002;
+    // Words read or written at a time, filters may be larger than a buffer can hold
+    private static final int CHUNK_WORDS = 64 * 1024;
+
+    private final long[] bits;
+    private final int hashes;
+    private final boolean wide;
+
+    private BloomFilter(
+            final long[] bits,
+            final int hashes,
+            final boolean wide) {
+        this.bits = bits;
+        this.hashes = hashes;
+        this.wide = wide;
+    }
+
+    /**
+     * Builds filter from precomputed key hashes.
+     *
+     * @param keyHashes hashes computed by {@link #hash(ByteBuffer)}
+     * @param count     number of hashes in the array
+     * @param fpp       desired false positive probability
+     * @return filter containing all the given keys
+     */
+    static BloomFilter create(
+            @NotNull final long[] keyHashes,
+            final int count,
+            final double fpp) {
+        assert 0.0 < fpp && fpp < 1.0;
+        final int n = Math.max(count, 1);
+        final long bitCount = Math.max(Long.SIZE, (long) (-n * Math.log(fpp) / (LN2 * LN2)));
+        final int words = (int) Math.min(Integer.MAX_VALUE - 8, (bitCount + Long.SIZE - 1) / Long.SIZE);
+        final int hashes = Math.max(1, (int) Math.round((double) words * Long.SIZE / n * LN2));
+        final BloomFilter filter = new BloomFilter(new long[words], hashes, true);
+        for (int i = 0; i < count; i++) {
+            filter.put(keyHashes[i]);
+        }
+        return filter;
+    }
+
+    /**
+     * Reads filter previously stored by {@link #write(File, boolean)}.
+     *
+     * @param file filter file
+     * @return loaded filter
+     * @throws IOException if an I/O error occurred
+     */
+    static BloomFilter read(@NotNull final File file) throws IOException {
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // Header of the first format is shorter, but a filter of it holds a word at least
+            final ByteBuffer header = ByteBuffer.allocate(Integer.BYTES * 3);
+            read(fc, header, 0L, file);
+            final boolean wide = header.getInt(0) < 0;
+            if (wide && header.getInt(0) != MARKER) {
+                throw new IOException("Unsupported bloom filter " + file);
+            }
+            final int hashes = header.getInt(wide ? Integer.BYTES : 0);
+            final int words = header.getInt(wide ? Integer.BYTES * 2 : Integer.BYTES);
+            final long offset = wide ? Integer.BYTES * 3 : Integer.BYTES * 2;
+            if (hashes <= 0 || words <= 0 || fc.size() - offset != (long) words * Long.BYTES) {
+                throw new IOException("Corrupted bloom filter " + file);
+            }
+            final long[] bits = new long[words];
+            final ByteBuffer chunk = ByteBuffer.allocate(Math.min(CHUNK_WORDS, words) * Long.BYTES);
+            for (int word = 0; word < words; ) {
+                final int count = Math.min(CHUNK_WORDS, words - word);
+                chunk.clear().limit(count * Long.BYTES);
+                read(fc, chunk, offset + (long) word * Long.BYTES, file);
+                chunk.asLongBuffer().get(bits, word, count);
+                word += count;
+            }
+            return new BloomFilter(bits, hashes, wide);
+        }
+    }
+
+    private static void read(
+            @NotNull final FileChannel fc,
+            @NotNull final ByteBuffer buffer,
+            final long position,
+            @NotNull final File file) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (fc.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Truncated bloom filter " + file);
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Stores filter to the given file replacing previous contents, always in the current format.
+     *
+     * @param file  filter file
+     * @param force whether to force the file to disk
+     * @throws IOException if an I/O error occurred
+     */
+    void write(
+            @NotNull final File file,
+            final boolean force) throws IOException {
+        assert wide;
+        final ByteBuffer buffer =
+                ByteBuffer.allocate(Math.max(Integer.BYTES * 3, Math.min(CHUNK_WORDS, bits.length) * Long.BYTES));
+        buffer.putInt(MARKER);
+        buffer.putInt(hashes);
+        buffer.putInt(bits.length);
+        buffer.flip();
+        try (FileChannel fc = FileChannel.open(
+                file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            write(fc, buffer);
+            for (int word = 0; word < bits.length; ) {
+                final int count = Math.min(CHUNK_WORDS, bits.length - word);
+                buffer.clear().limit(count * Long.BYTES);
+                buffer.asLongBuffer().put(bits, word, count);
+                write(fc, buffer);
+                word += count;
+            }
+            if (force) {
+                fc.force(false);
+            }
+        }
+    }
+
+    private static void write(
+            @NotNull final FileChannel fc,
+            @NotNull final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            fc.write(buffer);
+        }
+    }
+
+    boolean mightContain(@NotNull final ByteBuffer key) {
+        final long hash = hash(key);
+        final long bitCount = (long) bits.length * Long.SIZE;
+        for (int i = 1; i <= hashes; i++) {
+            final long bit = bit(hash, i, bitCount, wide);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void put(final long hash) {
+        final long bitCount = (long) bits.length * Long.SIZE;
+        for (int i = 1; i <= hashes; i++) {
+            final long bit = bit(hash, i, bitCount, wide);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Returns the i-th probe of double hashing. It combines the key hash with the hash rotated by half,
+     * so that probes cover all the bits of however large a filter, while filters of the first format
+     * combined the halves of the hash and kept only 31 bits of the result.
+     */
+    static long bit(
+            final long hash,
+            final int i,
+            final long bitCount,
+            final boolean wide) {
+        if (!wide) {
+            final int h1 = (int) hash;
+            final int h2 = (int) (hash >>> 32);
+            return ((h1 + i * h2) & Integer.MAX_VALUE) % bitCount;
+        }
+        return ((hash + i * Long.rotateLeft(hash, Integer.SIZE)) & Long.MAX_VALUE) % bitCount;
+    }
+
+    /**
+     * Hashes remaining bytes of the key without changing its position.
+     * Bytes are read big-endian whatever the order of the buffer, as keys are equal regardless of it.
+     */
+    static long hash(@NotNull final ByteBuffer key) {
+        final ByteBuffer bytes = key.order() == ByteOrder.BIG_ENDIAN
+                ? key
+                : key.duplicate().order(ByteOrder.BIG_ENDIAN);
+        final int start = bytes.position();
+        final int end = bytes.limit();
+        long h = 0x9E3779B97F4A7C15L ^ (end - start);
+        int i = start;
+        for (; i + Long.BYTES <= end; i += Long.BYTES) {
+            h = (h ^ mix(bytes.getLong(i))) * 0xC2B2AE3D27D4EB4FL;
+        }
+        long tail = 0;
+        for (; i < end; i++) {
+            tail = (tail << 8) | (bytes.get(i) & 0xFF);
+        }
+        h = (h ^ mix(tail)) * 0xC2B2AE3D27D4EB4FL;
+        return mix(h);
+    }
+
+    private static long mix(final long value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Growable array of key hashes collected while a table is being written.
+     */
+    static final class Hashes {
+        private long[] values = new long[1024];
+        private int size;
+
+        void add(@NotNull final ByteBuffer key) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = hash(key);
+        }
+
+        void addAll(@NotNull final Hashes other) {
+            if (size + other.size > values.length) {
+                values = Arrays.copyOf(values, Math.max(size + other.size, values.length * 2));
+            }
+            System.arraycopy(other.values, 0, values, size, other.size);
+            size += other.size;
+        }
+
+        BloomFilter toFilter(final double fpp) {
+            return create(values, size, fpp);
+        }
+    }
+}
@@ -1,22 +0,0 @@
-package ru.mail.polis.brainlux;
-
-import java.nio.ByteBuffer;
-
-final class Bytes {
-    private Bytes() {
-    }
-
-    static ByteBuffer fromInt(final int value) {
-        final ByteBuffer result = ByteBuffer.allocate(Integer.BYTES);
-        result.putInt(value);
-        result.rewind();
-        return result;
-    }
-
-    static ByteBuffer fromLong(final long value) {
-        final ByteBuffer result = ByteBuffer.allocate(Long.BYTES);
-        result.putLong(value);
-        result.rewind();
-        return result;
-    }
-}
@@ -1,12 +1,8 @@
 package ru.mail.polis.brainlux;
 
 import java.nio.ByteBuffer;
-import java.util.Comparator;
 
 public final class Cell {
-    static final Comparator<Cell> COMPARATOR =
-            Comparator.comparing(Cell::getKey).thenComparing(Cell::getValue);
-
     private final ByteBuffer key;
     private final Value value;
 
@@ -19,6 +15,13 @@ public final class Cell {
         return key.asReadOnlyBuffer();
     }
 
+    /**
+     * Returns the key itself for comparisons, it must not be changed or handed out.
+     */
+    ByteBuffer key() {
+        return key;
+    }
+
     public Value getValue() {
         return value;
     }
@@ -0,0 +1,64 @@
+package ru.mail.polis.brainlux;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compaction chosen by {@link CompactionStrategy}: tables to merge and where to put the result.
+ */
+public final class Compaction {
+    private final List<SSTable> inputs;
+    private final int outputLevel;
+    private final long maxFileSize;
+
+    /**
+     * Creates compaction writing the result into a single table.
+     *
+     * @param inputs      tables to merge
+     * @param outputLevel level of the resulting table
+     */
+    public Compaction(
+            @NotNull final Collection<SSTable> inputs,
+            final int outputLevel) {
+        this(inputs, outputLevel, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates compaction.
+     *
+     * @param inputs      tables to merge
+     * @param outputLevel level of the resulting tables
+     * @param maxFileSize approximate size limit of a resulting table, ignored at level 0
+     */
+    public Compaction(
+            @NotNull final Collection<SSTable> inputs,
+            final int outputLevel,
+            final long maxFileSize) {
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to compact");
+        }
+        if (outputLevel < 0 || maxFileSize <= 0) {
+            throw new IllegalArgumentException("Wrong output: level " + outputLevel + ", size " + maxFileSize);
+        }
+        this.inputs = Collections.unmodifiableList(new ArrayList<>(inputs));
+        this.outputLevel = outputLevel;
+        this.maxFileSize = maxFileSize;
+    }
+
+    @NotNull
+    List<SSTable> inputs() {
+        return inputs;
+    }
+
+    int outputLevel() {
+        return outputLevel;
+    }
+
+    long maxFileSize() {
+        return outputLevel == 0 ? Long.MAX_VALUE : maxFileSize;
+    }
+}
@@ -0,0 +1,247 @@
+package ru.mail.polis.brainlux;
+
+import com.google.common.collect.ForwardingIterator;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs compaction jobs of {@link LSMDao} on a dedicated thread pool off the write path.
+ * Jobs split into key ranges merge them on a fork-join pool shared by all the jobs.
+ */
+final class CompactionScheduler {
+    private final Logger log = LoggerFactory.getLogger(CompactionScheduler.class);
+    private final ExecutorService executor;
+    private final ForkJoinPool subcompactions;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicLong totalRows = new AtomicLong();
+    private final AtomicLong mergedRows = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * Compaction job choosing its tables when it starts.
+     */
+    @FunctionalInterface
+    interface Job {
+        void run(@NotNull Progress progress) throws IOException;
+    }
+
+    CompactionScheduler(
+            @NotNull final String name,
+            final int threads,
+            final int parallelism) {
+        assert threads > 0 && parallelism > 0;
+        final AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            final Thread thread = new Thread(r, "compaction-" + name + "-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        final AtomicInteger subCounter = new AtomicInteger();
+        this.subcompactions = new ForkJoinPool(
+                parallelism,
+                pool -> {
+                    final ForkJoinWorkerThread thread =
+                            ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName("subcompaction-" + name + "-" + subCounter.getAndIncrement());
+                    return thread;
+                },
+                null,
+                false);
+    }
+
+    /**
+     * Queues the job.
+     *
+     * @param job compaction job
+     * @return future completed when the job is done
+     */
+    @NotNull
+    Future<?> submit(@NotNull final Job job) {
+        if (closed) {
+            return CompletableFuture.completedFuture(null);
+        }
+        queued.incrementAndGet();
+        return executor.submit(() -> {
+            queued.decrementAndGet();
+            if (closed) {
+                return null;
+            }
+            running.incrementAndGet();
+            final Progress progress = new Progress();
+            try {
+                job.run(progress);
+            } finally {
+                progress.finish();
+                running.decrementAndGet();
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Cleanup of the result of a job part, once another part of the job has failed.
+     */
+    @FunctionalInterface
+    interface Discard<T> {
+        void discard(@NotNull T result) throws IOException;
+    }
+
+    /**
+     * Runs the parts of a job in parallel and waits for all of them, even if some fail.
+     *
+     * @param parts   parts of the job
+     * @param discard cleanup of the results of the parts succeeded when another one failed
+     * @return results of the parts in their order
+     * @throws IOException the first failure of the parts
+     */
+    @NotNull
+    <T> List<T> invokeAll(
+            @NotNull final Collection<Callable<T>> parts,
+            @NotNull final Discard<T> discard) throws IOException {
+        final List<Future<T>> futures;
+        try {
+            futures = subcompactions.invokeAll(parts);
+        } catch (RejectedExecutionException e) {
+            throw new IOException("Compactions are closed", e);
+        }
+        final List<T> results = new ArrayList<>(futures.size());
+        IOException failure = null;
+        for (final Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                // Can't happen, invokeAll has waited for every part
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for subcompactions");
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof IOException
+                            ? (IOException) e.getCause()
+                            : new IOException("Subcompaction failed", e.getCause());
+                }
+            }
+        }
+        if (failure == null) {
+            return results;
+        }
+        for (final T result : results) {
+            try {
+                discard.discard(result);
+            } catch (IOException e) {
+                failure.addSuppressed(e);
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Queues the job unless another one is already waiting to start, since that one will pick up the same tables.
+     *
+     * @param job compaction job
+     */
+    void trigger(@NotNull final Job job) {
+        if (queued.get() > 0) {
+            return;
+        }
+        submit(progress -> {
+            try {
+                job.run(progress);
+            } catch (IOException e) {
+                log.error("Compaction failed", e);
+            }
+        });
+    }
+
+    /**
+     * Drops queued jobs and waits for the running ones.
+     *
+     * @throws IOException if interrupted while waiting
+     */
+    void close() throws IOException {
+        closed = true;
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.warn("Still waiting for compactions to finish");
+            }
+            // Every job waits for its parts, so none is left
+            subcompactions.shutdown();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for compactions");
+        }
+    }
+
+    int queueDepth() {
+        return queued.get();
+    }
+
+    int running() {
+        return running.get();
+    }
+
+    /**
+     * Returns share of input rows already merged by the running jobs, 1 if there are none.
+     */
+    double progress() {
+        final long total = totalRows.get();
+        return total == 0 ? 1.0 : Math.min(1.0, (double) mergedRows.get() / total);
+    }
+
+    /**
+     * Progress of a single job in rows of its input tables.
+     */
+    final class Progress {
+        private long total;
+        // Updated by the parts of the job in parallel
+        private final AtomicLong merged = new AtomicLong();
+
+        void expect(final long rows) {
+            total += rows;
+            totalRows.addAndGet(rows);
+        }
+
+        @NotNull
+        Iterator<Cell> track(@NotNull final Iterator<Cell> input) {
+            return new ForwardingIterator<>() {
+                @Override
+                protected Iterator<Cell> delegate() {
+                    return input;
+                }
+
+                @Override
+                public Cell next() {
+                    merged.incrementAndGet();
+                    mergedRows.incrementAndGet();
+                    return super.next();
+                }
+            };
+        }
+
+        private void finish() {
+            totalRows.addAndGet(-total);
+            mergedRows.addAndGet(-merged.get());
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package ru.mail.polis.brainlux;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Chooses {@link SSTable}s to merge in background compaction.
+ * Level 0 holds flushed tables which may overlap, tables of every deeper level hold disjoint key ranges.
+ * Reads look at level 0 from the newest table to the oldest one and then at the levels in ascending order,
+ * so {@link LSMDao} rejects compactions which would break this order:
+ * <ul>
+ * <li>the result stays at level 0 only if it replaces a run of the newest level 0 tables</li>
+ * <li>the result goes deeper only if it takes the oldest level 0 tables, all the tables of the output level
+ * overlapping the inputs and all the tables of the levels between overlapping the inputs from above them</li>
+ * </ul>
+ */
+public interface CompactionStrategy {
+
+    /**
+     * Chooses the next background compaction.
+     *
+     * @param levels tables available for compaction by level,
+     *               level 0 from the newest table to the oldest one, deeper levels by key
+     * @return compaction to run or null if nothing needs to be merged
+     */
+    @Nullable
+    Compaction select(@NotNull List<List<SSTable>> levels);
+
+    /**
+     * Builds compaction of all the tables requested by {@link LSMDao#compact()}.
+     *
+     * @param levels all the tables by level, ordered as in {@link #select(List)}
+     * @return compaction of all the given tables
+     */
+    @NotNull
+    default Compaction major(@NotNull final List<List<SSTable>> levels) {
+        return new Compaction(all(levels), levels.size() - 1);
+    }
+
+    /**
+     * Collects tables of all the levels.
+     */
+    @NotNull
+    static Collection<SSTable> all(@NotNull final List<List<SSTable>> levels) {
+        final Collection<SSTable> result = new ArrayList<>();
+        levels.forEach(result::addAll);
+        return result;
+    }
+}
@@ -0,0 +1,131 @@
+package ru.mail.polis.brainlux;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codec of SSTable blocks. Every block records the codec it was written with,
+ * so tables with different codecs can be read by any settings.
+ */
+public enum Compression {
+    /**
+     * Blocks are stored as they are.
+     */
+    NONE(0) {
+        @Override
+        int compress(
+                @NotNull final byte[] src,
+                final int length,
+                @NotNull final byte[] dst) {
+            return -1;
+        }
+
+        @Override
+        void decompress(
+                @NotNull final byte[] src,
+                final int length,
+                @NotNull final byte[] dst) {
+            System.arraycopy(src, 0, dst, 0, length);
+        }
+    },
+    /**
+     * Fast LZ4 block codec, see {@link Lz4Block}.
+     */
+    LZ(1) {
+        @Override
+        int compress(
+                @NotNull final byte[] src,
+                final int length,
+                @NotNull final byte[] dst) {
+            return Lz4Block.compress(src, 0, length, dst, 0);
+        }
+
+        @Override
+        void decompress(
+                @NotNull final byte[] src,
+                final int length,
+                @NotNull final byte[] dst) {
+            Lz4Block.decompress(src, 0, length, dst, 0, dst.length);
+        }
+    },
+    /**
+     * Deflate of {@link java.util.zip}, slower than {@link #LZ} with better ratio.
+     */
+    DEFLATE(2) {
+        @Override
+        int compress(
+                @NotNull final byte[] src,
+                final int length,
+                @NotNull final byte[] dst) {
+            final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                deflater.setInput(src, 0, length);
+                deflater.finish();
+                final int size = deflater.deflate(dst);
+                return deflater.finished() ? size : -1;
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        void decompress(
+                @NotNull final byte[] src,
+                final int length,
+                @NotNull final byte[] dst) {
+            final Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(src, 0, length);
+                if (inflater.inflate(dst) != dst.length) {
+                    throw new IllegalStateException("Corrupted deflate block");
+                }
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("Corrupted deflate block", e);
+            } finally {
+                inflater.end();
+            }
+        }
+    };
+
+    private final int id;
+
+    Compression(final int id) {
+        this.id = id;
+    }
+
+    /**
+     * Compresses the input.
+     *
+     * @param dst buffer of at least {@link #maxCompressedLength(int)} bytes
+     * @return size of the compressed data or -1 if it doesn't fit into the buffer
+     */
+    abstract int compress(@NotNull byte[] src, int length, @NotNull byte[] dst);
+
+    /**
+     * Decompresses the input filling the whole output array.
+     *
+     * @throws IllegalStateException if the input is corrupted
+     */
+    abstract void decompress(@NotNull byte[] src, int length, @NotNull byte[] dst);
+
+    static int maxCompressedLength(final int length) {
+        return Lz4Block.maxCompressedLength(length);
+    }
+
+    int id() {
+        return id;
+    }
+
+    @NotNull
+    static Compression of(final int id) {
+        for (final Compression codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        throw new IllegalStateException("Unknown block codec " + id);
+    }
+}
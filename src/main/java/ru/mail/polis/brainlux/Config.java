@@ -0,0 +1,328 @@
+package ru.mail.polis.brainlux;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Settings of {@link LSMDao}.
+ */
+public final class Config {
+    private static final int TABLESCOUNT = 16;
+
+    private final long flushThreshold;
+    private final double bloomFpp;
+    private final CompactionStrategy compactionStrategy;
+    private final int compactionThreads;
+    private final int subcompactions;
+    private final long subcompactionSize;
+    private final long offHeapBudget;
+    private final Durability durability;
+    private final long syncInterval;
+    private final int blockSize;
+    private final Compression compression;
+    private final int restartInterval;
+    private final long blockCacheSize;
+    private final long rowCacheSize;
+    private final boolean forceTables;
+    private final boolean jmx;
+
+    private Config(@NotNull final Builder builder) {
+        this.flushThreshold = builder.flushThreshold;
+        this.bloomFpp = builder.bloomFpp;
+        this.compactionStrategy = builder.compactionStrategy;
+        this.compactionThreads = builder.compactionThreads;
+        this.subcompactions = builder.subcompactions;
+        this.subcompactionSize = builder.subcompactionSize;
+        this.offHeapBudget = builder.offHeapBudget;
+        this.durability = builder.durability;
+        this.syncInterval = builder.syncInterval;
+        this.blockSize = builder.blockSize;
+        this.compression = builder.compression;
+        this.restartInterval = builder.restartInterval;
+        this.blockCacheSize = builder.blockCacheSize;
+        this.rowCacheSize = builder.rowCacheSize;
+        this.forceTables = builder.forceTables;
+        this.jmx = builder.jmx;
+    }
+
+    /**
+     * Starts building settings with defaults.
+     *
+     * @param flushThreshold threshold memTable's size
+     * @return builder of settings
+     */
+    @NotNull
+    public static Builder builder(final long flushThreshold) {
+        return new Builder(flushThreshold);
+    }
+
+    long flushThreshold() {
+        return flushThreshold;
+    }
+
+    double bloomFpp() {
+        return bloomFpp;
+    }
+
+    @NotNull
+    CompactionStrategy compactionStrategy() {
+        return compactionStrategy;
+    }
+
+    int compactionThreads() {
+        return compactionThreads;
+    }
+
+    int subcompactions() {
+        return subcompactions;
+    }
+
+    long subcompactionSize() {
+        return subcompactionSize;
+    }
+
+    long offHeapBudget() {
+        return offHeapBudget;
+    }
+
+    @NotNull
+    Durability durability() {
+        return durability;
+    }
+
+    long syncInterval() {
+        return syncInterval;
+    }
+
+    int blockSize() {
+        return blockSize;
+    }
+
+    @NotNull
+    Compression compression() {
+        return compression;
+    }
+
+    int restartInterval() {
+        return restartInterval;
+    }
+
+    long blockCacheSize() {
+        return blockCacheSize;
+    }
+
+    long rowCacheSize() {
+        return rowCacheSize;
+    }
+
+    boolean forceTables() {
+        return forceTables;
+    }
+
+    boolean jmx() {
+        return jmx;
+    }
+
+    /**
+     * Builder of {@link Config}.
+     */
+    public static final class Builder {
+        private final long flushThreshold;
+        private double bloomFpp = 0.01;
+        private CompactionStrategy compactionStrategy = new FullCompactionStrategy(TABLESCOUNT);
+        private int compactionThreads = 2;
+        private int subcompactions = Runtime.getRuntime().availableProcessors();
+        private long subcompactionSize = 64L * 1024 * 1024;
+        private long offHeapBudget;
+        private Durability durability = Durability.PERIODIC;
+        private long syncInterval = 1000L;
+        private int blockSize = 4 * 1024;
+        private Compression compression = Compression.NONE;
+        private int restartInterval = 16;
+        private long blockCacheSize;
+        private long rowCacheSize;
+        private boolean forceTables = true;
+        private boolean jmx;
+
+        private Builder(final long flushThreshold) {
+            if (flushThreshold < 0L) {
+                throw new IllegalArgumentException("Negative flush threshold: " + flushThreshold);
+            }
+            this.flushThreshold = flushThreshold;
+        }
+
+        /**
+         * Sets false positive probability of SSTables' bloom filters.
+         */
+        @NotNull
+        public Builder bloomFpp(final double bloomFpp) {
+            if (bloomFpp <= 0.0 || bloomFpp >= 1.0) {
+                throw new IllegalArgumentException("Probability out of (0, 1): " + bloomFpp);
+            }
+            this.bloomFpp = bloomFpp;
+            return this;
+        }
+
+        /**
+         * Sets strategy choosing tables for background compaction.
+         */
+        @NotNull
+        public Builder compactionStrategy(@NotNull final CompactionStrategy compactionStrategy) {
+            this.compactionStrategy = compactionStrategy;
+            return this;
+        }
+
+        /**
+         * Sets number of threads running background compactions.
+         */
+        @NotNull
+        public Builder compactionThreads(final int compactionThreads) {
+            if (compactionThreads < 1) {
+                throw new IllegalArgumentException("Threads count should be positive: " + compactionThreads);
+            }
+            this.compactionThreads = compactionThreads;
+            return this;
+        }
+
+        /**
+         * Sets number of key ranges a compaction may merge in parallel, 1 merges everything on its own thread.
+         */
+        @NotNull
+        public Builder subcompactions(final int subcompactions) {
+            if (subcompactions < 1) {
+                throw new IllegalArgumentException("Subcompactions count should be positive: " + subcompactions);
+            }
+            this.subcompactions = subcompactions;
+            return this;
+        }
+
+        /**
+         * Sets size in bytes of input tables below which a key range isn't split further for parallel merge.
+         */
+        @NotNull
+        public Builder subcompactionSize(final long subcompactionSize) {
+            if (subcompactionSize <= 0L) {
+                throw new IllegalArgumentException("Subcompaction size should be positive: " + subcompactionSize);
+            }
+            this.subcompactionSize = subcompactionSize;
+            return this;
+        }
+
+        /**
+         * Moves keys and values of memTables off heap to direct memory limited by the given budget,
+         * 0 keeps them on heap. Such a memTable is flushed once its copies take a quarter of the budget,
+         * while the flush threshold only bounds its index and the copies spilled to heap, which writes
+         * fall back to once the budget is exhausted.
+         */
+        @NotNull
+        public Builder offHeapBudget(final long offHeapBudget) {
+            if (offHeapBudget < 0L) {
+                throw new IllegalArgumentException("Negative off-heap budget: " + offHeapBudget);
+            }
+            this.offHeapBudget = offHeapBudget;
+            return this;
+        }
+
+        /**
+         * Sets when writes logged to the write-ahead log are forced to disk.
+         */
+        @NotNull
+        public Builder durability(@NotNull final Durability durability) {
+            this.durability = durability;
+            return this;
+        }
+
+        /**
+         * Sets interval in milliseconds between forces of the write-ahead log for {@link Durability#PERIODIC}.
+         */
+        @NotNull
+        public Builder syncInterval(final long syncInterval) {
+            if (syncInterval <= 0L) {
+                throw new IllegalArgumentException("Sync interval should be positive: " + syncInterval);
+            }
+            this.syncInterval = syncInterval;
+            return this;
+        }
+
+        /**
+         * Sets size of SSTable blocks, the unit of reading from disk.
+         */
+        @NotNull
+        public Builder blockSize(final int blockSize) {
+            if (blockSize <= 0) {
+                throw new IllegalArgumentException("Block size should be positive: " + blockSize);
+            }
+            this.blockSize = blockSize;
+            return this;
+        }
+
+        /**
+         * Sets codec of SSTable blocks written from now on, tables written before keep their codecs.
+         */
+        @NotNull
+        public Builder compression(@NotNull final Compression compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * Sets number of cells between full keys inside SSTable blocks, the keys in between store
+         * only their difference from the previous one. Longer intervals save space but slow down search.
+         */
+        @NotNull
+        public Builder restartInterval(final int restartInterval) {
+            if (restartInterval <= 0) {
+                throw new IllegalArgumentException("Restart interval should be positive: " + restartInterval);
+            }
+            this.restartInterval = restartInterval;
+            return this;
+        }
+
+        /**
+         * Sets size in bytes of the cache of decoded SSTable blocks shared by all the tables, 0 disables it.
+         */
+        @NotNull
+        public Builder blockCacheSize(final long blockCacheSize) {
+            if (blockCacheSize < 0L) {
+                throw new IllegalArgumentException("Negative block cache size: " + blockCacheSize);
+            }
+            this.blockCacheSize = blockCacheSize;
+            return this;
+        }
+
+        /**
+         * Sets size in bytes of the cache of the latest values of frequently read keys, 0 disables it.
+         */
+        @NotNull
+        public Builder rowCacheSize(final long rowCacheSize) {
+            if (rowCacheSize < 0L) {
+                throw new IllegalArgumentException("Negative row cache size: " + rowCacheSize);
+            }
+            this.rowCacheSize = rowCacheSize;
+            return this;
+        }
+
+        /**
+         * Sets whether written SSTables are forced to disk before they replace memTables and compacted tables.
+         * Without it a crash of the machine may lose flushed writes, since their write-ahead log is already gone.
+         */
+        @NotNull
+        public Builder forceTables(final boolean forceTables) {
+            this.forceTables = forceTables;
+            return this;
+        }
+
+        /**
+         * Sets whether {@link Metrics} of the storage are published as an MBean of the platform MBean server.
+         */
+        @NotNull
+        public Builder jmx(final boolean jmx) {
+            this.jmx = jmx;
+            return this;
+        }
+
+        @NotNull
+        public Config build() {
+            return new Config(this);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package ru.mail.polis.brainlux;
+
+/**
+ * How soon writes logged by {@link WriteAheadLog} reach the disk.
+ */
+public enum Durability {
+    /**
+     * Every write waits for the log to be forced, concurrent writers share one force.
+     */
+    SYNC,
+    /**
+     * The log is forced in background every sync interval, a crash loses at most the last interval.
+     */
+    PERIODIC,
+    /**
+     * The log is never forced, writes survive a crash of the process but not of the OS.
+     */
+    OS
+}
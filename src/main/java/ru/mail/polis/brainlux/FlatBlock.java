@@ -0,0 +1,133 @@
+package ru.mail.polis.brainlux;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Block of SSTable versions before key prefix compression: sorted run of cells followed by their offsets
+ * and count. Cell is {@code [int keySize][key][value]}, see {@link Block#valueAt(ByteBuffer, int)}.
+ */
+final class FlatBlock implements Block {
+    private final ByteBuffer cells;
+    private final int rows;
+    private final int offsets;
+
+    FlatBlock(@NotNull final ByteBuffer buffer) {
+        this.rows = buffer.getInt(buffer.limit() - Integer.BYTES);
+        this.offsets = buffer.limit() - Integer.BYTES * (rows + 1);
+        this.cells = buffer;
+    }
+
+    private int offsetAt(final int i) {
+        assert 0 <= i && i < rows;
+        return cells.getInt(offsets + Integer.BYTES * i);
+    }
+
+    @NotNull
+    private ByteBuffer keyAt(final int i) {
+        final int offset = offsetAt(i);
+        final int keySize = cells.getInt(offset);
+        final ByteBuffer key = cells.duplicate();
+        key.position(offset + Integer.BYTES);
+        key.limit(key.position() + keySize);
+        return key.slice();
+    }
+
+    @NotNull
+    private Cell cellAt(final int i) {
+        int offset = offsetAt(i);
+
+        //Key
+        final int keySize = cells.getInt(offset);
+        offset += Integer.BYTES;
+        final ByteBuffer key = cells.duplicate();
+        key.position(offset);
+        key.limit(key.position() + keySize);
+        offset += keySize;
+
+        return new Cell(key.slice(), Block.valueAt(cells, offset));
+    }
+
+    /**
+     * Returns index of the key if it is present, otherwise (-(insertion point) - 1).
+     * Keys of the cells are compared in place without views of the block.
+     */
+    private int binarySearch(@NotNull final ByteBuffer key) {
+        int left = 0;
+        int right = rows - 1;
+        while (left <= right) {
+            final int mid = left + (right - left) / 2;
+            final int offset = offsetAt(mid);
+            final int cmp = Keys.compare(cells, offset + Integer.BYTES, cells.getInt(offset), key);
+            if (cmp < 0) {
+                left = mid + 1;
+            } else if (cmp > 0) {
+                right = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(left + 1);
+    }
+
+    /**
+     * Returns index of the first cell with key not less than the given one, rows if there is none.
+     */
+    private int position(@NotNull final ByteBuffer from) {
+        final int index = binarySearch(from);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key) {
+        final int index = binarySearch(key);
+        if (index < 0) {
+            return null;
+        }
+        final int offset = offsetAt(index);
+        return Block.valueAt(cells, offset + Integer.BYTES + cells.getInt(offset));
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
+        return new Iterator<>() {
+            private int next = position(from);
+
+            @Override
+            public boolean hasNext() {
+                return next < rows;
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return cellAt(next++);
+            }
+        };
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer firstKey() {
+        return keyAt(0);
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer lastKey() {
+        return keyAt(rows - 1);
+    }
+
+    @Override
+    public int sizeInBytes() {
+        return cells.limit();
+    }
+}
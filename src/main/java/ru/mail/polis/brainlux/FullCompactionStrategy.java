@@ -0,0 +1,34 @@
+package ru.mail.polis.brainlux;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Merges all the tables into one as soon as there are too many of them.
+ * Gives the best reads at the cost of rewriting the whole database every time.
+ */
+public final class FullCompactionStrategy implements CompactionStrategy {
+    private final int maxTables;
+
+    /**
+     * Creates full compaction strategy.
+     *
+     * @param maxTables number of tables tolerated without compaction
+     */
+    public FullCompactionStrategy(final int maxTables) {
+        if (maxTables < 1) {
+            throw new IllegalArgumentException("Tables limit should be positive: " + maxTables);
+        }
+        this.maxTables = maxTables;
+    }
+
+    @Nullable
+    @Override
+    public Compaction select(@NotNull final List<List<SSTable>> levels) {
+        final Collection<SSTable> tables = CompactionStrategy.all(levels);
+        return tables.size() > maxTables ? new Compaction(tables, levels.size() - 1) : null;
+    }
+}
@@ -0,0 +1,87 @@
+package ru.mail.polis.brainlux;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Comparison of keys stored in table data with search keys, made in place without views of the buffers.
+ */
+final class Keys {
+    // Flipping the sign bit of every byte turns the order of signed bytes into the unsigned order of longs
+    private static final long SIGNS = 0x8080808080808080L;
+
+    private Keys() {
+    }
+
+    /**
+     * Returns the first 8 bytes of the key as a long ordered like the keys themselves when compared unsigned,
+     * shorter keys are padded with the least byte. Keys with different prefixes compare as their prefixes,
+     * keys with equal prefixes have to be compared as a whole.
+     *
+     * @param buffer data holding the key
+     * @param offset offset of the key in the data
+     * @param size   size of the key
+     * @return normalized prefix of the key
+     */
+    static long prefix(
+            @NotNull final ByteBuffer buffer,
+            final int offset,
+            final int size) {
+        if (size >= Long.BYTES && buffer.order() == ByteOrder.BIG_ENDIAN) {
+            return buffer.getLong(offset) ^ SIGNS;
+        }
+        long result = 0L;
+        for (int i = 0; i < Long.BYTES; i++) {
+            result <<= Byte.SIZE;
+            if (i < size) {
+                result |= (buffer.get(offset + i) ^ 0x80) & 0xFF;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns normalized prefix of the remaining bytes of the key, see {@link #prefix(ByteBuffer, int, int)}.
+     */
+    static long prefix(@NotNull final ByteBuffer key) {
+        return prefix(key, key.position(), key.remaining());
+    }
+
+    /**
+     * Compares the stored key with the remaining bytes of the given one in the order of {@link ByteBuffer#compareTo}.
+     *
+     * @param buffer data holding the stored key
+     * @param offset offset of the stored key in the data
+     * @param size   size of the stored key
+     * @param key    key to compare with
+     * @return negative, zero or positive if the stored key is less, equal or greater
+     */
+    static int compare(
+            @NotNull final ByteBuffer buffer,
+            final int offset,
+            final int size,
+            @NotNull final ByteBuffer key) {
+        final int start = key.position();
+        final int keySize = key.remaining();
+        final int length = Math.min(size, keySize);
+        int i = 0;
+        if (buffer.order() == ByteOrder.BIG_ENDIAN && key.order() == ByteOrder.BIG_ENDIAN) {
+            for (; i + Long.BYTES <= length; i += Long.BYTES) {
+                final long a = buffer.getLong(offset + i);
+                final long b = key.getLong(start + i);
+                if (a != b) {
+                    return Long.compareUnsigned(a ^ SIGNS, b ^ SIGNS);
+                }
+            }
+        }
+        for (; i < length; i++) {
+            final int cmp = Byte.compare(buffer.get(offset + i), key.get(start + i));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return size - keySize;
+    }
+}
@@ -2,6 +2,8 @@ package ru.mail.polis.brainlux;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
 import java.nio.file.FileVisitOption;
 import java.nio.file.FileVisitResult;
@@ -12,11 +14,41 @@ import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Iterators;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,19 +56,67 @@ import ru.mail.polis.DAO;
 import ru.mail.polis.Iters;
 import ru.mail.polis.Record;
 
+/**
+ * Log-structured storage safe for concurrent use.
+ * Reads work on an immutable {@link TableSet} snapshot without locking, writers share the memTable
+ * and only wait for each other while it is being frozen for flush.
+ */
 public final class LSMDao implements DAO {
     private static final String SUFFIX = ".db";
     private static final String TEMP = ".tmp";
     private static final String PREFIX = "SSTABLE";
+    private static final String LEVEL = "-L";
+    private static final Pattern NAME =
+            Pattern.compile(PREFIX + "(\\d+)(?:" + LEVEL + "(\\d+))?" + Pattern.quote(SUFFIX));
+    private static final String WAL = "WAL";
+    private static final String WAL_SUFFIX = ".log";
+    private static final Pattern WAL_NAME = Pattern.compile(WAL + "(\\d+)" + Pattern.quote(WAL_SUFFIX));
     private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
-    private static final int TABLESCOUNT = 16;
+    private static final int FLUSHQUEUE = 1;
+    private static final int SLAB_SIZE = 1024 * 1024;
+    // An arena-backed memTable is flushed once it takes this share of the off-heap budget, which leaves
+    // room for the one being flushed and the ones still read through older snapshots
+    private static final int OFF_HEAP_MEMTABLES = 4;
+    // Keys sampled from every input table per key range of a compaction
+    private static final int SAMPLES_PER_RANGE = 8;
 
-    private final long flushThreshold;
+    private final Config config;
+    private final Metrics metrics = new Metrics();
     private final File base;
-    private final Collection<SSTable> ssTables;
     private final Logger log = LoggerFactory.getLogger(LSMDao.class);
-    private Table memTable;
+    private final Object lock = new Object();
+    // Shared by writers of the memTable, exclusive while it is being frozen
+    private final ReadWriteLock memTableLock = new ReentrantReadWriteLock();
+    private final ExecutorService flusher;
+    private final CompactionScheduler compactions;
+    @Nullable
+    private final SlabAllocator slabs;
+    @Nullable
+    private final BlockCache blockCache;
+    @Nullable
+    private final RowCache rowCache;
+    // Write-ahead log segment of every memTable not flushed yet
+    private final Map<MemTable, WriteAheadLog> segments = new ConcurrentHashMap<>();
+    private final AtomicLong segmentCounter = new AtomicLong();
+    @Nullable
+    private final ScheduledExecutorService syncer;
+    @Nullable
+    private final ObjectName mbean;
+    private final AtomicInteger tempCounter = new AtomicInteger();
+    private volatile TableSet tables;
+    // Guarded by lock
     private int generation;
+    // Guarded by lock, number of flushed tables with a reserved generation which are not published yet
+    private int installing;
+    // Guarded by lock, frozen memTables whose flush failed and the latest failure not reported to writers yet
+    private final List<MemTable> failedFlushes = new ArrayList<>();
+    @Nullable
+    private IOException flushFailure;
+    // Guarded by lock, inputs of the running compactions
+    private final Set<Integer> compacting = new HashSet<>();
+    // Guarded by lock, number of running compactions and whether one of them writes below level 0
+    private int running;
+    private boolean deepCompaction;
 
     /**
      * Creates persistence LSMDao.
@@ -49,120 +129,1230 @@ public final class LSMDao implements DAO {
     public LSMDao(
             final File base,
             final long flushThreshold) throws IOException {
+        this(base, Config.builder(flushThreshold).build());
+    }
+
+    /**
+     * Creates persistence LSMDao.
+     *
+     * @param base   folder with SSTables
+     * @param config settings of the storage
+     * @throws IOException if an I/O error occurred
+     */
+
+    public LSMDao(
+            final File base,
+            @NotNull final Config config) throws IOException {
         this.base = base;
-        assert flushThreshold >= 0L;
-        this.flushThreshold = flushThreshold;
-        memTable = new MemTable();
-        ssTables = new ArrayList<>();
+        this.config = config;
+        this.slabs = config.offHeapBudget() == 0
+                ? null
+                : new SlabAllocator(config.offHeapBudget(), (int) Math.min(SLAB_SIZE, config.offHeapBudget()));
+        this.blockCache = config.blockCacheSize() == 0 ? null : new BlockCache(config.blockCacheSize(), metrics);
+        this.rowCache = config.rowCacheSize() == 0 ? null : new RowCache(config.rowCacheSize(), metrics);
+        final NavigableMap<Integer, SSTable> ssTables = new TreeMap<>();
+        final NavigableMap<Long, File> logs = new TreeMap<>();
+        final Collection<File> filters = new ArrayList<>();
         Files.walkFileTree(base.toPath(), EnumSet.of(FileVisitOption.FOLLOW_LINKS), 1, new SimpleFileVisitor<>() {
             @Override
             public FileVisitResult visitFile(final Path path, final BasicFileAttributes attrs) throws IOException {
-                if (path.getFileName().toString().endsWith(SUFFIX)
-                        && path.getFileName().toString().startsWith(PREFIX)) {
-                    ssTables.add(new SSTable(path.toFile()));
-                    generation = Integer.max(generation, getGeneration(new StringBuffer(path.toString())
-                            .reverse().toString()));
+                final String name = path.getFileName().toString();
+                final Matcher matcher = NAME.matcher(name);
+                if (matcher.matches()) {
+                    final int tableGeneration = Integer.parseInt(matcher.group(1));
+                    final int level = matcher.group(2) == null ? 0 : Integer.parseInt(matcher.group(2));
+                    ssTables.put(tableGeneration, new SSTable(path.toFile(), tableGeneration, level, blockCache));
+                    generation = Integer.max(generation, tableGeneration);
+                    return FileVisitResult.CONTINUE;
+                }
+                final Matcher walMatcher = WAL_NAME.matcher(name);
+                if (walMatcher.matches()) {
+                    logs.put(Long.parseLong(walMatcher.group(1)), path.toFile());
+                } else if (name.endsWith(TEMP) && name.startsWith(PREFIX)) {
+                    // Leftover of an interrupted flush or compaction
+                    Files.delete(path);
+                    Files.deleteIfExists(SSTable.filterFile(path.toFile()).toPath());
+                } else if (name.endsWith(SSTable.FILTER_SUFFIX) && name.startsWith(PREFIX)) {
+                    filters.add(path.toFile());
                 }
                 return FileVisitResult.CONTINUE;
             }
         });
+        // Filters are moved in before their tables, so an interrupted install may leave one without a table
+        for (final File filter : filters) {
+            final String name = filter.getName();
+            final String table = name.substring(0, name.length() - SSTable.FILTER_SUFFIX.length()) + SUFFIX;
+            if (!new File(base, table).exists()) {
+                Files.deleteIfExists(filter.toPath());
+            }
+        }
         generation++;
+
+        // Writes which didn't make it to disk before the last shutdown go to a table of their own
+        final MemTable recovered = newMemTable();
+        for (final File file : logs.values()) {
+            WriteAheadLog.replay(file, recovered);
+        }
+        if (recovered.sizeInBytes() > 0) {
+            final SSTable ssTable = install(write(recovered.cells()), generation++, 0);
+            ssTables.put(ssTable.generation(), ssTable);
+        }
+        recovered.release();
+        for (final File file : logs.values()) {
+            Files.delete(file.toPath());
+        }
+        segmentCounter.set(logs.isEmpty() ? 0 : logs.lastKey() + 1);
+
+        final MemTable memTable = newMemTable();
+        segments.put(memTable, newSegment());
+        tables = new TableSet(memTable, ssTables);
+        flusher = Executors.newSingleThreadExecutor(r -> {
+            final Thread thread = new Thread(r, "flusher-" + base.getName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactions = new CompactionScheduler(base.getName(), config.compactionThreads(), config.subcompactions());
+        if (config.durability() == Durability.PERIODIC) {
+            syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "wal-sync-" + base.getName());
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncer.scheduleWithFixedDelay(
+                    this::syncSegments,
+                    config.syncInterval(),
+                    config.syncInterval(),
+                    TimeUnit.MILLISECONDS);
+        } else {
+            syncer = null;
+        }
+        registerGauges();
+        this.mbean = config.jmx() ? registerMBean() : null;
     }
 
-    private int getGeneration(@NotNull final String path) {
-        final StringBuilder digit = new StringBuilder();
-        for (final char c : path.toCharArray()) {
-            if (Character.isDigit(c)) {
-                digit.append(c);
-            } else {
-                if (digit.length() > 0) {
-                    return Integer.parseInt(digit.reverse().toString());
-                }
+    private void registerGauges() {
+        metrics.register(Metrics.Gauge.TABLES, () -> tables.ssTables.size());
+        metrics.register(Metrics.Gauge.DISK_BYTES, () -> {
+            long bytes = 0L;
+            for (final SSTable ssTable : tables.ssTables.values()) {
+                bytes += ssTable.sizeInBytes();
+            }
+            return bytes;
+        });
+        metrics.register(Metrics.Gauge.MEMTABLE_BYTES, () -> {
+            final TableSet snapshot = tables;
+            long bytes = snapshot.memTable.sizeInBytes();
+            for (final MemTable memTable : snapshot.flushing) {
+                bytes += memTable.sizeInBytes();
             }
+            return bytes;
+        });
+        metrics.register(Metrics.Gauge.FLUSH_QUEUE, () -> tables.flushing.size());
+        metrics.register(Metrics.Gauge.COMPACTION_QUEUE, compactions::queueDepth);
+        metrics.register(Metrics.Gauge.RUNNING_COMPACTIONS, compactions::running);
+        metrics.register(Metrics.Gauge.COMPACTION_PROGRESS, compactions::progress);
+        if (blockCache != null) {
+            metrics.register(Metrics.Gauge.BLOCK_CACHE_BYTES, blockCache::sizeInBytes);
+        }
+        if (rowCache != null) {
+            metrics.register(Metrics.Gauge.ROW_CACHE_BYTES, rowCache::sizeInBytes);
+        }
+        if (slabs != null) {
+            metrics.register(Metrics.Gauge.OFF_HEAP_BYTES, slabs::reserved);
+        }
+    }
+
+    /**
+     * Publishes metrics to the platform MBean server, keyed by the storage folder.
+     */
+    @Nullable
+    private ObjectName registerMBean() {
+        try {
+            final ObjectName name = new ObjectName(
+                    "ru.mail.polis.brainlux:type=LSMDao,path=" + ObjectName.quote(base.getAbsolutePath()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics.mbean(), name);
+            return name;
+        } catch (JMException e) {
+            log.warn("Can't publish metrics to JMX", e);
+            return null;
         }
-        return 0;
     }
 
     @NotNull
     @Override
     public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+        return range(from, null);
+    }
+
+    /**
+     * Provides iterator over {@link Record}s from the "from" key (inclusive) to the "to" key (exclusive),
+     * every table stops at the "to" key on its own instead of the merged records.
+     */
+    @NotNull
+    @Override
+    public Iterator<Record> range(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        if (to != null && from.compareTo(to) >= 0) {
+            return Iters.empty();
+        }
+        final long start = System.nanoTime();
+        return Iterators.transform(
+                timed(cellIterator(from, to), start),
+                cell -> Record.of(cell.getKey(), cell.getValue().getData()));
+    }
+
+    /**
+     * Records duration of the range scan once the iterator is exhausted.
+     */
+    @NotNull
+    private Iterator<Cell> timed(
+            @NotNull final Iterator<Cell> cells,
+            final long start) {
+        return new AbstractIterator<>() {
+            @Override
+            protected Cell computeNext() {
+                if (cells.hasNext()) {
+                    return cells.next();
+                }
+                metrics.record(Metrics.Timer.RANGE, start);
+                return endOfData();
+            }
+        };
+    }
+
+    /**
+     * Provides spliterator over {@link Record}s from the "from" key (inclusive) to the "to" key (exclusive)
+     * of the tables as they are now, which splits the range at index keys of the tables to merge its parts
+     * independently.
+     *
+     * @param from inclusive start of the range
+     * @param to   exclusive end of the range, null for unbounded
+     */
+    @NotNull
+    public Spliterator<Record> spliterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        // Off-heap memTables of the snapshot are held until every part of the range is read
+        return slabs == null
+                ? new RangeSpliterator(this, tables, from, to, null)
+                : new RangeSpliterator(this, acquire(), from, to, new AtomicInteger(1));
+    }
+
+    /**
+     * Provides stream of {@link Record}s from the "from" key (inclusive) to the "to" key (exclusive),
+     * a parallel one scans parts of the range on different threads.
+     *
+     * @param from     inclusive start of the range
+     * @param to       exclusive end of the range, null for unbounded
+     * @param parallel whether the stream is parallel
+     */
+    @NotNull
+    public Stream<Record> stream(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final boolean parallel) {
+        return StreamSupport.stream(spliterator(from, to), parallel);
+    }
+
+    /**
+     * Merges the range of the tables skipping removed keys.
+     *
+     * @param snapshot tables to read
+     * @param from     inclusive start of the range
+     * @param to       exclusive end of the range, null for unbounded
+     */
+    @NotNull
+    Iterator<Record> records(
+            @NotNull final TableSet snapshot,
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
         return Iterators.transform(
-                cellIterator(from),
+                cells(snapshot, from, to),
                 cell -> Record.of(cell.getKey(), cell.getValue().getData()));
     }
 
     @NotNull
-    private Iterator<Cell> cellIterator(@NotNull final ByteBuffer from) throws IOException {
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        final long start = System.nanoTime();
+        try {
+            final Value value = rowCache == null ? lookup(key) : cachedLookup(key, rowCache);
+            if (value == null) {
+                throw new NoSuchElementException("Not found");
+            }
+            if (value.isRemoved()) {
+                metrics.increment(Metrics.Counter.TOMBSTONES_SCANNED);
+                throw new NoSuchElementException("Not found");
+            }
+            return value.getData();
+        } finally {
+            metrics.record(Metrics.Timer.GET, start);
+        }
+    }
+
+    @Nullable
+    private Value cachedLookup(
+            @NotNull final ByteBuffer key,
+            @NotNull final RowCache cache) throws IOException {
+        final Value cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        // A write racing with the lookup makes the cache drop the value found
+        final long version = cache.version(key);
+        final Value value = lookup(key);
+        cache.put(key, value, version);
+        return value;
+    }
+
+    /**
+     * Looks the key up from the newest table to the oldest one stopping at the first value or tombstone.
+     * Level 0 tables may overlap, while every deeper level has at most one table which may hold the key.
+     */
+    @Nullable
+    private Value lookup(@NotNull final ByteBuffer key) throws IOException {
+        final TableSet snapshot = acquire();
+        try {
+            return lookup(snapshot, key);
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    @Nullable
+    private Value lookup(
+            @NotNull final TableSet snapshot,
+            @NotNull final ByteBuffer key) {
+        final Value fresh = snapshot.memTable.get(key);
+        if (fresh != null) {
+            return fresh;
+        }
+
+        for (final MemTable memTable : snapshot.flushing) {
+            final Value value = memTable.get(key);
+            if (value != null) {
+                return value;
+            }
+        }
+
+        for (final SSTable ssTable : snapshot.level0.descendingMap().values()) {
+            final Value value = probe(ssTable, key);
+            if (value != null) {
+                return value;
+            }
+        }
+
+        for (final NavigableMap<ByteBuffer, SSTable> level : snapshot.levels) {
+            final Map.Entry<ByteBuffer, SSTable> candidate = level.floorEntry(key);
+            if (candidate == null) {
+                continue;
+            }
+            final Value value = probe(candidate.getValue(), key);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    private Value probe(
+            @NotNull final SSTable ssTable,
+            @NotNull final ByteBuffer key) {
+        if (!ssTable.overlaps(key, key)) {
+            metrics.increment(Metrics.Counter.FENCE_SKIPS);
+            return null;
+        }
+        if (!ssTable.mightContain(key)) {
+            metrics.increment(Metrics.Counter.BLOOM_FILTER_SKIPS);
+            return null;
+        }
+        metrics.increment(Metrics.Counter.TABLES_PROBED);
+        final Value value = ssTable.get(key);
+        if (value == null && ssTable.hasFilter()) {
+            metrics.increment(Metrics.Counter.BLOOM_FILTER_FALSE_POSITIVES);
+        }
+        return value;
+    }
+
+    /**
+     * Takes the current tables retained, so that memTables of the snapshot aren't freed while read.
+     * A snapshot fails to be retained only if its memTables have been flushed and replaced in a newer one.
+     */
+    @NotNull
+    private TableSet acquire() {
+        while (true) {
+            final TableSet snapshot = this.tables;
+            if (snapshot.retain()) {
+                return snapshot;
+            }
+        }
+    }
+
+    @NotNull
+    private Iterator<Cell> cellIterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        final TableSet snapshot = acquire();
+        final Iterator<Cell> cells;
+        try {
+            cells = cells(snapshot, from, to);
+        } catch (RuntimeException e) {
+            snapshot.release();
+            throw e;
+        }
+        // Heap memTables are never freed, so only off-heap ones are held until the iterator is done
+        return slabs == null ? cells : new LeasedIterator<>(cells, snapshot);
+    }
+
+    /**
+     * Merges the range of the tables skipping removed keys.
+     *
+     * @param to exclusive end of the range, null for unbounded
+     */
+    @NotNull
+    private Iterator<Cell> cells(
+            @NotNull final TableSet snapshot,
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        return new MergeIterator(cellIterators(snapshot, from, to), true, metrics);
+    }
+
+    /**
+     * Returns iterators of the tables which may hold keys of the range, to be merged.
+     *
+     * @param to exclusive end of the range, null for unbounded
+     */
+    @NotNull
+    private Collection<Iterator<Cell>> cellIterators(
+            @NotNull final TableSet snapshot,
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
         final Collection<Iterator<Cell>> filesIterators = new ArrayList<>();
 
         //SSTables iterators
-        for (final SSTable ssTable : ssTables) {
-            filesIterators.add(ssTable.iterator(from));
+        for (final SSTable ssTable : snapshot.level0.values()) {
+            if (ssTable.intersects(from, to)) {
+                filesIterators.add(ssTable.iterator(from, to));
+            } else {
+                metrics.increment(Metrics.Counter.FENCE_SKIPS);
+            }
+        }
+
+        //Tables of a deeper level are disjoint, so they are read one after another
+        for (final NavigableMap<ByteBuffer, SSTable> level : snapshot.levels) {
+            final ByteBuffer first = level.floorKey(from);
+            NavigableMap<ByteBuffer, SSTable> candidates = first == null ? level : level.tailMap(first, true);
+            if (to != null) {
+                candidates = candidates.headMap(to, false);
+            }
+            final List<SSTable> ssTables = candidates.values().stream()
+                    .filter(ssTable -> ssTable.intersects(from, to))
+                    .collect(Collectors.toList());
+            metrics.add(Metrics.Counter.FENCE_SKIPS, level.size() - ssTables.size());
+            if (!ssTables.isEmpty()) {
+                filesIterators.add(Iterators.concat(Iterators.transform(
+                        ssTables.iterator(),
+                        ssTable -> ssTable.iterator(from, to))));
+            }
         }
 
-        //MemTable iterator
-        filesIterators.add(memTable.iterator(from));
-        final Iterator<Cell> cells = Iters.collapseEquals(Iterators.mergeSorted(filesIterators, Cell.COMPARATOR),
-                Cell::getKey);
-        final Iterator<Cell> alive =
-                Iterators.filter(
-                        cells,
-                        cell -> !cell.getValue().isRemoved());
-        return alive;
+        //MemTables iterators
+        for (final MemTable memTable : snapshot.flushing) {
+            filesIterators.add(memTable.iterator(from, to));
+        }
+        filesIterators.add(snapshot.memTable.iterator(from, to));
+        return filesIterators;
     }
 
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
-        memTable.upsert(key, value);
-        if (memTable.sizeInBytes() >= flushThreshold) {
-            flush(memTable.iterator(EMPTY));
+        final long start = System.nanoTime();
+        try {
+            put(key, value);
+        } finally {
+            metrics.record(Metrics.Timer.UPSERT, start);
         }
-        if (ssTables.size() > TABLESCOUNT) {
-            compact();
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            put(key, null);
+        } finally {
+            metrics.record(Metrics.Timer.REMOVE, start);
         }
     }
 
-    private String flush(@NotNull final Iterator iterator) throws IOException {
-        final File tmp = new File(base, PREFIX + generation + TEMP);
-        SSTable.write(iterator, tmp);
-        final File dest = new File(base, PREFIX + generation + SUFFIX);
-        Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
-        generation++;
-        memTable = new MemTable();
-        return dest.toPath().toString();
+    /**
+     * Logs the write and applies it to the memTable.
+     *
+     * @param value written value or null for removal
+     */
+    private void put(
+            @NotNull final ByteBuffer key,
+            @Nullable final ByteBuffer value) throws IOException {
+        final MemTable memTable;
+        final WriteAheadLog segment;
+        final long position;
+        memTableLock.readLock().lock();
+        try {
+            memTable = tables.memTable;
+            segment = segments.get(memTable);
+            position = segment.append(key, value);
+            if (value == null) {
+                memTable.remove(key);
+            } else {
+                memTable.upsert(key, value);
+            }
+        } finally {
+            memTableLock.readLock().unlock();
+        }
+        if (rowCache != null) {
+            rowCache.invalidate(key);
+        }
+        written(memTable, segment, position);
     }
 
-    @Override
-    public void remove(@NotNull final ByteBuffer key) throws IOException {
-        memTable.remove(key);
-        if (memTable.sizeInBytes() >= flushThreshold) {
-            flush(memTable.iterator(EMPTY));
+    /**
+     * Applies writes of the batch in its order. The batch is logged as a single record, so after a crash
+     * either all of its writes are recovered or none, and lands in a single memTable. Readers running
+     * concurrently may still see a part of it.
+     *
+     * @param batch writes to apply
+     * @throws IOException if an I/O error occurred
+     */
+    public void write(@NotNull final WriteBatch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        final long start = System.nanoTime();
+        try {
+            final MemTable memTable;
+            final WriteAheadLog segment;
+            final long position;
+            memTableLock.readLock().lock();
+            try {
+                memTable = tables.memTable;
+                segment = segments.get(memTable);
+                position = segment.append(batch);
+                final long timestamp = TimeUtils.getTimeNanos(batch.size());
+                for (int i = 0; i < batch.size(); i++) {
+                    final ByteBuffer value = batch.value(i);
+                    if (value == null) {
+                        memTable.remove(batch.key(i), timestamp + i);
+                    } else {
+                        memTable.upsert(batch.key(i), value, timestamp + i);
+                    }
+                }
+            } finally {
+                memTableLock.readLock().unlock();
+            }
+            if (rowCache != null) {
+                for (int i = 0; i < batch.size(); i++) {
+                    rowCache.invalidate(batch.key(i));
+                }
+            }
+            written(memTable, segment, position);
+        } finally {
+            metrics.record(Metrics.Timer.BATCH, start);
+        }
+    }
+
+    /**
+     * Makes the logged writes durable if required and flushes the memTable once it is full.
+     */
+    private void written(
+            @NotNull final MemTable memTable,
+            @NotNull final WriteAheadLog segment,
+            final long position) throws IOException {
+        if (config.durability() == Durability.SYNC) {
+            // Outside of the lock, so that a slow force doesn't hold up freezing of the memTable
+            segment.sync(position);
+        }
+        if (isFull(memTable)) {
+            scheduleFlush(memTable);
+        }
+    }
+
+    /**
+     * Checks the memTable against the flush threshold on heap and, if it has an arena, against its share
+     * of the off-heap budget, so that keys and values moved off heap don't count against the heap.
+     */
+    private boolean isFull(@NotNull final MemTable memTable) {
+        return memTable.heapBytes() >= config.flushThreshold()
+                || slabs != null && memTable.offHeapBytes() >= config.offHeapBudget() / OFF_HEAP_MEMTABLES;
+    }
+
+    /**
+     * Hands the memTable over to the flusher, waiting if too many tables are already queued.
+     *
+     * @param full memTable to flush, nothing happens if it has already been frozen by another writer
+     */
+    private void scheduleFlush(@NotNull final MemTable full) throws IOException {
+        final MemTable frozen;
+        synchronized (lock) {
+            while (tables.flushing.size() >= FLUSHQUEUE) {
+                if (flushFailure != null) {
+                    // The queue won't drain by itself, so hand the failed tables to the flusher once more
+                    final IOException failure = flushFailure;
+                    flushFailure = null;
+                    for (final MemTable failed : failedFlushes) {
+                        submitFlush(failed);
+                    }
+                    failedFlushes.clear();
+                    throw new IOException("Can't flush memTable", failure);
+                }
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for flush");
+                }
+            }
+            frozen = tables.memTable;
+            if (frozen != full || frozen.sizeInBytes() == 0) {
+                return;
+            }
+            final MemTable fresh = newMemTable();
+            segments.put(fresh, newSegment());
+            // No writer may still be adding to the frozen table once the flusher iterates it
+            memTableLock.writeLock().lock();
+            try {
+                tables = tables.freeze(fresh);
+            } finally {
+                memTableLock.writeLock().unlock();
+            }
+        }
+        submitFlush(frozen);
+    }
+
+    /**
+     * Flushes the memTable in background. On failure it stays readable from memory and writers waiting for
+     * the queue are woken up to retry the flush.
+     */
+    private void submitFlush(@NotNull final MemTable frozen) {
+        flusher.execute(() -> {
+            try {
+                flush(frozen);
+            } catch (IOException e) {
+                log.error("Can't flush memTable", e);
+                synchronized (lock) {
+                    failedFlushes.add(frozen);
+                    flushFailure = e;
+                    lock.notifyAll();
+                }
+            }
+        });
+    }
+
+    @NotNull
+    private MemTable newMemTable() {
+        return slabs == null ? new MemTable() : new MemTable(new Arena(slabs));
+    }
+
+    @NotNull
+    private WriteAheadLog newSegment() throws IOException {
+        return new WriteAheadLog(new File(base, WAL + segmentCounter.getAndIncrement() + WAL_SUFFIX));
+    }
+
+    /**
+     * Forces segments of the memTables not flushed yet.
+     */
+    private void syncSegments() {
+        for (final WriteAheadLog segment : segments.values()) {
+            try {
+                segment.sync();
+            } catch (IOException e) {
+                log.error("Can't sync write-ahead log " + segment.getFile(), e);
+            }
+        }
+    }
+
+    /**
+     * Flushes memTables whose flush failed in background, keeping the rest of them for later on failure.
+     */
+    private void retryFailedFlushes() throws IOException {
+        final List<MemTable> failed;
+        synchronized (lock) {
+            failed = new ArrayList<>(failedFlushes);
+            failedFlushes.clear();
+            flushFailure = null;
         }
-        if (ssTables.size() > TABLESCOUNT) {
-            compact();
+        for (int i = 0; i < failed.size(); i++) {
+            try {
+                flush(failed.get(i));
+            } catch (IOException e) {
+                synchronized (lock) {
+                    failedFlushes.addAll(failed.subList(i, failed.size()));
+                    lock.notifyAll();
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Writes frozen memTable to disk and replaces it with the written table.
+     */
+    private void flush(@NotNull final MemTable frozen) throws IOException {
+        final long start = System.nanoTime();
+        final File tmp = write(frozen.cells());
+        final int flushed;
+        synchronized (lock) {
+            installing++;
+            flushed = generation++;
+        }
+        final SSTable ssTable;
+        try {
+            ssTable = install(tmp, flushed, 0);
+        } catch (IOException | RuntimeException e) {
+            synchronized (lock) {
+                installing--;
+                lock.notifyAll();
+            }
+            throw e;
+        }
+        synchronized (lock) {
+            installing--;
+            tables = tables.flushed(frozen, ssTable);
+            lock.notifyAll();
+        }
+        metrics.increment(Metrics.Counter.FLUSHES);
+        metrics.add(Metrics.Counter.FLUSHED_BYTES, ssTable.sizeInBytes());
+        metrics.record(Metrics.Timer.FLUSH, start);
+        // Readers of older snapshots may still hold the table, the last of them frees it
+        frozen.release();
+        final WriteAheadLog segment = segments.remove(frozen);
+        if (segment != null) {
+            segment.delete();
+        }
+        maybeCompact();
+    }
+
+    /**
+     * Writes cells to a new temporary table file.
+     */
+    private File write(@NotNull final Iterator<Cell> iterator) throws IOException {
+        final File tmp = tempFile();
+        SSTable.write(iterator, tmp, config);
+        return tmp;
+    }
+
+    @NotNull
+    private File tempFile() {
+        return new File(base, PREFIX + "-" + tempCounter.getAndIncrement() + TEMP);
+    }
+
+    /**
+     * Moves temporary table to its final location, the filter goes first so that every table has one.
+     * Runs outside of the lock.
+     */
+    private SSTable install(
+            @NotNull final File tmp,
+            final int tableGeneration,
+            final int level) throws IOException {
+        final File dest = new File(base, PREFIX + tableGeneration + (level == 0 ? "" : LEVEL + level) + SUFFIX);
+        Files.move(
+                SSTable.filterFile(tmp).toPath(),
+                SSTable.filterFile(dest).toPath(),
+                StandardCopyOption.ATOMIC_MOVE);
+        Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return new SSTable(dest, tableGeneration, level, blockCache);
+    }
+
+    /**
+     * Waits until all memTables handed over to the flusher so far are written.
+     */
+    private void awaitFlushes() throws IOException {
+        try {
+            flusher.submit(() -> {
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for flush");
+        } catch (ExecutionException e) {
+            throw new IOException("Can't wait for flush", e);
         }
     }
 
     @Override
     public void close() throws IOException {
-        if (memTable.sizeInBytes() > 0) {
-            flush(memTable.iterator(EMPTY));
+        // Failed flushes hold the queue, so they go before the memTable is frozen
+        awaitFlushes();
+        retryFailedFlushes();
+        scheduleFlush(tables.memTable);
+        flusher.shutdown();
+        try {
+            while (!flusher.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.warn("Still waiting for flusher to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for flush");
+        }
+
+        // Retry flushes which failed in background
+        retryFailedFlushes();
+        if (syncer != null) {
+            syncer.shutdown();
+        }
+        // Segment of the fresh memTable is empty unless somebody kept writing during close
+        final WriteAheadLog segment = segments.remove(tables.memTable);
+        if (tables.memTable.sizeInBytes() == 0) {
+            segment.delete();
+        } else {
+            segment.sync();
+            segment.close();
+        }
+        compactions.close();
+        if (mbean != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbean);
+            } catch (JMException e) {
+                log.warn("Can't remove metrics from JMX", e);
+            }
         }
     }
 
+    /**
+     * Compacts all the data written so far, waiting for the compaction to finish.
+     */
     @Override
     public void compact() throws IOException {
-        final String path = flush(cellIterator(EMPTY));
-        ssTables.forEach(ssTable -> {
+        scheduleFlush(tables.memTable);
+        awaitFlushes();
+        try {
+            compactions.submit(progress -> compact(progress, true)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for compaction");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Compaction failed", e.getCause());
+        }
+    }
+
+    /**
+     * Schedules background compaction if the strategy has one which can run now.
+     */
+    private void maybeCompact() {
+        final boolean needed;
+        synchronized (lock) {
+            final Compaction compaction = config.compactionStrategy().select(levels(false));
+            needed = compaction != null && fits(compaction);
+        }
+        if (needed) {
+            compactions.trigger(progress -> compact(progress, false));
+        }
+    }
+
+    /**
+     * Lists tables by level for {@link CompactionStrategy}. Must be called under lock.
+     *
+     * @param all whether to include tables being compacted
+     */
+    @NotNull
+    private List<List<SSTable>> levels(final boolean all) {
+        final List<List<SSTable>> result = new ArrayList<>(tables.levels.size() + 1);
+        final Predicate<SSTable> available = ssTable -> all || !compacting.contains(ssTable.generation());
+        result.add(tables.level0.descendingMap().values().stream()
+                .filter(available)
+                .collect(Collectors.toList()));
+        for (final NavigableMap<ByteBuffer, SSTable> level : tables.levels) {
+            result.add(level.values().stream()
+                    .filter(available)
+                    .collect(Collectors.toList()));
+        }
+        return result;
+    }
+
+    /**
+     * Checks that the compaction keeps the read order of the tables and doesn't clash with the running ones.
+     * Must be called under lock.
+     */
+    private boolean fits(@NotNull final Compaction compaction) {
+        final Set<Integer> inputs = new HashSet<>();
+        int newestLevel0 = -1;
+        for (final SSTable ssTable : compaction.inputs()) {
+            if (tables.ssTables.get(ssTable.generation()) != ssTable
+                    || compacting.contains(ssTable.generation())
+                    || ssTable.level() > compaction.outputLevel()) {
+                return false;
+            }
+            inputs.add(ssTable.generation());
+            if (ssTable.level() == 0) {
+                newestLevel0 = Math.max(newestLevel0, ssTable.generation());
+            }
+        }
+
+        if (compaction.outputLevel() == 0) {
+            // The result replaces a run of the newest tables
+            final int oldest = Collections.min(inputs);
+            return inputs.containsAll(tables.level0.tailMap(oldest, true).keySet());
+        }
+
+        // The result goes below level 0, so it has to take the oldest level 0 tables
+        if (deepCompaction || !inputs.containsAll(tables.level0.headMap(newestLevel0, false).keySet())) {
+            return false;
+        }
+        // and every table down to the output level it may shadow or be shadowed by. A table above the output
+        // level shadows the inputs from its level and below rightly, it only must not hide older data under
+        // the inputs from above it, while the output level has to stay disjoint.
+        for (int level = 1; level <= Math.min(compaction.outputLevel(), tables.levels.size()); level++) {
+            final int above = level;
+            final Collection<SSTable> checked = level == compaction.outputLevel()
+                    ? compaction.inputs()
+                    : compaction.inputs().stream()
+                            .filter(ssTable -> ssTable.level() < above)
+                            .collect(Collectors.toList());
+            final ByteBuffer[] range = keyRange(checked);
+            if (range == null) {
+                continue;
+            }
+            for (final SSTable ssTable : tables.levels.get(level - 1).values()) {
+                if (!inputs.contains(ssTable.generation()) && ssTable.overlaps(range[0], range[1])) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks that no older data may hide under tombstones of the compaction. Must be called under lock.
+     */
+    private boolean isBottom(@NotNull final Compaction compaction) {
+        if (compaction.outputLevel() == 0) {
+            return compaction.inputs().size() == tables.ssTables.size();
+        }
+        final ByteBuffer[] range = keyRange(compaction.inputs());
+        if (range == null) {
+            return true;
+        }
+        for (int level = compaction.outputLevel() + 1; level <= tables.levels.size(); level++) {
+            for (final SSTable ssTable : tables.levels.get(level - 1).values()) {
+                if (ssTable.overlaps(range[0], range[1])) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the smallest and the largest keys of the tables or null if they are all empty.
+     */
+    @Nullable
+    private static ByteBuffer[] keyRange(@NotNull final Collection<SSTable> ssTables) {
+        ByteBuffer from = null;
+        ByteBuffer to = null;
+        for (final SSTable ssTable : ssTables) {
+            final ByteBuffer first = ssTable.firstKey();
+            final ByteBuffer last = ssTable.lastKey();
+            if (first == null) {
+                continue;
+            }
+            if (from == null || first.compareTo(from) < 0) {
+                from = first;
+            }
+            if (to == null || last.compareTo(to) > 0) {
+                to = last;
+            }
+        }
+        return from == null ? null : new ByteBuffer[]{from, to};
+    }
+
+    /**
+     * Merges tables chosen by the compaction strategy or all the tables for major compaction.
+     *
+     * @param progress progress of the job
+     * @param major    whether to wait for running compactions and merge every table
+     * @throws IOException if an I/O error occurred
+     */
+    private void compact(
+            @NotNull final CompactionScheduler.Progress progress,
+            final boolean major) throws IOException {
+        final Compaction compaction;
+        final boolean bottom;
+        final int compacted;
+        synchronized (lock) {
+            // A flush in the middle of its install holds an older generation than a level 0 result would get
+            while (major && running > 0 || installing > 0) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for compaction");
+                }
+            }
+            if (major) {
+                if (tables.ssTables.isEmpty()) {
+                    return;
+                }
+                compaction = config.compactionStrategy().major(levels(true));
+            } else {
+                compaction = config.compactionStrategy().select(levels(false));
+                if (compaction == null || !fits(compaction)) {
+                    return;
+                }
+            }
+            bottom = major || isBottom(compaction);
+            // Level 0 result takes the place of its inputs in the generation order right now
+            compacted = compaction.outputLevel() == 0 ? generation++ : -1;
+            compaction.inputs().forEach(ssTable -> compacting.add(ssTable.generation()));
+            deepCompaction |= compaction.outputLevel() > 0;
+            running++;
+        }
+
+        final long start = System.nanoTime();
+        try {
+            long inputBytes = 0;
+            for (final SSTable ssTable : compaction.inputs()) {
+                metrics.add(Metrics.Counter.COMPACTION_READ_BYTES, ssTable.sizeInBytes());
+                progress.expect(ssTable.rows());
+                inputBytes += ssTable.sizeInBytes();
+            }
+            final int ranges = (int) Math.min(config.subcompactions(), inputBytes / config.subcompactionSize());
+            final List<ByteBuffer> splits = ranges > 1 ? splits(compaction.inputs(), ranges) : List.of();
+            final List<File> written;
+            if (splits.isEmpty()) {
+                written = compactRange(compaction, bottom, progress, null, null);
+            } else {
+                metrics.add(Metrics.Counter.SUBCOMPACTIONS, splits.size() + 1);
+                written = compactRanges(compaction, bottom, progress, splits);
+            }
+
+            final int firstGeneration;
+            if (compacted < 0) {
+                synchronized (lock) {
+                    firstGeneration = generation;
+                    generation += written.size();
+                }
+            } else {
+                firstGeneration = compacted;
+            }
+            final Collection<SSTable> result = new ArrayList<>(written.size());
+            for (int i = 0; i < written.size(); i++) {
+                final SSTable output = install(written.get(i), firstGeneration + i, compaction.outputLevel());
+                metrics.add(Metrics.Counter.COMPACTION_WRITTEN_BYTES, output.sizeInBytes());
+                result.add(output);
+            }
+            synchronized (lock) {
+                tables = tables.compacted(compaction.inputs(), result);
+            }
+            metrics.increment(Metrics.Counter.COMPACTIONS);
+            metrics.record(Metrics.Timer.COMPACT, start);
+        } finally {
+            synchronized (lock) {
+                compaction.inputs().forEach(ssTable -> compacting.remove(ssTable.generation()));
+                if (compaction.outputLevel() > 0) {
+                    deepCompaction = false;
+                }
+                running--;
+                lock.notifyAll();
+            }
+        }
+
+        compaction.inputs().forEach(ssTable -> {
+            ssTable.evict();
             try {
+                // Filter goes first, a table left without it is still read correctly
+                Files.deleteIfExists(SSTable.filterFile(ssTable.getTable()).toPath());
                 Files.delete(ssTable.getTable().toPath());
             } catch (IOException e) {
                 log.error("Can't delete ssTable", e);
             }
         });
-        ssTables.clear();
-        ssTables.add(new SSTable(new File(path)));
-        memTable = new MemTable();
+        maybeCompact();
+    }
+
+    /**
+     * Splits the key space of the tables into about the given number of ranges of similar size,
+     * judging by keys sampled from the indexes of the tables.
+     *
+     * @return ascending keys starting every range but the first one, empty if the tables can't be split
+     */
+    @NotNull
+    private static List<ByteBuffer> splits(
+            @NotNull final Collection<SSTable> ssTables,
+            final int ranges) {
+        // Every sampled key stands for an equal share of its table
+        final NavigableMap<ByteBuffer, Double> weights = new TreeMap<>();
+        double total = 0.0;
+        for (final SSTable ssTable : ssTables) {
+            final List<ByteBuffer> samples = ssTable.sampleKeys(EMPTY, null, ranges * SAMPLES_PER_RANGE);
+            for (final ByteBuffer sample : samples) {
+                final double weight = (double) ssTable.sizeInBytes() / samples.size();
+                weights.merge(sample, weight, Double::sum);
+                total += weight;
+            }
+        }
+
+        final List<ByteBuffer> result = new ArrayList<>(ranges - 1);
+        double seen = 0.0;
+        for (final Map.Entry<ByteBuffer, Double> sample : weights.entrySet()) {
+            seen += sample.getValue();
+            if (result.size() < ranges - 1 && seen >= total * (result.size() + 1) / ranges) {
+                result.add(sample.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Merges every key range of the compaction on its own, all of them in parallel.
+     * Ranges of a compaction into level 0 are joined into a single table, since that level is cut by time.
+     *
+     * @param splits keys starting every range but the first one
+     * @return temporary files of the resulting tables
+     */
+    @NotNull
+    private List<File> compactRanges(
+            @NotNull final Compaction compaction,
+            final boolean bottom,
+            @NotNull final CompactionScheduler.Progress progress,
+            @NotNull final List<ByteBuffer> splits) throws IOException {
+        final List<ByteBuffer> bounds = new ArrayList<>(splits.size() + 2);
+        bounds.add(null);
+        bounds.addAll(splits);
+        bounds.add(null);
+
+        if (compaction.outputLevel() > 0) {
+            final List<Callable<List<File>>> parts = new ArrayList<>(bounds.size() - 1);
+            for (int i = 0; i + 1 < bounds.size(); i++) {
+                final ByteBuffer from = bounds.get(i);
+                final ByteBuffer to = bounds.get(i + 1);
+                parts.add(() -> compactRange(compaction, bottom, progress, from, to));
+            }
+            final List<File> result = new ArrayList<>();
+            compactions.invokeAll(parts, LSMDao::deleteTemps).forEach(result::addAll);
+            return result;
+        }
+
+        final List<Callable<SSTableWriter.Part>> parts = new ArrayList<>(bounds.size() - 1);
+        for (int i = 0; i + 1 < bounds.size(); i++) {
+            final ByteBuffer from = bounds.get(i);
+            final ByteBuffer to = bounds.get(i + 1);
+            parts.add(() -> {
+                final File tmp = tempFile();
+                try (SSTableWriter writer = new SSTableWriter(tmp, config)) {
+                    final Iterator<Cell> cells = rangeCells(compaction, bottom, progress, from, to);
+                    while (cells.hasNext()) {
+                        writer.add(cells.next());
+                    }
+                    return writer.finishPart();
+                } catch (IOException e) {
+                    Files.deleteIfExists(tmp.toPath());
+                    throw e;
+                }
+            });
+        }
+        final List<SSTableWriter.Part> written =
+                compactions.invokeAll(parts, part -> Files.deleteIfExists(part.getFile().toPath()));
+        final File tmp = tempFile();
+        try (SSTableWriter writer = new SSTableWriter(tmp, config)) {
+            for (final SSTableWriter.Part part : written) {
+                writer.append(part);
+            }
+            writer.finish();
+        } catch (IOException e) {
+            deleteTemps(List.of(tmp));
+            throw e;
+        } finally {
+            for (final SSTableWriter.Part part : written) {
+                Files.deleteIfExists(part.getFile().toPath());
+            }
+        }
+        return List.of(tmp);
+    }
+
+    /**
+     * Merges the key range of the compaction into tables of the output level.
+     *
+     * @param from inclusive start of the range, null for unbounded
+     * @param to   exclusive end of the range, null for unbounded
+     * @return temporary files of the resulting tables
+     */
+    @NotNull
+    private List<File> compactRange(
+            @NotNull final Compaction compaction,
+            final boolean bottom,
+            @NotNull final CompactionScheduler.Progress progress,
+            @Nullable final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        final Iterator<Cell> cells = rangeCells(compaction, bottom, progress, from, to);
+        final List<File> written = new ArrayList<>();
+        try {
+            if (compaction.outputLevel() == 0) {
+                written.add(write(cells));
+            }
+            while (cells.hasNext()) {
+                written.add(write(limit(cells, compaction.maxFileSize())));
+            }
+        } catch (IOException e) {
+            deleteTemps(written);
+            throw e;
+        }
+        return written;
+    }
+
+    @NotNull
+    private static Iterator<Cell> rangeCells(
+            @NotNull final Compaction compaction,
+            final boolean bottom,
+            @NotNull final CompactionScheduler.Progress progress,
+            @Nullable final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        final Collection<Iterator<Cell>> filesIterators = new ArrayList<>();
+        for (final SSTable ssTable : compaction.inputs()) {
+            if (ssTable.intersects(from == null ? EMPTY : from, to)) {
+                filesIterators.add(progress.track(ssTable.iterator(from == null ? EMPTY : from, to)));
+            }
+        }
+        return new MergeIterator(filesIterators, bottom, null);
+    }
+
+    private static void deleteTemps(@NotNull final Collection<File> written) throws IOException {
+        for (final File tmp : written) {
+            Files.deleteIfExists(tmp.toPath());
+            Files.deleteIfExists(SSTable.filterFile(tmp).toPath());
+        }
+    }
+
+    /**
+     * Cuts the stream of cells into tables of about the given size.
+     */
+    @NotNull
+    private static Iterator<Cell> limit(
+            @NotNull final Iterator<Cell> cells,
+            final long maxBytes) {
+        return new AbstractIterator<>() {
+            private long bytes;
+
+            @Override
+            protected Cell computeNext() {
+                if (bytes >= maxBytes || !cells.hasNext()) {
+                    return endOfData();
+                }
+                final Cell cell = cells.next();
+                final Value value = cell.getValue();
+                bytes += cell.getKey().remaining() + value.dataSize();
+                return cell;
+            }
+        };
+    }
+
+    /**
+     * Returns metrics of the storage.
+     */
+    @NotNull
+    public Metrics metrics() {
+        return metrics;
     }
 
 }
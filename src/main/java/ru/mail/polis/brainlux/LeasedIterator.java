@@ -0,0 +1,34 @@
+package ru.mail.polis.brainlux;
+
+import com.google.common.collect.AbstractIterator;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.ref.Cleaner;
+import java.util.Iterator;
+
+/**
+ * Iterator over a retained {@link TableSet}, which releases it once exhausted
+ * or, if the reader abandons the iterator, once the iterator is garbage collected.
+ */
+final class LeasedIterator<T> extends AbstractIterator<T> {
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final Iterator<T> delegate;
+    private final Cleaner.Cleanable lease;
+
+    LeasedIterator(
+            @NotNull final Iterator<T> delegate,
+            @NotNull final TableSet tables) {
+        this.delegate = delegate;
+        this.lease = CLEANER.register(this, tables::release);
+    }
+
+    @Override
+    protected T computeNext() {
+        if (delegate.hasNext()) {
+            return delegate.next();
+        }
+        lease.clean();
+        return endOfData();
+    }
+}
@@ -0,0 +1,132 @@
+package ru.mail.polis.brainlux;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Leveled compaction: level 0 is merged into level 1 once it has enough tables,
+ * and a level exceeding its size budget pushes one of its tables into the next level.
+ * Only the overlapping tables of the next level are rewritten, so every job is bounded
+ * and a read touches at most one table per level besides level 0.
+ */
+public final class LeveledCompactionStrategy implements CompactionStrategy {
+    private final int level0Tables;
+    private final long targetFileSize;
+    private final long level1Size;
+    private final int sizeRatio;
+
+    /**
+     * Creates leveled strategy with the common defaults.
+     */
+    public LeveledCompactionStrategy() {
+        this(4, 2L * 1024 * 1024, 10L * 1024 * 1024, 10);
+    }
+
+    /**
+     * Creates leveled strategy.
+     *
+     * @param level0Tables   number of level 0 tables triggering their merge into level 1
+     * @param targetFileSize size of the tables written to the levels below 0
+     * @param level1Size     size budget of level 1
+     * @param sizeRatio      growth of the size budget from a level to the next one
+     */
+    public LeveledCompactionStrategy(
+            final int level0Tables,
+            final long targetFileSize,
+            final long level1Size,
+            final int sizeRatio) {
+        if (level0Tables < 1 || targetFileSize <= 0 || level1Size <= 0 || sizeRatio < 2) {
+            throw new IllegalArgumentException("Wrong leveled compaction settings");
+        }
+        this.level0Tables = level0Tables;
+        this.targetFileSize = targetFileSize;
+        this.level1Size = level1Size;
+        this.sizeRatio = sizeRatio;
+    }
+
+    @Nullable
+    @Override
+    public Compaction select(@NotNull final List<List<SSTable>> levels) {
+        final List<SSTable> level0 = levels.get(0);
+        if (level0.size() >= level0Tables) {
+            final Collection<SSTable> inputs = new ArrayList<>(level0);
+            if (levels.size() > 1) {
+                inputs.addAll(overlapping(level0, levels.get(1)));
+            }
+            return new Compaction(inputs, 1, targetFileSize);
+        }
+
+        long budget = level1Size;
+        for (int level = 1; level < levels.size(); level++) {
+            final List<SSTable> tables = levels.get(level);
+            if (size(tables) > budget) {
+                // The oldest table has been waiting the longest
+                SSTable oldest = null;
+                for (final SSTable table : tables) {
+                    if (oldest == null || table.generation() < oldest.generation()) {
+                        oldest = table;
+                    }
+                }
+                final Collection<SSTable> inputs = new ArrayList<>();
+                inputs.add(oldest);
+                if (level + 1 < levels.size()) {
+                    inputs.addAll(overlapping(List.of(oldest), levels.get(level + 1)));
+                }
+                return new Compaction(inputs, level + 1, targetFileSize);
+            }
+            budget *= sizeRatio;
+        }
+        return null;
+    }
+
+    @NotNull
+    @Override
+    public Compaction major(@NotNull final List<List<SSTable>> levels) {
+        return new Compaction(CompactionStrategy.all(levels), Math.max(1, levels.size() - 1), targetFileSize);
+    }
+
+    private static long size(@NotNull final Collection<SSTable> tables) {
+        long result = 0;
+        for (final SSTable table : tables) {
+            result += table.sizeInBytes();
+        }
+        return result;
+    }
+
+    @NotNull
+    private static Collection<SSTable> overlapping(
+            @NotNull final Collection<SSTable> tables,
+            @NotNull final Collection<SSTable> next) {
+        ByteBuffer from = null;
+        ByteBuffer to = null;
+        for (final SSTable table : tables) {
+            final ByteBuffer first = table.firstKey();
+            final ByteBuffer last = table.lastKey();
+            if (first == null) {
+                continue;
+            }
+            if (from == null || first.compareTo(from) < 0) {
+                from = first;
+            }
+            if (to == null || last.compareTo(to) > 0) {
+                to = last;
+            }
+        }
+
+        final Collection<SSTable> result = new ArrayList<>();
+        if (from == null) {
+            return result;
+        }
+        for (final SSTable table : next) {
+            if (table.overlaps(from, to)) {
+                result.add(table);
+            }
+        }
+        return result;
+    }
+}
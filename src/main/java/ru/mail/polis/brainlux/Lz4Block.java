@@ -0,0 +1,201 @@
+package ru.mail.polis.brainlux;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Pure Java codec of the LZ4 block format.
+ * A sequence is {@code [token][literals length][literals][short offset][match length]}, the token keeps 4 bits
+ * of both lengths and longer lengths continue in bytes of 255. Compression is greedy with a single hash probe,
+ * trading ratio for speed.
+ */
+final class Lz4Block {
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_LOG = 12;
+    private static final int RUN_MASK = 0xF;
+
+    private Lz4Block() {
+    }
+
+    /**
+     * Returns size of the buffer enough to compress input of the given length.
+     */
+    static int maxCompressedLength(final int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compresses the input.
+     *
+     * @param src    input array
+     * @param srcOff start of the input
+     * @param srcLen length of the input
+     * @param dst    output array of at least {@link #maxCompressedLength(int)} bytes past the offset
+     * @param dstOff start of the output
+     * @return length of the compressed data
+     */
+    static int compress(
+            @NotNull final byte[] src,
+            final int srcOff,
+            final int srcLen,
+            @NotNull final byte[] dst,
+            final int dstOff) {
+        final int end = srcOff + srcLen;
+        final int matchLimit = end - LAST_LITERALS;
+        final int mfLimit = end - MF_LIMIT;
+        // Positions are stored plus one, so zero stands for an empty slot
+        final int[] table = new int[1 << HASH_LOG];
+        int anchor = srcOff;
+        int ip = srcOff;
+        int op = dstOff;
+        while (ip < mfLimit) {
+            final int sequence = readInt(src, ip);
+            final int hash = (sequence * -1640531535) >>> (Integer.SIZE - HASH_LOG);
+            final int ref = table[hash] - 1;
+            table[hash] = ip + 1;
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                ip++;
+                continue;
+            }
+
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < matchLimit && src[ref + matchLength] == src[ip + matchLength]) {
+                matchLength++;
+            }
+            op = writeSequence(src, anchor, ip - anchor, dst, op, ip - ref, matchLength);
+            ip += matchLength;
+            anchor = ip;
+        }
+        return writeSequence(src, anchor, end - anchor, dst, op, 0, 0) - dstOff;
+    }
+
+    /**
+     * Decompresses the input.
+     *
+     * @param src    compressed array
+     * @param srcOff start of the compressed data
+     * @param srcLen length of the compressed data
+     * @param dst    output array
+     * @param dstOff start of the output
+     * @param dstLen exact length of the decompressed data
+     * @throws IllegalStateException if the input is corrupted
+     */
+    static void decompress(
+            @NotNull final byte[] src,
+            final int srcOff,
+            final int srcLen,
+            @NotNull final byte[] dst,
+            final int dstOff,
+            final int dstLen) {
+        final int end = srcOff + srcLen;
+        final int dstEnd = dstOff + dstLen;
+        int ip = srcOff;
+        int op = dstOff;
+        try {
+            while (true) {
+                final int token = src[ip++] & 0xFF;
+
+                // Literals
+                int literals = token >>> 4;
+                if (literals == RUN_MASK) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 0xFF);
+                }
+                if (literals > dstEnd - op) {
+                    throw new IllegalStateException("Corrupted LZ4 block");
+                }
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip >= end) {
+                    break;
+                }
+
+                // Match
+                final int offset = (src[ip++] & 0xFF) | (src[ip++] & 0xFF) << 8;
+                int matchLength = token & RUN_MASK;
+                if (matchLength == RUN_MASK) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 0xFF);
+                }
+                matchLength += MIN_MATCH;
+                int ref = op - offset;
+                if (offset == 0 || ref < dstOff || matchLength > dstEnd - op) {
+                    throw new IllegalStateException("Corrupted LZ4 block");
+                }
+                // Byte by byte, since the match may overlap its own output
+                for (int i = 0; i < matchLength; i++) {
+                    dst[op++] = dst[ref++];
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalStateException("Corrupted LZ4 block", e);
+        }
+        if (op != dstEnd) {
+            throw new IllegalStateException("Corrupted LZ4 block");
+        }
+    }
+
+    private static int writeSequence(
+            @NotNull final byte[] src,
+            final int literalsOff,
+            final int literals,
+            @NotNull final byte[] dst,
+            final int dstOff,
+            final int offset,
+            final int matchLength) {
+        int op = dstOff;
+        final int token = op++;
+        if (literals >= RUN_MASK) {
+            dst[token] = (byte) (RUN_MASK << 4);
+            op = writeLength(literals - RUN_MASK, dst, op);
+        } else {
+            dst[token] = (byte) (literals << 4);
+        }
+        System.arraycopy(src, literalsOff, dst, op, literals);
+        op += literals;
+        if (matchLength == 0) {
+            // The last sequence has literals only
+            return op;
+        }
+
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+        final int length = matchLength - MIN_MATCH;
+        if (length >= RUN_MASK) {
+            dst[token] |= RUN_MASK;
+            op = writeLength(length - RUN_MASK, dst, op);
+        } else {
+            dst[token] |= length;
+        }
+        return op;
+    }
+
+    private static int writeLength(
+            final int length,
+            @NotNull final byte[] dst,
+            final int dstOff) {
+        int op = dstOff;
+        int rest = length;
+        while (rest >= 0xFF) {
+            dst[op++] = (byte) 0xFF;
+            rest -= 0xFF;
+        }
+        dst[op++] = (byte) rest;
+        return op;
+    }
+
+    private static int readInt(
+            @NotNull final byte[] src,
+            final int i) {
+        return (src[i] & 0xFF) | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF) << 16 | (src[i + 3] & 0xFF) << 24;
+    }
+}
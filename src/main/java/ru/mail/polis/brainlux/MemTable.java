@@ -2,48 +2,232 @@ package ru.mail.polis.brainlux;
 
 import com.google.common.collect.Iterators;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * In-memory table safe for concurrent readers and writers.
+ * Iterators are weakly consistent and never throw {@link java.util.ConcurrentModificationException}.
+ * With an {@link Arena} keys and values are copied off heap and only the index stays on heap.
+ * Such a table is reference counted: {@link LSMDao} holds it until it is flushed, readers retain it
+ * while they look at it, and the arena is freed once the last of them releases it.
+ */
 public final class MemTable implements Table {
-    private final SortedMap<ByteBuffer, Value> map = new TreeMap<>();
-    private long sizeInBytes;
+    /**
+     * Rough heap cost of a map entry with its key and value buffers besides the payload.
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+    /**
+     * Rough heap cost of an index entry of an arena-backed table, buffer views into direct memory are larger.
+     */
+    private static final int DIRECT_ENTRY_OVERHEAD = 192;
+
+    private final NavigableMap<ByteBuffer, Value> map = new ConcurrentSkipListMap<>();
+    private final LongAdder sizeInBytes = new LongAdder();
+    @Nullable
+    private final Arena arena;
+    // The owner's reference and the ones of the readers
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    public MemTable() {
+        this(null);
+    }
+
+    MemTable(@Nullable final Arena arena) {
+        this.arena = arena;
+    }
 
     public long sizeInBytes() {
-        return sizeInBytes;
+        return arena == null ? sizeInBytes.sum() : sizeInBytes.sum() + arena.sizeInBytes();
+    }
+
+    /**
+     * Returns bytes the table takes on heap, which is only its index and spilled copies if it has an arena.
+     */
+    long heapBytes() {
+        return arena == null ? sizeInBytes.sum() : sizeInBytes.sum() + arena.spilledBytes();
+    }
+
+    /**
+     * Returns bytes the table took from the slabs, overwritten ones included.
+     */
+    long offHeapBytes() {
+        return arena == null ? 0L : arena.offHeapBytes();
+    }
+
+    /**
+     * Takes a reference of a reader, which fails once the table has been released by all its holders.
+     * Heap tables are left to GC, so they can always be read.
+     *
+     * @return whether the table may be read until {@link #release()}
+     */
+    boolean retain() {
+        if (arena == null) {
+            return true;
+        }
+        while (true) {
+            final int current = references.get();
+            if (current == 0) {
+                return false;
+            }
+            if (references.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives a reference back, the last one frees off-heap memory of the table.
+     */
+    void release() {
+        if (arena != null && references.decrementAndGet() == 0) {
+            arena.release();
+        }
     }
 
     @NotNull
     @Override
     public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
+        return iterator(from, null);
+    }
+
+    /**
+     * Iterates the cells copied to heap, so that they outlive the table.
+     */
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        if (to != null && from.compareTo(to) >= 0) {
+            return Collections.emptyIterator();
+        }
+        final NavigableMap<ByteBuffer, Value> range =
+                to == null ? map.tailMap(from, true) : map.subMap(from, true, to, false);
+        return Iterators.transform(
+                range.entrySet().iterator(),
+                e -> new Cell(detach(e.getKey()), detach(e.getValue())));
+    }
+
+    /**
+     * Counts cells of the range, tombstones included, in time linear in their number.
+     *
+     * @param from inclusive start of the range
+     * @param to   exclusive end of the range, null for unbounded
+     */
+    long rows(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        if (to == null) {
+            return map.tailMap(from).size();
+        }
+        return from.compareTo(to) < 0 ? map.subMap(from, to).size() : 0L;
+    }
+
+    /**
+     * Iterates the cells in place, they are valid only while the caller holds the table, e.g. to flush it.
+     */
+    @NotNull
+    Iterator<Cell> cells() {
         return Iterators.transform(
-                map.tailMap(from).entrySet().iterator(),
+                map.entrySet().iterator(),
                 e -> new Cell(e.getKey(), e.getValue()));
     }
 
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key) {
+        final Value value = map.get(key);
+        return value == null ? null : detach(value);
+    }
+
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
-        final Value previous = map.put(key, Value.of(value));
+        upsert(key, value, TimeUtils.getTimeNanos());
+    }
+
+    /**
+     * Writes the value with the given timestamp, reserved by {@link TimeUtils#getTimeNanos(int)}.
+     */
+    void upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value,
+            final long timestamp) {
+        if (arena != null) {
+            // Arena accounts for the copied bytes itself, overwritten ones included
+            if (map.put(store(key), new Value(timestamp, arena.copy(value))) == null) {
+                sizeInBytes.add(DIRECT_ENTRY_OVERHEAD);
+            }
+            return;
+        }
+        final Value previous = map.put(key, new Value(timestamp, value.duplicate()));
         if (previous == null) {
-            sizeInBytes += key.remaining() + value.remaining();
+            sizeInBytes.add(ENTRY_OVERHEAD + key.remaining() + value.remaining());
         } else if (previous.isRemoved()) {
-            sizeInBytes += value.remaining();
+            sizeInBytes.add(value.remaining());
         } else {
-            sizeInBytes += value.remaining() - previous.getData().remaining();
+            sizeInBytes.add(value.remaining() - previous.dataSize());
         }
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) {
-        final Value previous = map.put(key, Value.tombstone());
+        remove(key, TimeUtils.getTimeNanos());
+    }
+
+    /**
+     * Writes tombstone with the given timestamp, reserved by {@link TimeUtils#getTimeNanos(int)}.
+     */
+    void remove(
+            @NotNull final ByteBuffer key,
+            final long timestamp) {
+        if (arena != null) {
+            if (map.put(store(key), new Value(timestamp, null)) == null) {
+                sizeInBytes.add(DIRECT_ENTRY_OVERHEAD);
+            }
+            return;
+        }
+        final Value previous = map.put(key, new Value(timestamp, null));
         if (previous == null) {
-            sizeInBytes += key.remaining();
+            sizeInBytes.add(ENTRY_OVERHEAD + key.remaining());
         } else if (!previous.isRemoved()) {
-            sizeInBytes -= previous.getData().remaining();
+            sizeInBytes.add(-previous.dataSize());
+        }
+    }
+
+    @NotNull
+    private ByteBuffer detach(@NotNull final ByteBuffer buffer) {
+        if (arena == null) {
+            return buffer;
+        }
+        final ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.duplicate().put(buffer.duplicate());
+        return copy;
+    }
+
+    @NotNull
+    private Value detach(@NotNull final Value value) {
+        if (arena == null || value.isRemoved()) {
+            return value;
         }
+        return new Value(value.getTimeStamp(), detach(value.getData()));
+    }
+
+    /**
+     * Returns key to put into the arena-backed map, the map keeps the stored key when it already has one.
+     * Entries are never removed, so the check can't race with a removal.
+     */
+    @NotNull
+    private ByteBuffer store(@NotNull final ByteBuffer key) {
+        assert arena != null;
+        return map.containsKey(key) ? key : arena.copy(key);
     }
 
 }
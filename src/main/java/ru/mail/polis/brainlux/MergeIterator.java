@@ -0,0 +1,165 @@
+package ru.mail.polis.brainlux;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Merges sorted cells of tables leaving only the latest cell for every key, optionally dropping tombstones.
+ * Sources meet in a loser tree, so every cell costs about log2 of the number of sources comparisons
+ * of keys held by the cells themselves, older cells of a key are skipped on the way.
+ */
+final class MergeIterator implements Iterator<Cell> {
+    private final Iterator<Cell>[] sources;
+    // Current cell of every source, null once it is exhausted
+    private final Cell[] heads;
+    // Node i > 0 keeps the source losing at it, node 0 the overall winner
+    private final int[] tree;
+    private final boolean dropRemoved;
+    @Nullable
+    private final Metrics metrics;
+    @Nullable
+    private Cell next;
+
+    /**
+     * Creates merge of the sources.
+     *
+     * @param sources     cells of the tables, each one in the order of keys
+     * @param dropRemoved whether to skip keys whose latest cell is a tombstone
+     * @param metrics     metrics to count skipped tombstones in, null not to count them
+     */
+    MergeIterator(
+            @NotNull final Collection<Iterator<Cell>> sources,
+            final boolean dropRemoved,
+            @Nullable final Metrics metrics) {
+        final List<Iterator<Cell>> nonEmpty = new ArrayList<>(sources.size());
+        for (final Iterator<Cell> source : sources) {
+            if (source.hasNext()) {
+                nonEmpty.add(source);
+            }
+        }
+        this.sources = toArray(nonEmpty);
+        this.heads = new Cell[this.sources.length];
+        this.tree = new int[Math.max(1, this.sources.length)];
+        this.dropRemoved = dropRemoved;
+        this.metrics = metrics;
+        for (int i = 0; i < heads.length; i++) {
+            heads[i] = this.sources[i].next();
+        }
+        build();
+        this.next = advance();
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Iterator<Cell>[] toArray(@NotNull final List<Iterator<Cell>> sources) {
+        return sources.toArray(new Iterator[0]);
+    }
+
+    private void build() {
+        final int k = sources.length;
+        if (k == 0) {
+            return;
+        }
+        // Winners of the subtrees, leaf of source i is k + i
+        final int[] winners = new int[k * 2];
+        for (int i = 0; i < k; i++) {
+            winners[k + i] = i;
+        }
+        for (int node = k - 1; node > 0; node--) {
+            final int left = winners[node * 2];
+            final int right = winners[node * 2 + 1];
+            if (less(left, right)) {
+                winners[node] = left;
+                tree[node] = right;
+            } else {
+                winners[node] = right;
+                tree[node] = left;
+            }
+        }
+        tree[0] = k == 1 ? 0 : winners[1];
+    }
+
+    /**
+     * Checks whether the head of source a goes before the head of source b: by key, then the newest first.
+     * Exhausted sources go last.
+     */
+    private boolean less(
+            final int a,
+            final int b) {
+        final Cell x = heads[a];
+        final Cell y = heads[b];
+        if (x == null || y == null) {
+            return y == null && x != null;
+        }
+        final int keys = x.key().compareTo(y.key());
+        if (keys != 0) {
+            return keys < 0;
+        }
+        final long xTime = x.getValue().getTimeStamp();
+        final long yTime = y.getValue().getTimeStamp();
+        return xTime == yTime ? a < b : xTime > yTime;
+    }
+
+    /**
+     * Moves the source to its next cell and plays it up the tree to the root.
+     */
+    private void replay(final int source) {
+        heads[source] = sources[source].hasNext() ? sources[source].next() : null;
+        int winner = source;
+        for (int node = (source + sources.length) >> 1; node > 0; node >>= 1) {
+            if (less(tree[node], winner)) {
+                final int loser = winner;
+                winner = tree[node];
+                tree[node] = loser;
+            }
+        }
+        tree[0] = winner;
+    }
+
+    /**
+     * Takes the latest cell of the least key, skipping the older ones and removed keys if asked to.
+     */
+    @Nullable
+    private Cell advance() {
+        while (sources.length > 0) {
+            final int winner = tree[0];
+            final Cell cell = heads[winner];
+            if (cell == null) {
+                return null;
+            }
+            final ByteBuffer key = cell.key();
+            replay(winner);
+            while (heads[tree[0]] != null && heads[tree[0]].key().equals(key)) {
+                replay(tree[0]);
+            }
+            if (!dropRemoved || !cell.getValue().isRemoved()) {
+                return cell;
+            }
+            if (metrics != null) {
+                metrics.increment(Metrics.Counter.TOMBSTONES_SCANNED);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public Cell next() {
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+        final Cell result = next;
+        next = advance();
+        return result;
+    }
+}
@@ -0,0 +1,244 @@
+package ru.mail.polis.brainlux;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+
+/**
+ * Counters, latency histograms and gauges of {@link LSMDao}.
+ * Counters and histograms are updated on the go, gauges are computed from the state of the storage when read.
+ */
+public final class Metrics {
+    /**
+     * Monotonic counters of events.
+     */
+    public enum Counter {
+        /** Finished flushes of memTables. */
+        FLUSHES,
+        /** Bytes of tables written by flushes. */
+        FLUSHED_BYTES,
+        /** Finished compactions, background and explicit ones. */
+        COMPACTIONS,
+        /** Bytes of tables read by compactions. */
+        COMPACTION_READ_BYTES,
+        /** Bytes of tables written by compactions. */
+        COMPACTION_WRITTEN_BYTES,
+        /** Key ranges merged in parallel by compactions split into them. */
+        SUBCOMPACTIONS,
+        /** Tables read by point lookups past their bloom filters. */
+        TABLES_PROBED,
+        /** Tables skipped by point lookups thanks to their bloom filters. */
+        BLOOM_FILTER_SKIPS,
+        /** Tables read by point lookups past their bloom filters which didn't hold the key. */
+        BLOOM_FILTER_FALSE_POSITIVES,
+        /** Tables skipped by reads as the key or the range is out of their first and last keys. */
+        FENCE_SKIPS,
+        /** Tombstones met by reads, skipped ones of range scans included. */
+        TOMBSTONES_SCANNED,
+        /** Blocks found in the block cache. */
+        BLOCK_CACHE_HITS,
+        /** Blocks read from tables past the block cache. */
+        BLOCK_CACHE_MISSES,
+        /** Blocks evicted from the block cache to fit its size. */
+        BLOCK_CACHE_EVICTIONS,
+        /** Point lookups answered by the row cache. */
+        ROW_CACHE_HITS,
+        /** Point lookups which missed the row cache. */
+        ROW_CACHE_MISSES,
+        /** Looked up keys not admitted to the row cache as less frequent than the cached ones. */
+        ROW_CACHE_REJECTIONS
+    }
+
+    /**
+     * Latencies of operations.
+     */
+    public enum Timer {
+        GET,
+        UPSERT,
+        REMOVE,
+        /** Applying of a {@link WriteBatch}. */
+        BATCH,
+        /** Range scans from opening of the iterator until it is exhausted, abandoned ones aren't recorded. */
+        RANGE,
+        FLUSH,
+        COMPACT
+    }
+
+    /**
+     * Values computed when read.
+     */
+    public enum Gauge {
+        /** Tables on disk. */
+        TABLES,
+        /** Bytes of tables on disk. */
+        DISK_BYTES,
+        /** Bytes of the memTable accepting writes and the ones waiting for flush. */
+        MEMTABLE_BYTES,
+        /** MemTables waiting for flush. */
+        FLUSH_QUEUE,
+        /** Compactions waiting for a thread. */
+        COMPACTION_QUEUE,
+        /** Compactions in progress. */
+        RUNNING_COMPACTIONS,
+        /** Share of input rows merged by the running compactions, 1 if there are none. */
+        COMPACTION_PROGRESS,
+        /** Bytes in the block cache. */
+        BLOCK_CACHE_BYTES,
+        /** Bytes in the row cache. */
+        ROW_CACHE_BYTES,
+        /** Direct memory reserved for memTables. */
+        OFF_HEAP_BYTES
+    }
+
+    private final Map<Counter, LongAdder> counters = new EnumMap<>(Counter.class);
+    private final Map<Timer, LatencyHistogram> timers = new EnumMap<>(Timer.class);
+    private final Map<Gauge, DoubleSupplier> gauges = new EnumMap<>(Gauge.class);
+
+    Metrics() {
+        for (final Counter counter : Counter.values()) {
+            counters.put(counter, new LongAdder());
+        }
+        for (final Timer timer : Timer.values()) {
+            timers.put(timer, new LatencyHistogram());
+        }
+        for (final Gauge gauge : Gauge.values()) {
+            gauges.put(gauge, () -> 0.0);
+        }
+    }
+
+    void increment(@NotNull final Counter counter) {
+        counters.get(counter).increment();
+    }
+
+    void add(
+            @NotNull final Counter counter,
+            final long delta) {
+        counters.get(counter).add(delta);
+    }
+
+    /**
+     * Records duration of an operation.
+     *
+     * @param start {@link System#nanoTime()} at the start of the operation
+     */
+    void record(
+            @NotNull final Timer timer,
+            final long start) {
+        timers.get(timer).record(System.nanoTime() - start);
+    }
+
+    /**
+     * Sets the function computing the gauge, must be called before the metrics are published.
+     */
+    void register(
+            @NotNull final Gauge gauge,
+            @NotNull final DoubleSupplier value) {
+        gauges.put(gauge, value);
+    }
+
+    public long count(@NotNull final Counter counter) {
+        return counters.get(counter).sum();
+    }
+
+    @NotNull
+    public LatencyHistogram timer(@NotNull final Timer timer) {
+        return timers.get(timer);
+    }
+
+    public double gauge(@NotNull final Gauge gauge) {
+        return gauges.get(gauge).getAsDouble();
+    }
+
+    /**
+     * Returns all the values by their names, latencies are given by count, mean, median, 99th percentile
+     * and maximum in microseconds.
+     */
+    @NotNull
+    public Map<String, Number> snapshot() {
+        final Map<String, Number> result = new LinkedHashMap<>();
+        counters.forEach((counter, value) -> result.put(counter.name(), value.sum()));
+        timers.forEach((timer, histogram) -> {
+            result.put(timer.name() + "_COUNT", histogram.count());
+            result.put(timer.name() + "_MEAN_US", histogram.mean() / TimeUnit.MICROSECONDS.toNanos(1));
+            result.put(timer.name() + "_P50_US", TimeUnit.NANOSECONDS.toMicros(histogram.percentile(0.5)));
+            result.put(timer.name() + "_P99_US", TimeUnit.NANOSECONDS.toMicros(histogram.percentile(0.99)));
+            result.put(timer.name() + "_MAX_US", TimeUnit.NANOSECONDS.toMicros(histogram.percentile(1.0)));
+        });
+        gauges.forEach((gauge, value) -> result.put(gauge.name(), value.getAsDouble()));
+        return result;
+    }
+
+    /**
+     * Returns read-only MBean publishing {@link #snapshot()} as its attributes.
+     */
+    @NotNull
+    DynamicMBean mbean() {
+        return new DynamicMBean() {
+            @Override
+            public Object getAttribute(final String name) throws AttributeNotFoundException {
+                final Number value = snapshot().get(name);
+                if (value == null) {
+                    throw new AttributeNotFoundException(name);
+                }
+                return value;
+            }
+
+            @Override
+            public void setAttribute(final Attribute attribute) {
+                throw new UnsupportedOperationException("Metrics are read-only");
+            }
+
+            @Override
+            public AttributeList getAttributes(final String[] names) {
+                final Map<String, Number> values = snapshot();
+                final AttributeList result = new AttributeList();
+                for (final String name : names) {
+                    final Number value = values.get(name);
+                    if (value != null) {
+                        result.add(new Attribute(name, value));
+                    }
+                }
+                return result;
+            }
+
+            @Override
+            public AttributeList setAttributes(final AttributeList attributes) {
+                return new AttributeList();
+            }
+
+            @Override
+            public Object invoke(
+                    final String action,
+                    final Object[] params,
+                    final String[] signature) {
+                throw new UnsupportedOperationException("Metrics have no operations");
+            }
+
+            @Override
+            public MBeanInfo getMBeanInfo() {
+                final Map<String, Number> values = snapshot();
+                final MBeanAttributeInfo[] attributes = values.entrySet().stream()
+                        .map(e -> new MBeanAttributeInfo(
+                                e.getKey(),
+                                e.getValue().getClass().getName(),
+                                e.getKey(),
+                                true,
+                                false,
+                                false))
+                        .toArray(MBeanAttributeInfo[]::new);
+                return new MBeanInfo(Metrics.class.getName(), "Metrics of LSMDao", attributes, null, null, null);
+            }
+        };
+    }
+}
@@ -0,0 +1,239 @@
+package ru.mail.polis.brainlux;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Block with key prefix compression: cell is {@code [varint shared][varint unshared][key suffix][value]},
+ * where the key shares its first bytes with the previous one, see {@link Block#valueAt(ByteBuffer, int)}.
+ * Every few cells a restart point stores the whole key, the block ends with offsets of the restart points
+ * and their count, so search is a binary search over restart points and a short scan after it.
+ */
+final class PrefixBlock implements Block {
+    private final ByteBuffer cells;
+    private final int restarts;
+    private final int restartOffsets;
+
+    PrefixBlock(@NotNull final ByteBuffer buffer) {
+        this.restarts = buffer.getInt(buffer.limit() - Integer.BYTES);
+        this.restartOffsets = buffer.limit() - Integer.BYTES * (restarts + 1);
+        this.cells = buffer;
+    }
+
+    static int varIntSize(final int value) {
+        int size = 1;
+        for (int rest = value >>> 7; rest != 0; rest >>>= 7) {
+            size++;
+        }
+        return size;
+    }
+
+    static void putVarInt(
+            @NotNull final ByteBuffer buffer,
+            final int value) {
+        int rest = value;
+        while ((rest & ~0x7F) != 0) {
+            buffer.put((byte) ((rest & 0x7F) | 0x80));
+            rest >>>= 7;
+        }
+        buffer.put((byte) rest);
+    }
+
+    /**
+     * Returns the whole key of the restart point without copying.
+     */
+    @NotNull
+    private ByteBuffer restartKey(final int i) {
+        final Cursor cursor = new Cursor(cells.getInt(restartOffsets + Integer.BYTES * i));
+        final int shared = cursor.readVarInt();
+        assert shared == 0;
+        final int keySize = cursor.readVarInt();
+        final ByteBuffer key = cells.duplicate();
+        key.position(cursor.offset);
+        key.limit(cursor.offset + keySize);
+        return key.slice();
+    }
+
+    /**
+     * Compares the whole key of the restart point with the given one where it lies in the block.
+     */
+    private int compareRestartKey(
+            final int i,
+            @NotNull final ByteBuffer key) {
+        int offset = cells.getInt(restartOffsets + Integer.BYTES * i);
+        // Shared size of a restart point is a zero taking a single byte
+        assert cells.get(offset) == 0;
+        offset++;
+        int keySize = 0;
+        for (int shift = 0; ; shift += 7) {
+            final byte b = cells.get(offset++);
+            keySize |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        return Keys.compare(cells, offset, keySize, key);
+    }
+
+    /**
+     * Positions cursor at the first cell with key not less than the given one.
+     */
+    @NotNull
+    private Cursor seek(@NotNull final ByteBuffer from) {
+        // The last restart point not greater than the key
+        int left = 0;
+        int right = restarts - 1;
+        while (left < right) {
+            final int mid = (left + right + 1) >>> 1;
+            if (compareRestartKey(mid, from) <= 0) {
+                left = mid;
+            } else {
+                right = mid - 1;
+            }
+        }
+
+        final Cursor cursor = new Cursor(cells.getInt(restartOffsets + Integer.BYTES * left));
+        while (cursor.advance() && cursor.compareKey(from) < 0) {
+            // Skip smaller keys
+        }
+        return cursor;
+    }
+
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key) {
+        final Cursor cursor = seek(key);
+        return cursor.valid && cursor.compareKey(key) == 0 ? Block.valueAt(cells, cursor.valueOffset) : null;
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
+        final Cursor cursor = seek(from);
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return cursor.valid;
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final Cell cell = cursor.cell();
+                cursor.advance();
+                return cell;
+            }
+        };
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer firstKey() {
+        return restartKey(0);
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer lastKey() {
+        final Cursor cursor = new Cursor(cells.getInt(restartOffsets + Integer.BYTES * (restarts - 1)));
+        ByteBuffer last = null;
+        while (cursor.advance()) {
+            last = cursor.key();
+        }
+        assert last != null;
+        return last;
+    }
+
+    @Override
+    public int sizeInBytes() {
+        return cells.limit();
+    }
+
+    /**
+     * Forward reader of the cells restoring their keys.
+     */
+    private final class Cursor {
+        private int offset;
+        private byte[] key = new byte[32];
+        // View of the key array for comparisons, replaced along with the array
+        private ByteBuffer wrapped = ByteBuffer.wrap(key);
+        private int keySize;
+        private int valueOffset;
+        private boolean valid;
+
+        Cursor(final int offset) {
+            this.offset = offset;
+        }
+
+        private int readVarInt() {
+            int result = 0;
+            for (int shift = 0; ; shift += 7) {
+                final byte b = cells.get(offset++);
+                result |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return result;
+                }
+            }
+        }
+
+        /**
+         * Moves to the next cell.
+         *
+         * @return false if there are no more cells
+         */
+        boolean advance() {
+            if (offset >= restartOffsets) {
+                valid = false;
+                return false;
+            }
+            final int shared = readVarInt();
+            final int unshared = readVarInt();
+            keySize = shared + unshared;
+            if (keySize > key.length) {
+                key = Arrays.copyOf(key, Math.max(keySize, key.length * 2));
+                wrapped = ByteBuffer.wrap(key);
+            }
+            if (cells.hasArray()) {
+                System.arraycopy(cells.array(), cells.arrayOffset() + offset, key, shared, unshared);
+            } else {
+                for (int i = 0; i < unshared; i++) {
+                    key[shared + i] = cells.get(offset + i);
+                }
+            }
+            offset += unshared;
+
+            valueOffset = offset;
+            final long timestamp = cells.getLong(offset);
+            offset += Long.BYTES;
+            if (timestamp >= 0) {
+                offset += Integer.BYTES + cells.getInt(offset);
+            }
+            valid = true;
+            return true;
+        }
+
+        /**
+         * Compares key of the current cell with the given one in the order of {@link ByteBuffer#compareTo}.
+         */
+        int compareKey(@NotNull final ByteBuffer other) {
+            return Keys.compare(wrapped, 0, keySize, other);
+        }
+
+        @NotNull
+        ByteBuffer key() {
+            return ByteBuffer.wrap(Arrays.copyOf(key, keySize));
+        }
+
+        @NotNull
+        Cell cell() {
+            return new Cell(key(), Block.valueAt(cells, valueOffset));
+        }
+    }
+}
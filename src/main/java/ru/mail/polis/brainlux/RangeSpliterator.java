@@ -0,0 +1,202 @@
+package ru.mail.polis.brainlux;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.Record;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over a key range of a snapshot of {@link LSMDao} tables.
+ * Until it starts, the range splits at an index key of the tables near the middle of their data in the range,
+ * and every part merges all the tables, memTables included, on its own.
+ * A retained snapshot is released once every part is read to its end or dropped.
+ */
+final class RangeSpliterator implements Spliterator<Record> {
+    // Index keys sampled from every table to choose the split
+    private static final int SAMPLES = 16;
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final LSMDao dao;
+    private final TableSet snapshot;
+    private ByteBuffer from;
+    @Nullable
+    private final ByteBuffer to;
+    @Nullable
+    private Iterator<Record> records;
+    // Parts holding the retained snapshot, null if it needn't be released
+    @Nullable
+    private final AtomicInteger parts;
+    @Nullable
+    private final Cleaner.Cleanable lease;
+    private boolean done;
+
+    /**
+     * Creates spliterator over the range.
+     *
+     * @param from  inclusive start of the range
+     * @param to    exclusive end of the range, null for unbounded
+     * @param parts counter of the parts sharing the retained snapshot, this one included,
+     *              null if the snapshot isn't retained
+     */
+    RangeSpliterator(
+            @NotNull final LSMDao dao,
+            @NotNull final TableSet snapshot,
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            @Nullable final AtomicInteger parts) {
+        this.dao = dao;
+        this.snapshot = snapshot;
+        this.from = from;
+        this.to = to;
+        this.parts = parts;
+        this.lease = parts == null ? null : CLEANER.register(this, new Release(snapshot, parts));
+    }
+
+    @Override
+    public boolean tryAdvance(@NotNull final Consumer<? super Record> action) {
+        if (done) {
+            return false;
+        }
+        final Iterator<Record> iterator = records();
+        if (!iterator.hasNext()) {
+            finish();
+            return false;
+        }
+        action.accept(iterator.next());
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(@NotNull final Consumer<? super Record> action) {
+        if (done) {
+            return;
+        }
+        records().forEachRemaining(action);
+        finish();
+    }
+
+    private void finish() {
+        done = true;
+        if (lease != null) {
+            lease.clean();
+        }
+    }
+
+    @NotNull
+    private Iterator<Record> records() {
+        if (records == null) {
+            records = dao.records(snapshot, from, to);
+        }
+        return records;
+    }
+
+    @Nullable
+    @Override
+    public Spliterator<Record> trySplit() {
+        if (records != null) {
+            return null;
+        }
+        final ByteBuffer split = split();
+        if (split == null) {
+            return null;
+        }
+        if (parts != null) {
+            parts.incrementAndGet();
+        }
+        final Spliterator<Record> prefix = new RangeSpliterator(dao, snapshot, from, split, parts);
+        from = split;
+        return prefix;
+    }
+
+    /**
+     * Returns index key inside the range halving the data of the tables in it, null if there is none.
+     */
+    @Nullable
+    private ByteBuffer split() {
+        // Every sampled key stands for an equal share of the blocks of its table in the range
+        final NavigableMap<ByteBuffer, Double> weights = new TreeMap<>();
+        double total = 0.0;
+        for (final SSTable ssTable : snapshot.ssTables.values()) {
+            final List<ByteBuffer> samples = ssTable.sampleKeys(from, to, SAMPLES);
+            if (samples.isEmpty()) {
+                continue;
+            }
+            final double weight = (double) ssTable.sizeInBytes(from, to) / samples.size();
+            for (final ByteBuffer sample : samples) {
+                weights.merge(sample, weight, Double::sum);
+                total += weight;
+            }
+        }
+
+        double seen = 0.0;
+        for (final Map.Entry<ByteBuffer, Double> sample : weights.entrySet()) {
+            seen += sample.getValue();
+            final ByteBuffer key = sample.getKey();
+            if (seen >= total / 2 && key.compareTo(from) > 0 && (to == null || key.compareTo(to) < 0)) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        if (done) {
+            return 0L;
+        }
+        long rows = snapshot.memTable.rows(from, to);
+        for (final MemTable memTable : snapshot.flushing) {
+            rows += memTable.rows(from, to);
+        }
+        for (final SSTable ssTable : snapshot.ssTables.values()) {
+            rows += ssTable.rows(from, to);
+        }
+        return rows;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | DISTINCT | SORTED | NONNULL;
+    }
+
+    @Nullable
+    @Override
+    public Comparator<? super Record> getComparator() {
+        // Natural order of the records
+        return null;
+    }
+
+    /**
+     * Releases the snapshot when the last of the parts sharing it is done, kept apart from the spliterator
+     * so that the cleaner can run it once the spliterator is unreachable.
+     */
+    private static final class Release implements Runnable {
+        private final TableSet snapshot;
+        private final AtomicInteger parts;
+
+        Release(
+                @NotNull final TableSet snapshot,
+                @NotNull final AtomicInteger parts) {
+            this.snapshot = snapshot;
+            this.parts = parts;
+        }
+
+        @Override
+        public void run() {
+            if (parts.decrementAndGet() == 0) {
+                snapshot.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package ru.mail.polis.brainlux;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of resolved values of hot keys, tombstones included, bounded by the total size of keys and values.
+ * Keys are spread over independently locked stripes, each one an LRU guarded by TinyLFU admission:
+ * a count-min sketch estimates how often keys are read, and a new key replaces the LRU one only if it is
+ * read more often, so a scan of rarely read keys leaves the cache as it is.
+ */
+final class RowCache {
+    private static final int STRIPES = 64;
+    // Rough footprint of a cache entry besides its key and value
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final Value ABSENT = new Value(0L, null);
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final Metrics metrics;
+    private final LongAdder size = new LongAdder();
+
+    RowCache(
+            final long capacity,
+            @NotNull final Metrics metrics) {
+        assert capacity > 0L;
+        this.metrics = metrics;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(Math.max(1L, capacity / STRIPES));
+        }
+    }
+
+    @NotNull
+    private Stripe stripe(final int hash) {
+        return stripes[hash & (STRIPES - 1)];
+    }
+
+    private static int hash(@NotNull final ByteBuffer key) {
+        final int h = key.hashCode() * 0x9E3779B9;
+        return h ^ h >>> 16;
+    }
+
+    /**
+     * Returns the cached value of the key, a tombstone if the key is known to have none.
+     */
+    @Nullable
+    Value get(@NotNull final ByteBuffer key) {
+        final int hash = hash(key);
+        final Value value = stripe(hash).get(key, hash);
+        metrics.increment(value == null ? Metrics.Counter.ROW_CACHE_MISSES : Metrics.Counter.ROW_CACHE_HITS);
+        return value;
+    }
+
+    /**
+     * Returns version of the key to pass to {@link #put(ByteBuffer, Value, long)} after the key is looked up.
+     */
+    long version(@NotNull final ByteBuffer key) {
+        return stripe(hash(key)).version();
+    }
+
+    /**
+     * Offers value of the key found by a lookup, the value is dropped if the key has been written since.
+     *
+     * @param value   resolved value, null if the key has none
+     * @param version version of the key taken before the lookup
+     */
+    void put(
+            @NotNull final ByteBuffer key,
+            @Nullable final Value value,
+            final long version) {
+        final Value resolved = value == null ? ABSENT : value;
+        final ByteBuffer keyCopy = copy(key);
+        final Value valueCopy = resolved.isRemoved()
+                ? resolved
+                : new Value(resolved.getTimeStamp(), copy(resolved.getData()));
+        final int hash = hash(key);
+        stripe(hash).put(keyCopy, valueCopy, hash, version);
+    }
+
+    /**
+     * Drops the key, has to be called after every write of the key.
+     */
+    void invalidate(@NotNull final ByteBuffer key) {
+        stripe(hash(key)).remove(key);
+    }
+
+    /**
+     * Keeps cached bytes on heap, so that they neither pin table files nor memTable memory.
+     */
+    @NotNull
+    private static ByteBuffer copy(@NotNull final ByteBuffer buffer) {
+        final ByteBuffer result = ByteBuffer.allocate(buffer.remaining());
+        result.put(buffer.duplicate());
+        result.flip();
+        return result;
+    }
+
+    private static int sizeOf(
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value) {
+        return ENTRY_OVERHEAD + key.remaining() + value.dataSize();
+    }
+
+    long sizeInBytes() {
+        return size.sum();
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters in 4 rows, halved once it has seen ten times more keys than its width,
+     * so that keys hot in the past fade out.
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX = 15;
+        private static final int[] SEEDS = {0x97CB3127, 0xB3F9E2D5, 0x6C2A8F41, 0xE4D1B769};
+
+        private final byte[][] counters = new byte[DEPTH][];
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(final int width) {
+            final int size = Integer.highestOneBit(Math.max(16, width));
+            for (int i = 0; i < DEPTH; i++) {
+                counters[i] = new byte[size];
+            }
+            this.mask = size - 1;
+            this.sampleSize = size * 10;
+        }
+
+        private int index(
+                final int hash,
+                final int row) {
+            final int h = hash * SEEDS[row];
+            return (h ^ h >>> 15) & mask;
+        }
+
+        int frequency(final int hash) {
+            int result = MAX;
+            for (int i = 0; i < DEPTH; i++) {
+                result = Math.min(result, counters[i][index(hash, i)]);
+            }
+            return result;
+        }
+
+        void increment(final int hash) {
+            for (int i = 0; i < DEPTH; i++) {
+                final int index = index(hash, i);
+                if (counters[i][index] < MAX) {
+                    counters[i][index]++;
+                }
+            }
+            if (++additions == sampleSize) {
+                for (final byte[] row : counters) {
+                    for (int j = 0; j < row.length; j++) {
+                        row[j] >>= 1;
+                    }
+                }
+                additions /= 2;
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final Value value;
+        private final int hash;
+        private final int size;
+
+        Entry(
+                @NotNull final Value value,
+                final int hash,
+                final int size) {
+            this.value = value;
+            this.hash = hash;
+            this.size = size;
+        }
+    }
+
+    private final class Stripe {
+        private final long capacity;
+        // In the order of access, the least recent first
+        private final LinkedHashMap<ByteBuffer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final FrequencySketch sketch;
+        private long used;
+        // Incremented by every write of a key of the stripe
+        private long version;
+
+        Stripe(final long capacity) {
+            this.capacity = capacity;
+            this.sketch = new FrequencySketch((int) Math.min(1 << 16, capacity / ENTRY_OVERHEAD));
+        }
+
+        @Nullable
+        synchronized Value get(
+                @NotNull final ByteBuffer key,
+                final int hash) {
+            sketch.increment(hash);
+            final Entry entry = entries.get(key);
+            return entry == null ? null : entry.value;
+        }
+
+        synchronized long version() {
+            return version;
+        }
+
+        synchronized void put(
+                @NotNull final ByteBuffer key,
+                @NotNull final Value value,
+                final int hash,
+                final long expected) {
+            final int entrySize = sizeOf(key, value);
+            if (version != expected || entrySize > capacity || entries.containsKey(key)) {
+                return;
+            }
+
+            // Admit the key only if it is more frequent than every key it would push out
+            final int frequency = sketch.frequency(hash);
+            long freed = capacity - used;
+            final Iterator<Entry> lru = entries.values().iterator();
+            while (freed < entrySize) {
+                final Entry victim = lru.next();
+                if (sketch.frequency(victim.hash) >= frequency) {
+                    metrics.increment(Metrics.Counter.ROW_CACHE_REJECTIONS);
+                    return;
+                }
+                freed += victim.size;
+            }
+
+            final Iterator<Entry> evicted = entries.values().iterator();
+            while (capacity - used < entrySize) {
+                final Entry victim = evicted.next();
+                evicted.remove();
+                used -= victim.size;
+                size.add(-victim.size);
+            }
+            entries.put(key, new Entry(value, hash, entrySize));
+            used += entrySize;
+            size.add(entrySize);
+        }
+
+        synchronized void remove(@NotNull final ByteBuffer key) {
+            version++;
+            final Entry entry = entries.remove(key);
+            if (entry != null) {
+                used -= entry.size;
+                size.add(-entry.size);
+            }
+        }
+    }
+}
@@ -1,47 +1,207 @@
 package ru.mail.polis.brainlux;
 
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.IntBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
+/**
+ * Immutable sorted table on disk.
+ * The current format is a sequence of possibly compressed {@link PrefixBlock}s written by {@link SSTableWriter}
+ * followed by the index {@code [long blockOffset][int keySize][key]} per block, the fences
+ * {@code [firstKey][lastKey][int firstKeySize][int lastKeySize]} and the footer
+ * {@code [long indexOffset][long rows][int version][long magic]}. Tables of the original format,
+ * a single block for the whole file, have no footer and are read as they are. Blocks of the versions
+ * before key prefix compression are read as {@link FlatBlock}s, and the versions without fences
+ * take the key range from their first and last blocks.
+ */
 public final class SSTable implements Table {
-    private final int rows;
-    private final IntBuffer offsets;
-    private final ByteBuffer cells;
+    static final int VERSION = 5;
+    static final int BLOCK_HEADER = Byte.BYTES + Integer.BYTES;
+    // Blocks of version 2 have no header and are never compressed
+    private static final int UNCOMPRESSED_VERSION = 2;
+    // Blocks before version 4 keep whole keys
+    private static final int FLAT_VERSION = 3;
+    // Key range is kept in the file since version 5
+    private static final int FENCES_VERSION = 5;
+    static final long MAGIC = 0x4C534D5353544232L;
+    static final int FOOTER = Long.BYTES * 3 + Integer.BYTES;
+    static final String FILTER_SUFFIX = ".bf";
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final long rows;
+    private final boolean blockHeaders;
+    private final boolean prefixBlocks;
+    private final int blocks;
+    // Block i spans [blockOffsets[i], blockOffsets[i + 1]) of the file
+    private final long[] blockOffsets;
+    private final ByteBuffer index;
+    private final int[] indexKeys;
+    // Normalized first bytes of every index key, most probes of the search end on them
+    private final long[] indexPrefixes;
+    // File mapped by parts of at most 2 GB, each holding whole blocks
+    private final ByteBuffer[] chunks;
+    private final long[] chunkOffsets;
     private final long sizeInBytes;
     private final File base;
+    private final BloomFilter filter;
+    private final int generation;
+    private final int level;
+    private final ByteBuffer firstKey;
+    private final ByteBuffer lastKey;
+    @Nullable
+    private final BlockCache cache;
+    private final int cacheId;
+    // Set once the table is replaced, so that readers still holding it don't fill the cache again
+    private volatile boolean closed;
 
-    SSTable(final File file) throws IOException {
+    SSTable(
+            final File file,
+            final int generation,
+            final int level,
+            @Nullable final BlockCache cache) throws IOException {
+        this.cache = cache;
+        this.cacheId = cache == null ? 0 : cache.newTable();
         this.sizeInBytes = file.length();
         this.base = file;
-        assert sizeInBytes != 0 && sizeInBytes <= Integer.MAX_VALUE;
-        final ByteBuffer mapped;
+        this.generation = generation;
+        this.level = level;
+        ByteBuffer fenceFirst = null;
+        ByteBuffer fenceLast = null;
         try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
-            mapped = fc.map(FileChannel.MapMode.READ_ONLY, 0L, fc.size()).order(ByteOrder.BIG_ENDIAN);
+            final ByteBuffer footer = sizeInBytes < FOOTER ? null : read(fc, sizeInBytes - FOOTER, FOOTER);
+            if (footer != null && footer.getLong(FOOTER - Long.BYTES) == MAGIC) {
+                final int version = footer.getInt(Long.BYTES * 2);
+                if (version < UNCOMPRESSED_VERSION || version > VERSION) {
+                    throw new IOException("Unsupported version " + version + " of " + file);
+                }
+                this.blockHeaders = version > UNCOMPRESSED_VERSION;
+                this.prefixBlocks = version > FLAT_VERSION;
+                final long indexOffset = footer.getLong(0);
+                this.rows = footer.getLong(Long.BYTES);
+                long indexEnd = sizeInBytes - FOOTER;
+                if (version >= FENCES_VERSION) {
+                    final ByteBuffer sizes = read(fc, indexEnd - Integer.BYTES * 2, Integer.BYTES * 2);
+                    final int firstKeySize = sizes.getInt(0);
+                    final int lastKeySize = sizes.getInt(Integer.BYTES);
+                    final int fencesSize = firstKeySize + lastKeySize;
+                    indexEnd -= Integer.BYTES * 2 + fencesSize;
+                    // Mapped rather than read, fences may be as large as the keys are and stay with the table
+                    final ByteBuffer fences = fc.map(FileChannel.MapMode.READ_ONLY, indexEnd, fencesSize)
+                            .order(ByteOrder.BIG_ENDIAN);
+                    fenceFirst = slice(fences, 0, firstKeySize);
+                    fenceLast = slice(fences, firstKeySize, lastKeySize);
+                }
+                this.index = read(fc, indexOffset, Math.toIntExact(indexEnd - indexOffset));
+
+                // Index
+                int count = 0;
+                long[] offsets = new long[16];
+                int[] keys = new int[16];
+                while (index.hasRemaining()) {
+                    if (count + 1 == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                        keys = Arrays.copyOf(keys, keys.length * 2);
+                    }
+                    offsets[count] = index.getLong();
+                    keys[count] = index.position();
+                    index.position(index.position() + Integer.BYTES + index.getInt(index.position()));
+                    count++;
+                }
+                offsets[count] = indexOffset;
+                final long[] prefixes = new long[count];
+                for (int i = 0; i < count; i++) {
+                    prefixes[i] = Keys.prefix(index, keys[i] + Integer.BYTES, index.getInt(keys[i]));
+                }
+                this.blocks = count;
+                this.blockOffsets = offsets;
+                this.indexKeys = keys;
+                this.indexPrefixes = prefixes;
+            } else {
+                // Original format: the whole file is a single block of at most 2 GB
+                final ByteBuffer trailer = read(fc, sizeInBytes - Integer.BYTES, Integer.BYTES);
+                this.rows = trailer.getInt(0);
+                this.blockHeaders = false;
+                this.prefixBlocks = false;
+                this.blocks = rows == 0 ? 0 : 1;
+                this.blockOffsets = new long[]{0L, sizeInBytes};
+                this.index = ByteBuffer.allocate(0);
+                this.indexKeys = new int[0];
+                this.indexPrefixes = new long[0];
+            }
+
+            // Chunks
+            final List<ByteBuffer> mapped = new ArrayList<>();
+            final List<Long> mappedOffsets = new ArrayList<>();
+            long chunkOffset = 0L;
+            for (int i = 0; i <= blocks; i++) {
+                if (i == blocks || blockOffsets[i + 1] - chunkOffset > Integer.MAX_VALUE) {
+                    if (blockOffsets[i] > chunkOffset) {
+                        mapped.add(fc.map(FileChannel.MapMode.READ_ONLY, chunkOffset, blockOffsets[i] - chunkOffset)
+                                .order(ByteOrder.BIG_ENDIAN));
+                        mappedOffsets.add(chunkOffset);
+                    }
+                    chunkOffset = blockOffsets[i];
+                }
+            }
+            this.chunks = mapped.toArray(new ByteBuffer[0]);
+            this.chunkOffsets = mappedOffsets.stream().mapToLong(Long::longValue).toArray();
         }
 
-        //Rows
-        rows = mapped.getInt((int) (sizeInBytes - Integer.BYTES));
+        // Tables written before filters were introduced have none
+        final File filterFile = filterFile(file);
+        this.filter = filterFile.exists() ? BloomFilter.read(filterFile) : null;
 
-        // Offset
-        final ByteBuffer offsetBuffer = mapped.duplicate();
-        offsetBuffer.position(mapped.limit() - Integer.BYTES * rows - Integer.BYTES);
-        offsetBuffer.limit(mapped.limit() - Integer.BYTES);
-        this.offsets = offsetBuffer.slice().asIntBuffer();
+        // Key range
+        if (blocks == 0) {
+            this.firstKey = null;
+            this.lastKey = null;
+        } else if (fenceFirst != null) {
+            this.firstKey = fenceFirst;
+            this.lastKey = fenceLast;
+        } else {
+            // Bypass the cache, these blocks may never be read again
+            this.firstKey = load(0).firstKey();
+            this.lastKey = load(blocks - 1).lastKey();
+        }
+    }
 
-        // Cells
-        final ByteBuffer cellBuffer = mapped.duplicate();
-        cellBuffer.limit(offsetBuffer.position());
-        this.cells = cellBuffer.slice();
+    @NotNull
+    private static ByteBuffer slice(
+            @NotNull final ByteBuffer buffer,
+            final int offset,
+            final int size) {
+        final ByteBuffer result = buffer.duplicate();
+        result.position(offset);
+        result.limit(offset + size);
+        return result.slice();
+    }
+
+    @NotNull
+    private static ByteBuffer read(
+            @NotNull final FileChannel fc,
+            final long position,
+            final int size) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (fc.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of table");
+            }
+        }
+        buffer.flip();
+        return buffer;
     }
 
     @Override
@@ -49,134 +209,329 @@ public final class SSTable implements Table {
         return sizeInBytes;
     }
 
+    long rows() {
+        return rows;
+    }
+
+    int generation() {
+        return generation;
+    }
+
     /**
-     * Writes MemTable data to disk.
+     * Returns level of the table, fresh flushes go to level 0.
+     */
+    public int level() {
+        return level;
+    }
+
+    /**
+     * Returns the smallest key of the table or null if the table is empty.
+     */
+    @Nullable
+    public ByteBuffer firstKey() {
+        return firstKey == null ? null : firstKey.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the largest key of the table or null if the table is empty.
+     */
+    @Nullable
+    public ByteBuffer lastKey() {
+        return lastKey == null ? null : lastKey.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns up to the given number of index keys of blocks evenly spread over the ones which may hold
+     * keys of the range, in ascending order. Tables of the original format have no index and give none.
      *
-     * @param cells iterator of MemTable
-     * @param to    path of the file where data needs to be written
-     * @throws IOException if an I/O error occurred
+     * @param from  inclusive start of the range
+     * @param to    exclusive end of the range, null for unbounded
+     * @param count maximal number of keys
      */
+    @NotNull
+    List<ByteBuffer> sampleKeys(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final int count) {
+        if (indexKeys.length == 0) {
+            return List.of();
+        }
+        final int first = blockFor(from);
+        final int range = endBlock(to) - first;
+        final int samples = Math.max(0, Math.min(count, range));
+        final List<ByteBuffer> result = new ArrayList<>(samples);
+        for (int i = 0; i < samples; i++) {
+            result.add(indexKey(first + (int) ((long) i * range / samples)).asReadOnlyBuffer());
+        }
+        return result;
+    }
 
-    static void write(final Iterator<Cell> cells, final File to) throws IOException {
-        try (FileChannel fc = FileChannel.open(to.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
-            final List<Integer> offsets = new ArrayList<>();
-            int offset = 0;
-            while (cells.hasNext()) {
-                offsets.add(offset);
+    /**
+     * Returns size in bytes of the blocks which may hold keys of the range.
+     *
+     * @param from inclusive start of the range
+     * @param to   exclusive end of the range, null for unbounded
+     */
+    long sizeInBytes(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        final int first = blockFor(from);
+        final int end = endBlock(to);
+        return end <= first ? 0L : blockOffsets[end] - blockOffsets[first];
+    }
 
-                final Cell cell = cells.next();
+    /**
+     * Returns number of rows in the blocks which may hold keys of the range, estimated by their size.
+     */
+    long rows(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        final long data = blockOffsets[blocks];
+        return data == 0L ? 0L : (long) ((double) rows * sizeInBytes(from, to) / data);
+    }
 
-                //Key
-                final ByteBuffer key = cell.getKey();
-                final int keySize = cell.getKey().remaining();
-                fc.write(Bytes.fromInt(keySize));
-                offset += Integer.BYTES;
-                fc.write(key);
-                offset += keySize;
-
-                //Value
-                final Value value = cell.getValue();
-
-                //Timestamp
-                if (value.isRemoved()) {
-                    fc.write(Bytes.fromLong(-cell.getValue().getTimeStamp()));
-                } else {
-                    fc.write(Bytes.fromLong(cell.getValue().getTimeStamp()));
-                }
-                offset += Long.BYTES;
-
-                //Value
-                if (!value.isRemoved()) {
-                    final ByteBuffer valueData = value.getData();
-                    final int valueSize = value.getData().remaining();
-                    fc.write(Bytes.fromInt(valueSize));
-                    offset += Integer.BYTES;
-                    fc.write(valueData);
-                    offset += valueSize;
-                }
-            }
+    /**
+     * Returns the block following the last one which may hold keys less than the given one.
+     */
+    private int endBlock(@Nullable final ByteBuffer to) {
+        return to == null ? blocks : Math.min(blocks, blockFor(to) + 1);
+    }
 
-            // Offsets
-            for (final Integer anOffset : offsets) {
-                fc.write(Bytes.fromInt(anOffset));
-            }
+    /**
+     * Checks whether the table may hold keys from the given inclusive range.
+     */
+    boolean overlaps(
+            @NotNull final ByteBuffer from,
+            @NotNull final ByteBuffer to) {
+        return firstKey != null && firstKey.compareTo(to) <= 0 && lastKey.compareTo(from) >= 0;
+    }
+
+    /**
+     * Checks whether the table may hold keys from the given half-open range.
+     *
+     * @param from inclusive start of the range
+     * @param to   exclusive end of the range, null for unbounded
+     */
+    boolean intersects(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        return firstKey != null && lastKey.compareTo(from) >= 0 && (to == null || firstKey.compareTo(to) < 0);
+    }
 
-            //Cells
-            fc.write(Bytes.fromInt(offsets.size()));
+    /**
+     * Returns file with the bloom filter of the given table.
+     * Its name is derived from the table file name the same way for temporary and final tables,
+     * e.g. {@code SSTABLE-5.bf} for {@code SSTABLE-5.tmp} and {@code SSTABLE7-L1.bf} for {@code SSTABLE7-L1.db}.
+     *
+     * @param table table file
+     * @return filter file next to the table
+     */
+    static File filterFile(@NotNull final File table) {
+        final String name = table.getName();
+        final int dot = name.lastIndexOf('.');
+        return new File(table.getParentFile(), (dot < 0 ? name : name.substring(0, dot)) + FILTER_SUFFIX);
+    }
+
+    /**
+     * Writes MemTable data to disk.
+     *
+     * @param cells  iterator of MemTable
+     * @param to     path of the file where data needs to be written
+     * @param config settings of the table format and its bloom filter
+     * @throws IOException if an I/O error occurred
+     */
+    static void write(
+            @NotNull final Iterator<Cell> cells,
+            @NotNull final File to,
+            @NotNull final Config config) throws IOException {
+        try (SSTableWriter writer = new SSTableWriter(to, config)) {
+            while (cells.hasNext()) {
+                writer.add(cells.next());
+            }
+            writer.finish();
         }
     }
 
-    private ByteBuffer keyAt(final int i) {
-        assert 0 <= i && i < rows;
-        final int offset = offsets.get(i);
-        final int keySize = cells.getInt(offset);
-        final ByteBuffer key = cells.duplicate();
-        key.position(offset + Integer.BYTES);
-        key.limit(key.position() + keySize);
-        return key.slice();
+    /**
+     * Checks the bloom filter of the table.
+     *
+     * @param key key to look for
+     * @return false if the table definitely doesn't contain the key
+     */
+    boolean mightContain(@NotNull final ByteBuffer key) {
+        return filter == null || filter.mightContain(key);
     }
 
-    private Cell cellAt(final int i) {
-        assert 0 <= i && i < rows;
-        int offset = offsets.get(i);
+    /**
+     * Checks whether the table has a bloom filter, tables written before filters were introduced have none.
+     */
+    boolean hasFilter() {
+        return filter != null;
+    }
 
-        //Key
-        final int keySize = cells.getInt(offset);
-        offset += Integer.BYTES;
-        final ByteBuffer key = cells.duplicate();
-        key.position(offset);
-        key.limit(key.position() + keySize);
-        offset += keySize;
+    /**
+     * Drops blocks of the table from the cache once the table is replaced.
+     */
+    void evict() {
+        closed = true;
+        if (cache != null) {
+            cache.invalidate(cacheId, 0, blocks);
+        }
+    }
 
-        //Timestamp
-        final long timestamp = cells.getLong(offset);
-        offset += Long.BYTES;
-        if (timestamp < 0) {
-            return new Cell(key.slice(), new Value(-timestamp, null));
-        } else {
-            final int valueSize = cells.getInt(offset);
-            offset += Integer.BYTES;
-            final ByteBuffer value = cells.duplicate();
-            value.position(offset);
-            value.limit(value.position() + valueSize)
-                    .position(offset)
-                    .limit(offset + valueSize);
-            return new Cell(key.slice(), new Value(timestamp, value.slice()));
+    @NotNull
+    private Block block(final int i) {
+        if (cache == null) {
+            return load(i);
         }
+        Block block = cache.get(cacheId, i);
+        if (block == null) {
+            block = load(i);
+            if (!closed) {
+                cache.put(cacheId, i, block);
+                if (closed) {
+                    // Evicted in between, the block may have been put after the invalidation
+                    cache.invalidate(cacheId, i, i + 1);
+                }
+            }
+        }
+        return block;
+    }
+
+    @NotNull
+    private Block load(final int i) {
+        assert 0 <= i && i < blocks;
+        final long offset = blockOffsets[i];
+        int chunk = chunks.length - 1;
+        while (chunkOffsets[chunk] > offset) {
+            chunk--;
+        }
+        final ByteBuffer buffer = chunks[chunk].duplicate();
+        buffer.position((int) (offset - chunkOffsets[chunk]));
+        buffer.limit((int) (blockOffsets[i + 1] - chunkOffsets[chunk]));
+        final ByteBuffer data = blockHeaders ? decode(buffer.slice()) : buffer.slice();
+        return prefixBlocks ? new PrefixBlock(data) : new FlatBlock(data);
     }
 
-    private int position(final ByteBuffer from) {
+    /**
+     * Strips the block header decompressing the block if needed.
+     */
+    @NotNull
+    private static ByteBuffer decode(@NotNull final ByteBuffer stored) {
+        final Compression codec = Compression.of(stored.get(0));
+        final int rawSize = stored.getInt(Byte.BYTES);
+        final ByteBuffer data = stored.duplicate();
+        data.position(BLOCK_HEADER);
+        if (codec == Compression.NONE) {
+            return data.slice();
+        }
+        final byte[] src = new byte[data.remaining()];
+        data.get(src);
+        final byte[] raw = new byte[rawSize];
+        codec.decompress(src, src.length, raw);
+        return ByteBuffer.wrap(raw);
+    }
+
+    @NotNull
+    private ByteBuffer indexKey(final int i) {
+        final ByteBuffer key = index.duplicate();
+        key.position(indexKeys[i] + Integer.BYTES);
+        key.limit(key.position() + index.getInt(indexKeys[i]));
+        return key;
+    }
+
+    /**
+     * Returns the only block which may hold the key, {@code blocks} if the key is beyond the table.
+     * Index key of a block is not less than any of its keys and less than any key of the next block.
+     * Index keys are compared where they lie, so the search allocates nothing, and only when their
+     * normalized prefixes are equal to the one of the key.
+     */
+    private int blockFor(@NotNull final ByteBuffer key) {
+        if (indexKeys.length == 0) {
+            // Single block of the original format
+            return blocks == 0 || lastKey.compareTo(key) < 0 ? blocks : 0;
+        }
+        final long prefix = Keys.prefix(key);
         int left = 0;
-        int right = rows - 1;
+        int right = blocks - 1;
         while (left <= right) {
             final int mid = left + (right - left) / 2;
-            final int cmp = keyAt(mid).compareTo(from);
+            int cmp = Long.compareUnsigned(indexPrefixes[mid], prefix);
+            if (cmp == 0) {
+                final int offset = indexKeys[mid];
+                cmp = Keys.compare(index, offset + Integer.BYTES, index.getInt(offset), key);
+            }
             if (cmp < 0) {
                 left = mid + 1;
-            } else if (cmp > 0) {
-                right = mid - 1;
             } else {
-                return mid;
+                right = mid - 1;
             }
         }
         return left;
     }
 
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key) {
+        if (!overlaps(key, key)) {
+            return null;
+        }
+        final int i = blockFor(key);
+        return i == blocks ? null : block(i).get(key);
+    }
+
     @NotNull
     @Override
     public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
-        return new Iterator<>() {
-            int next = position(from);
+        return iterator(from, null);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        if (!intersects(from, to)) {
+            return Collections.emptyIterator();
+        }
+        final int first = blockFor(from);
+        final int end = endBlock(to);
+        return Iterators.concat(new AbstractIterator<Iterator<Cell>>() {
+            private int next = first;
 
             @Override
-            public boolean hasNext() {
-                return next < rows;
+            protected Iterator<Cell> computeNext() {
+                if (next >= end) {
+                    return endOfData();
+                }
+                final int i = next++;
+                // Only the first block may hold keys less than the given one and only the last one keys past the end
+                final Iterator<Cell> cells = i == first ? block(i).iterator(from) : block(i).iterator(EMPTY);
+                return i == end - 1 ? until(cells, to) : cells;
             }
+        });
+    }
 
+    /**
+     * Stops the cells at the given key.
+     *
+     * @param to exclusive end of the cells, null for unbounded
+     */
+    @NotNull
+    private static Iterator<Cell> until(
+            @NotNull final Iterator<Cell> cells,
+            @Nullable final ByteBuffer to) {
+        if (to == null) {
+            return cells;
+        }
+        return new AbstractIterator<>() {
             @Override
-            public Cell next() {
-                assert hasNext();
-                return cellAt(next++);
+            protected Cell computeNext() {
+                if (!cells.hasNext()) {
+                    return endOfData();
+                }
+                final Cell cell = cells.next();
+                return cell.getKey().compareTo(to) < 0 ? cell : endOfData();
             }
         };
     }
@@ -0,0 +1,354 @@
+package ru.mail.polis.brainlux;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Writes cells into {@link SSTable} of the block-based format.
+ * Cells are cut into {@link PrefixBlock}s of about the configured size, each one prefixed with
+ * {@code [byte codec][int rawSize]} and compressed by the configured {@link Compression} if it gets smaller.
+ * The sparse index keeps the file offset and a separator key of every block, the fences keep the first and
+ * the last keys of the table, and the footer points to the index.
+ * Everything goes to the file through a large direct buffer taken from a pool shared by the writers.
+ * Parts of a table written in parallel, each one holding a range of keys, are joined by {@link #append(Part)}.
+ */
+final class SSTableWriter implements Closeable {
+    private static final int OUTPUT_SIZE = 1024 * 1024;
+    // Enough for the flusher and a few compactions, more writers at once allocate buffers of their own
+    private static final int POOLED_OUTPUTS = 4;
+    private static final Queue<ByteBuffer> OUTPUTS = new ConcurrentLinkedQueue<>();
+
+    private final File file;
+    private final FileChannel channel;
+    private final Config config;
+    private final BloomFilter.Hashes hashes = new BloomFilter.Hashes();
+    private final ByteBuffer output;
+    private ByteBuffer block;
+    // Offsets of the restart points of the current block
+    private int[] offsets = new int[64];
+    private int restarts;
+    private int count;
+    private byte[] firstKey;
+    private byte[] lastKey = new byte[64];
+    private int lastKeySize;
+    private ByteBuffer index = ByteBuffer.allocate(4096);
+    private byte[] compressed = new byte[0];
+    private long position;
+    private long rows;
+
+    SSTableWriter(
+            @NotNull final File file,
+            @NotNull final Config config) throws IOException {
+        this.file = file;
+        this.config = config;
+        this.block = ByteBuffer.allocate(config.blockSize() * 2);
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        final ByteBuffer pooled = OUTPUTS.poll();
+        this.output = pooled == null ? ByteBuffer.allocateDirect(OUTPUT_SIZE) : pooled;
+    }
+
+    /**
+     * Appends the cell, cells have to come in the order of their keys.
+     */
+    void add(@NotNull final Cell cell) throws IOException {
+        final ByteBuffer key = cell.getKey();
+        final Value value = cell.getValue();
+        final ByteBuffer data = value.isRemoved() ? null : value.getData();
+        final int keySize = key.remaining();
+        final int valueSize = Long.BYTES + (data == null ? 0 : Integer.BYTES + data.remaining());
+        if (count > 0 && block.position() + keySize + valueSize > config.blockSize()) {
+            finishBlock(key);
+        }
+
+        // Every restart point keeps the whole key
+        int shared = 0;
+        if (count % config.restartInterval() == 0) {
+            if (restarts == offsets.length) {
+                offsets = Arrays.copyOf(offsets, restarts * 2);
+            }
+            offsets[restarts++] = block.position();
+        } else {
+            final int limit = Math.min(lastKeySize, keySize);
+            final int start = key.position();
+            while (shared < limit && lastKey[shared] == key.get(start + shared)) {
+                shared++;
+            }
+        }
+        if (keySize > lastKey.length) {
+            lastKey = Arrays.copyOf(lastKey, Math.max(keySize, lastKey.length * 2));
+        }
+        key.duplicate().get(lastKey, 0, keySize);
+        lastKeySize = keySize;
+        if (rows == 0) {
+            firstKey = Arrays.copyOf(lastKey, keySize);
+        }
+
+        final int unshared = keySize - shared;
+        block = ensure(block, PrefixBlock.varIntSize(shared) + PrefixBlock.varIntSize(unshared) + unshared + valueSize);
+        PrefixBlock.putVarInt(block, shared);
+        PrefixBlock.putVarInt(block, unshared);
+        block.put(lastKey, shared, unshared);
+        if (data == null) {
+            block.putLong(-value.getTimeStamp());
+        } else {
+            block.putLong(value.getTimeStamp());
+            block.putInt(data.remaining());
+            block.put(data);
+        }
+        hashes.add(key);
+        count++;
+        rows++;
+    }
+
+    /**
+     * Writes the rest of the table with its index, footer and bloom filter,
+     * forcing them to disk if the settings ask for it.
+     */
+    void finish() throws IOException {
+        if (count > 0) {
+            finishBlock(null);
+        }
+        final long indexOffset = position;
+        index.flip();
+        write(index);
+
+        // Fences, both empty for an empty table
+        if (rows > 0) {
+            write(ByteBuffer.wrap(firstKey));
+            write(ByteBuffer.wrap(lastKey, 0, lastKeySize));
+        }
+        reserve(Integer.BYTES * 2);
+        output.putInt(rows > 0 ? firstKey.length : 0);
+        output.putInt(rows > 0 ? lastKeySize : 0);
+
+        reserve(SSTable.FOOTER);
+        output.putLong(indexOffset);
+        output.putLong(rows);
+        output.putInt(SSTable.VERSION);
+        output.putLong(SSTable.MAGIC);
+        flushOutput();
+        if (config.forceTables()) {
+            channel.force(false);
+        }
+
+        hashes.toFilter(config.bloomFpp()).write(SSTable.filterFile(file), config.forceTables());
+    }
+
+    /**
+     * Writes the rest of the blocks leaving the index in memory, so that the file can be appended to a table.
+     */
+    @NotNull
+    Part finishPart() throws IOException {
+        if (count > 0) {
+            finishBlock(null);
+        }
+        flushOutput();
+        index.flip();
+        return new Part(file, position, index, rows, hashes, firstKey, Arrays.copyOf(lastKey, lastKeySize));
+    }
+
+    /**
+     * Copies blocks of the part to the table, keys of the part have to be greater than the ones written before.
+     */
+    void append(@NotNull final Part part) throws IOException {
+        assert count == 0;
+        flushOutput();
+        try (FileChannel from = FileChannel.open(part.file.toPath(), StandardOpenOption.READ)) {
+            long copied = 0;
+            while (copied < part.size) {
+                copied += from.transferTo(copied, part.size - copied, channel);
+            }
+        }
+
+        // Index entries of the part are shifted by its offset in the table
+        final ByteBuffer entries = part.index.duplicate();
+        index = ensure(index, entries.remaining());
+        while (entries.hasRemaining()) {
+            index.putLong(position + entries.getLong());
+            final int keySize = entries.getInt();
+            index.putInt(keySize);
+            final ByteBuffer key = entries.duplicate();
+            key.limit(key.position() + keySize);
+            index.put(key);
+            entries.position(entries.position() + keySize);
+        }
+        if (part.rows > 0) {
+            if (rows == 0) {
+                firstKey = part.firstKey;
+            }
+            lastKey = part.lastKey;
+            lastKeySize = part.lastKey.length;
+        }
+        position += part.size;
+        rows += part.rows;
+        hashes.addAll(part.hashes);
+    }
+
+    /**
+     * Blocks of a table written by {@link #finishPart()} with their index.
+     */
+    static final class Part {
+        private final File file;
+        private final long size;
+        private final ByteBuffer index;
+        private final long rows;
+        private final BloomFilter.Hashes hashes;
+        private final byte[] firstKey;
+        private final byte[] lastKey;
+
+        private Part(
+                @NotNull final File file,
+                final long size,
+                @NotNull final ByteBuffer index,
+                final long rows,
+                @NotNull final BloomFilter.Hashes hashes,
+                @Nullable final byte[] firstKey,
+                @NotNull final byte[] lastKey) {
+            this.file = file;
+            this.size = size;
+            this.index = index;
+            this.rows = rows;
+            this.hashes = hashes;
+            this.firstKey = firstKey;
+            this.lastKey = lastKey;
+        }
+
+        @NotNull
+        File getFile() {
+            return file;
+        }
+    }
+
+    /**
+     * Writes the block out and adds it to the index.
+     *
+     * @param nextKey first key of the next block, null for the last block
+     */
+    private void finishBlock(@Nullable final ByteBuffer nextKey) throws IOException {
+        block = ensure(block, Integer.BYTES * (restarts + 1));
+        for (int i = 0; i < restarts; i++) {
+            block.putInt(offsets[i]);
+        }
+        block.putInt(restarts);
+
+        // Index entry
+        final ByteBuffer separator = separator(ByteBuffer.wrap(lastKey, 0, lastKeySize), nextKey);
+        index = ensure(index, Long.BYTES + Integer.BYTES + separator.remaining());
+        index.putLong(position);
+        index.putInt(separator.remaining());
+        index.put(separator);
+
+        block.flip();
+        final int rawSize = block.remaining();
+        final Compression codec = config.compression();
+        int size = -1;
+        if (codec != Compression.NONE) {
+            if (compressed.length < Compression.maxCompressedLength(rawSize)) {
+                compressed = new byte[Compression.maxCompressedLength(rawSize)];
+            }
+            size = codec.compress(block.array(), rawSize, compressed);
+        }
+        // Blocks which don't get smaller are stored as they are
+        final boolean smaller = size >= 0 && size < rawSize;
+        reserve(SSTable.BLOCK_HEADER);
+        output.put((byte) (smaller ? codec : Compression.NONE).id());
+        output.putInt(rawSize);
+        position += SSTable.BLOCK_HEADER + (smaller ? size : rawSize);
+        write(smaller ? ByteBuffer.wrap(compressed, 0, size) : block);
+        block.clear();
+        count = 0;
+        restarts = 0;
+    }
+
+    /**
+     * Returns the shortest key not less than the last key of a block and less than the first key of the next one,
+     * so that the index stays small even for huge keys.
+     */
+    @NotNull
+    private static ByteBuffer separator(
+            @NotNull final ByteBuffer lastKey,
+            @Nullable final ByteBuffer nextKey) {
+        if (nextKey == null) {
+            return lastKey;
+        }
+        // Keys differ at this position, so the next key's prefix up to it is already greater than the last key
+        final int mismatch = lastKey.mismatch(nextKey);
+        assert mismatch >= 0 && mismatch < nextKey.remaining();
+        if (mismatch + 1 < nextKey.remaining()) {
+            final ByteBuffer prefix = nextKey.duplicate();
+            prefix.limit(prefix.position() + mismatch + 1);
+            return prefix;
+        }
+        return lastKey;
+    }
+
+    /**
+     * Makes room for the given number of bytes in the output buffer.
+     */
+    private void reserve(final int bytes) throws IOException {
+        if (output.remaining() < bytes) {
+            flushOutput();
+        }
+    }
+
+    private void write(@NotNull final ByteBuffer buffer) throws IOException {
+        reserve(buffer.remaining());
+        if (buffer.remaining() > output.remaining()) {
+            // Larger than the whole output buffer
+            writeFully(buffer);
+        } else {
+            output.put(buffer);
+        }
+    }
+
+    private void flushOutput() throws IOException {
+        output.flip();
+        writeFully(output);
+        output.clear();
+    }
+
+    private void writeFully(@NotNull final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer ensure(
+            @NotNull final ByteBuffer buffer,
+            final int extra) {
+        if (buffer.remaining() >= extra) {
+            return buffer;
+        }
+        final ByteBuffer result = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + extra));
+        buffer.flip();
+        result.put(buffer);
+        return result;
+    }
+
+    /**
+     * Returns number of output buffers waiting in the pool for the next writers.
+     */
+    static int pooledOutputs() {
+        return OUTPUTS.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        output.clear();
+        if (OUTPUTS.size() < POOLED_OUTPUTS) {
+            OUTPUTS.offer(output);
+        }
+        channel.close();
+    }
+}
@@ -0,0 +1,73 @@
+package ru.mail.polis.brainlux;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Merges runs of level 0 tables of similar size, so every row is rewritten once per size tier.
+ * Fresh flushes are the smallest tables, hence the run grows from the newest table towards the older ones
+ * while the next table stays within the bucket bounds of the average size of the run.
+ */
+public final class SizeTieredCompactionStrategy implements CompactionStrategy {
+    private final int minThreshold;
+    private final int maxThreshold;
+    private final double bucketLow;
+    private final double bucketHigh;
+
+    /**
+     * Creates size-tiered strategy with the common defaults.
+     */
+    public SizeTieredCompactionStrategy() {
+        this(4, 32, 0.5, 1.5);
+    }
+
+    /**
+     * Creates size-tiered strategy.
+     *
+     * @param minThreshold minimal number of similar tables to merge
+     * @param maxThreshold maximal number of tables merged at once
+     * @param bucketLow    lowest ratio of table size to the average size of the run
+     * @param bucketHigh   highest ratio of table size to the average size of the run
+     */
+    public SizeTieredCompactionStrategy(
+            final int minThreshold,
+            final int maxThreshold,
+            final double bucketLow,
+            final double bucketHigh) {
+        if (minThreshold < 2 || maxThreshold < minThreshold) {
+            throw new IllegalArgumentException("Wrong thresholds: " + minThreshold + ", " + maxThreshold);
+        }
+        if (bucketLow <= 0.0 || bucketLow > 1.0 || bucketHigh < 1.0) {
+            throw new IllegalArgumentException("Wrong bucket bounds: " + bucketLow + ", " + bucketHigh);
+        }
+        this.minThreshold = minThreshold;
+        this.maxThreshold = maxThreshold;
+        this.bucketLow = bucketLow;
+        this.bucketHigh = bucketHigh;
+    }
+
+    @Nullable
+    @Override
+    public Compaction select(@NotNull final List<List<SSTable>> levels) {
+        final List<SSTable> tables = levels.get(0);
+        int count = 0;
+        long total = 0;
+        for (final SSTable table : tables) {
+            if (count == maxThreshold) {
+                break;
+            }
+            final long size = table.sizeInBytes();
+            if (count > 0) {
+                final double average = (double) total / count;
+                if (size < average * bucketLow || size > average * bucketHigh) {
+                    break;
+                }
+            }
+            count++;
+            total += size;
+        }
+        return count >= minThreshold ? new Compaction(tables.subList(0, count), 0) : null;
+    }
+}
@@ -0,0 +1,73 @@
+package ru.mail.polis.brainlux;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out direct memory slabs to the {@link Arena}s of {@link LSMDao} within a fixed budget.
+ * Released slabs are kept on a free list and handed out again, so direct memory is allocated once
+ * and not left to GC. The budget does not depend on the heap size, though it has to fit into
+ * {@code -XX:MaxDirectMemorySize}.
+ */
+final class SlabAllocator {
+    private final long budget;
+    private final int slabSize;
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong reserved = new AtomicLong();
+
+    SlabAllocator(
+            final long budget,
+            final int slabSize) {
+        assert budget > 0 && slabSize > 0;
+        this.budget = budget;
+        this.slabSize = slabSize;
+    }
+
+    int slabSize() {
+        return slabSize;
+    }
+
+    /**
+     * Takes a slab from the free list or allocates a new one.
+     *
+     * @return direct buffer of the slab size or null if the budget is exhausted
+     */
+    @Nullable
+    ByteBuffer allocate() {
+        ByteBuffer slab = free.poll();
+        if (slab == null) {
+            long current;
+            do {
+                current = allocated.get();
+                if (current + slabSize > budget) {
+                    return null;
+                }
+            } while (!allocated.compareAndSet(current, current + slabSize));
+            slab = ByteBuffer.allocateDirect(slabSize);
+        }
+        reserved.addAndGet(slabSize);
+        return slab;
+    }
+
+    /**
+     * Puts the slab back to the free list, no reader may look at it anymore.
+     */
+    void release(@NotNull final ByteBuffer slab) {
+        assert slab.capacity() == slabSize;
+        reserved.addAndGet(-slabSize);
+        free.offer(slab);
+    }
+
+    /**
+     * Returns bytes of the slabs held by arenas.
+     */
+    long reserved() {
+        return reserved.get();
+    }
+}
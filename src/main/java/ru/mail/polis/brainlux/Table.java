@@ -1,6 +1,7 @@
 package ru.mail.polis.brainlux;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -11,7 +12,25 @@ public interface Table {
     long sizeInBytes();
 
     @NotNull
-    Iterator<Cell> iterator(@NotNull ByteBuffer from) throws IOException;
+    default Iterator<Cell> iterator(@NotNull ByteBuffer from) throws IOException {
+        return iterator(from, null);
+    }
+
+    /**
+     * Returns cells from the "from" key (inclusive) to the "to" key (exclusive) in the order of their keys.
+     *
+     * @param to exclusive end of the cells, null for unbounded
+     */
+    @NotNull
+    Iterator<Cell> iterator(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException;
+
+    /**
+     * Returns value (possibly tombstone) stored by the key or null if the table has none.
+     */
+    @Nullable
+    Value get(@NotNull ByteBuffer key) throws IOException;
 
     void upsert(@NotNull ByteBuffer key, @NotNull ByteBuffer value) throws IOException;
 
@@ -0,0 +1,142 @@
+package ru.mail.polis.brainlux;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Immutable snapshot of the tables of {@link LSMDao}.
+ * Every change produces a new snapshot, so readers never see a half-applied flush or compaction.
+ */
+final class TableSet {
+    /**
+     * Table accepting writes.
+     */
+    final MemTable memTable;
+    /**
+     * Read-only tables waiting to be flushed, from the newest to the oldest.
+     */
+    final List<MemTable> flushing;
+    /**
+     * Tables on disk by generation.
+     */
+    final NavigableMap<Integer, SSTable> ssTables;
+    /**
+     * Level 0 tables on disk by generation.
+     */
+    final NavigableMap<Integer, SSTable> level0;
+    /**
+     * Non-empty tables of the deeper levels by their first key, index 0 stands for level 1.
+     */
+    final List<NavigableMap<ByteBuffer, SSTable>> levels;
+
+    TableSet(
+            @NotNull final MemTable memTable,
+            @NotNull final NavigableMap<Integer, SSTable> ssTables) {
+        this(memTable, Collections.emptyList(), ssTables);
+    }
+
+    private TableSet(
+            @NotNull final MemTable memTable,
+            @NotNull final List<MemTable> flushing,
+            @NotNull final NavigableMap<Integer, SSTable> ssTables) {
+        this.memTable = memTable;
+        this.flushing = Collections.unmodifiableList(flushing);
+        this.ssTables = Collections.unmodifiableNavigableMap(ssTables);
+
+        final NavigableMap<Integer, SSTable> newLevel0 = new TreeMap<>();
+        final List<NavigableMap<ByteBuffer, SSTable>> newLevels = new ArrayList<>();
+        for (final Map.Entry<Integer, SSTable> entry : ssTables.entrySet()) {
+            final SSTable ssTable = entry.getValue();
+            if (ssTable.level() == 0) {
+                newLevel0.put(entry.getKey(), ssTable);
+                continue;
+            }
+            while (newLevels.size() < ssTable.level()) {
+                newLevels.add(new TreeMap<>());
+            }
+            final ByteBuffer firstKey = ssTable.firstKey();
+            if (firstKey != null) {
+                newLevels.get(ssTable.level() - 1).put(firstKey, ssTable);
+            }
+        }
+        this.level0 = Collections.unmodifiableNavigableMap(newLevel0);
+        this.levels = Collections.unmodifiableList(newLevels);
+    }
+
+    /**
+     * Takes references of a reader to the memTables, see {@link MemTable#retain()}.
+     *
+     * @return whether the snapshot may be read until {@link #release()}, fails once it is outdated
+     */
+    boolean retain() {
+        if (!memTable.retain()) {
+            return false;
+        }
+        for (int i = 0; i < flushing.size(); i++) {
+            if (!flushing.get(i).retain()) {
+                memTable.release();
+                flushing.subList(0, i).forEach(MemTable::release);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gives references of a reader to the memTables back.
+     */
+    void release() {
+        memTable.release();
+        flushing.forEach(MemTable::release);
+    }
+
+    /**
+     * Makes the current memTable read-only and starts the fresh one.
+     */
+    @NotNull
+    TableSet freeze(@NotNull final MemTable fresh) {
+        final List<MemTable> newFlushing = new ArrayList<>(flushing.size() + 1);
+        newFlushing.add(memTable);
+        newFlushing.addAll(flushing);
+        return new TableSet(fresh, newFlushing, ssTables);
+    }
+
+    /**
+     * Replaces flushed memTable with the table written from it.
+     */
+    @NotNull
+    TableSet flushed(
+            @NotNull final MemTable flushed,
+            @NotNull final SSTable ssTable) {
+        final List<MemTable> newFlushing = new ArrayList<>(flushing);
+        newFlushing.removeIf(table -> table == flushed);
+        final NavigableMap<Integer, SSTable> newSSTables = new TreeMap<>(ssTables);
+        newSSTables.put(ssTable.generation(), ssTable);
+        return new TableSet(memTable, newFlushing, newSSTables);
+    }
+
+    /**
+     * Replaces compacted tables with the result of their compaction.
+     */
+    @NotNull
+    TableSet compacted(
+            @NotNull final Collection<SSTable> replaced,
+            @NotNull final Collection<SSTable> result) {
+        final NavigableMap<Integer, SSTable> newSSTables = new TreeMap<>(ssTables);
+        for (final SSTable ssTable : replaced) {
+            newSSTables.remove(ssTable.generation());
+        }
+        for (final SSTable ssTable : result) {
+            newSSTables.put(ssTable.generation(), ssTable);
+        }
+        return new TableSet(memTable, flushing, newSSTables);
+    }
+}
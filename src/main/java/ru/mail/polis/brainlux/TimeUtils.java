@@ -1,19 +1,30 @@
 package ru.mail.polis.brainlux;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 final class TimeUtils {
-    private static long lastTime;
-    private static int counter;
+    private static final AtomicLong LAST_TIME = new AtomicLong();
 
     private TimeUtils() {
     }
 
+    /**
+     * Returns current time in nanoseconds of millisecond precision, unique and growing across all threads.
+     */
     static long getTimeNanos() {
-        final long currentTime = System.currentTimeMillis();
-        if (currentTime != lastTime) {
-            lastTime = currentTime;
-            counter = 0;
-        }
-        return currentTime * 1_000_000 + counter++;
+        return getTimeNanos(1);
+    }
+
+    /**
+     * Reserves the given number of consecutive timestamps.
+     *
+     * @param count number of timestamps
+     * @return the first of the timestamps
+     */
+    static long getTimeNanos(final int count) {
+        assert count > 0;
+        final long currentTime = System.currentTimeMillis() * 1_000_000;
+        return LAST_TIME.updateAndGet(last -> Math.max(last + count, currentTime + count - 1)) - count + 1;
     }
 
 }
@@ -6,11 +6,34 @@ import java.nio.ByteBuffer;
 
 public final class Value implements Comparable<Value> {
     private final long ts;
+    // Buffer holding the data at offset, null for tombstone
     private final ByteBuffer data;
+    private final int offset;
+    private final int size;
 
     Value(final long ts, final ByteBuffer data) {
         this.ts = ts;
         this.data = data;
+        this.offset = data == null ? 0 : data.position();
+        this.size = data == null ? 0 : data.remaining();
+    }
+
+    /**
+     * Creates value stored in a part of the buffer, its view is made only when the data is read.
+     *
+     * @param buffer buffer holding the data
+     * @param offset offset of the data in the buffer
+     * @param size   size of the data
+     */
+    Value(
+            final long ts,
+            @NotNull final ByteBuffer buffer,
+            final int offset,
+            final int size) {
+        this.ts = ts;
+        this.data = buffer;
+        this.offset = offset;
+        this.size = size;
     }
 
     public static Value of(final ByteBuffer data) {
@@ -29,7 +52,17 @@ public final class Value implements Comparable<Value> {
         if (data == null) {
             throw new IllegalArgumentException("Cell data is null");
         }
-        return data.asReadOnlyBuffer();
+        final ByteBuffer result = data.asReadOnlyBuffer();
+        result.limit(offset + size);
+        result.position(offset);
+        return offset == 0 ? result : result.slice();
+    }
+
+    /**
+     * Returns size of the data without making its view, 0 for tombstone.
+     */
+    int dataSize() {
+        return size;
     }
 
     @Override
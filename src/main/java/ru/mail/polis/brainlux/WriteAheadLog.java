@@ -0,0 +1,276 @@
+package ru.mail.polis.brainlux;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Segment of the write-ahead log holding the writes of a single {@link MemTable}.
+ * Record is {@code [int length][int crc]} followed by its writes, one for a single write and many for a
+ * {@link WriteBatch}, each one {@code [int keySize][key][int valueSize, -1 for tombstone][value]}.
+ * A torn record at the end of the segment is dropped on replay as a whole.
+ */
+final class WriteAheadLog implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
+    private static final int HEADER = Integer.BYTES * 2;
+    private static final int TOMBSTONE = -1;
+    static final int MAX_RECORD = Integer.MAX_VALUE - HEADER;
+
+    private final File file;
+    private final FileChannel channel;
+    private final Object syncLock = new Object();
+    // Guarded by this
+    private long written;
+    private boolean closed;
+    // Guarded by syncLock
+    private long synced;
+    private boolean syncing;
+
+    WriteAheadLog(@NotNull final File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    @NotNull
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Appends write to the log.
+     *
+     * @param key   key of the write
+     * @param value written value or null for removal
+     * @return position to pass to {@link #sync(long)} to make the write durable
+     * @throws IOException if an I/O error occurred
+     */
+    long append(
+            @NotNull final ByteBuffer key,
+            @Nullable final ByteBuffer value) throws IOException {
+        final int length = entrySize(key, value);
+        final ByteBuffer record = ByteBuffer.allocate(HEADER + length);
+        record.position(HEADER);
+        putEntry(record, key, value);
+        return write(record, length);
+    }
+
+    /**
+     * Appends writes of the batch to the log as a single record, so that they are replayed all or none.
+     *
+     * @return position to pass to {@link #sync(long)} to make the writes durable
+     * @throws IOException if an I/O error occurred
+     */
+    long append(@NotNull final WriteBatch batch) throws IOException {
+        final int length = batch.logSize();
+        final ByteBuffer record = ByteBuffer.allocate(HEADER + length);
+        record.position(HEADER);
+        for (int i = 0; i < batch.size(); i++) {
+            putEntry(record, batch.key(i), batch.value(i));
+        }
+        return write(record, length);
+    }
+
+    static int entrySize(
+            @NotNull final ByteBuffer key,
+            @Nullable final ByteBuffer value) {
+        return Integer.BYTES * 2 + key.remaining() + (value == null ? 0 : value.remaining());
+    }
+
+    private static void putEntry(
+            @NotNull final ByteBuffer record,
+            @NotNull final ByteBuffer key,
+            @Nullable final ByteBuffer value) {
+        record.putInt(key.remaining());
+        record.put(key.duplicate());
+        if (value == null) {
+            record.putInt(TOMBSTONE);
+        } else {
+            record.putInt(value.remaining());
+            record.put(value.duplicate());
+        }
+    }
+
+    private long write(
+            @NotNull final ByteBuffer record,
+            final int length) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER, length);
+        record.putInt(0, length);
+        record.putInt(Integer.BYTES, (int) crc.getValue());
+        record.rewind();
+
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Write-ahead log is closed: " + file);
+            }
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            written += record.capacity();
+            return written;
+        }
+    }
+
+    /**
+     * Forces the log at least up to the position. Writers calling it concurrently share one force.
+     *
+     * @param position position returned by {@link #append(ByteBuffer, ByteBuffer)}
+     * @throws IOException if an I/O error occurred
+     */
+    void sync(final long position) throws IOException {
+        while (true) {
+            synchronized (syncLock) {
+                while (syncing && synced < position) {
+                    try {
+                        syncLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for log sync");
+                    }
+                }
+                if (synced >= position) {
+                    return;
+                }
+                syncing = true;
+            }
+
+            // Everything written so far goes with this force
+            long target = 0;
+            try {
+                synchronized (this) {
+                    if (!closed) {
+                        target = written;
+                    }
+                }
+                if (target > 0) {
+                    channel.force(false);
+                }
+            } catch (ClosedChannelException e) {
+                // Closed while forcing
+                target = 0;
+            } finally {
+                synchronized (syncLock) {
+                    syncing = false;
+                    synced = Math.max(synced, target);
+                    syncLock.notifyAll();
+                }
+            }
+            if (target == 0) {
+                // Closed once the memTable was flushed, so the writes are on disk anyway
+                return;
+            }
+        }
+    }
+
+    /**
+     * Forces everything appended so far.
+     *
+     * @throws IOException if an I/O error occurred
+     */
+    void sync() throws IOException {
+        final long position;
+        synchronized (this) {
+            position = written;
+        }
+        sync(position);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        channel.close();
+    }
+
+    /**
+     * Closes and removes the segment once its memTable is flushed.
+     *
+     * @throws IOException if an I/O error occurred
+     */
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(file.toPath());
+    }
+
+    /**
+     * Applies writes of the segment to the table in the order they were made.
+     *
+     * @param file  segment file
+     * @param table table to fill
+     * @throws IOException if an I/O error occurred
+     */
+    static void replay(
+            @NotNull final File file,
+            @NotNull final Table table) throws IOException {
+        final ByteBuffer buffer;
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = ByteBuffer.allocate((int) fc.size());
+            while (buffer.hasRemaining()) {
+                if (fc.read(buffer) < 0) {
+                    throw new IOException("Truncated write-ahead log " + file);
+                }
+            }
+        }
+        buffer.flip();
+
+        final CRC32 crc = new CRC32();
+        while (buffer.remaining() >= HEADER) {
+            final int length = buffer.getInt(buffer.position());
+            final int checksum = buffer.getInt(buffer.position() + Integer.BYTES);
+            if (length < Integer.BYTES * 2 || length > buffer.remaining() - HEADER) {
+                break;
+            }
+            crc.reset();
+            crc.update(buffer.array(), buffer.position() + HEADER, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            buffer.position(buffer.position() + HEADER);
+            final ByteBuffer record = buffer.slice();
+            record.limit(length);
+            buffer.position(buffer.position() + length);
+
+            while (record.hasRemaining()) {
+                final ByteBuffer key = slice(record, record.getInt());
+                final int valueSize = record.getInt();
+                if (valueSize == TOMBSTONE) {
+                    table.remove(key);
+                } else {
+                    table.upsert(key, slice(record, valueSize));
+                }
+            }
+        }
+        if (buffer.hasRemaining()) {
+            log.warn("Dropped {} bytes of torn writes at the end of {}", buffer.remaining(), file);
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer slice(
+            @NotNull final ByteBuffer record,
+            final int size) throws IOException {
+        if (size < 0 || size > record.remaining()) {
+            throw new IOException("Corrupted write-ahead log record");
+        }
+        final ByteBuffer result = record.slice();
+        result.limit(size);
+        record.position(record.position() + size);
+        return result;
+    }
+}
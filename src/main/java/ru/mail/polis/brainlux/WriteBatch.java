@@ -0,0 +1,70 @@
+package ru.mail.polis.brainlux;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes applied together by {@link LSMDao#write(WriteBatch)}, later writes of a key win over earlier ones.
+ * Buffers are not copied, so they must not change until the batch is written.
+ */
+public final class WriteBatch {
+    private final List<ByteBuffer> keys = new ArrayList<>();
+    // Null stands for removal
+    private final List<ByteBuffer> values = new ArrayList<>();
+    private long logSize;
+
+    @NotNull
+    public WriteBatch upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value) {
+        return add(key, value);
+    }
+
+    @NotNull
+    public WriteBatch remove(@NotNull final ByteBuffer key) {
+        return add(key, null);
+    }
+
+    @NotNull
+    private WriteBatch add(
+            @NotNull final ByteBuffer key,
+            @Nullable final ByteBuffer value) {
+        final long size = logSize + WriteAheadLog.entrySize(key, value);
+        if (size > WriteAheadLog.MAX_RECORD) {
+            throw new IllegalArgumentException("Batch is too large: " + size + " bytes");
+        }
+        keys.add(key.duplicate());
+        values.add(value == null ? null : value.duplicate());
+        logSize = size;
+        return this;
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    @NotNull
+    ByteBuffer key(final int i) {
+        return keys.get(i);
+    }
+
+    @Nullable
+    ByteBuffer value(final int i) {
+        return values.get(i);
+    }
+
+    /**
+     * Returns size of the batch in the write-ahead log record.
+     */
+    int logSize() {
+        return (int) logSize;
+    }
+}
@@ -0,0 +1,141 @@
+package ru.mail.polis;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.brainlux.Config;
+import ru.mail.polis.brainlux.LSMDao;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link LSMDao} reading tables of the original format, which have neither a footer nor a filter
+ */
+class BaselineFormatTest {
+    private static final int KEYS = 3_000;
+
+    @Test
+    void read(@TempDir File data) throws IOException {
+        final TreeMap<ByteBuffer, ByteBuffer> expected = writeBaseline(new File(data, "SSTABLE1.db"));
+
+        try (DAO dao = open(data)) {
+            assertContains(dao, expected);
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(1)));
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(KEYS * 3)));
+
+            // Range inside the single block of the table
+            final ByteBuffer from = key(1_000);
+            final ByteBuffer to = key(2_000);
+            final Iterator<Record> range = dao.range(from, to);
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.subMap(from, to).entrySet()) {
+                final Record record = range.next();
+                assertEquals(entry.getKey(), record.getKey());
+                assertEquals(entry.getValue(), record.getValue());
+            }
+            assertFalse(range.hasNext());
+        }
+    }
+
+    @Test
+    void compact(@TempDir File data) throws IOException {
+        final File baseline = new File(data, "SSTABLE1.db");
+        final TreeMap<ByteBuffer, ByteBuffer> expected = writeBaseline(baseline);
+
+        try (DAO dao = open(data)) {
+            final ByteBuffer updated = expected.firstKey();
+            dao.upsert(updated, value(-1));
+            expected.put(updated, value(-1));
+            dao.compact();
+            assertFalse(baseline.exists());
+            assertContains(dao, expected);
+        }
+
+        // Rewritten in the current format
+        try (DAO dao = open(data)) {
+            assertContains(dao, expected);
+        }
+    }
+
+    /**
+     * Writes table of the original format: cells {@code [int keySize][key][long timestamp, negative for tombstone]
+     * [int valueSize][value]}, the value and its size omitted for tombstones, then the offsets of the cells
+     * and their count. Every tenth key is removed.
+     *
+     * @return live keys of the table with their values
+     */
+    private static TreeMap<ByteBuffer, ByteBuffer> writeBaseline(final File file) throws IOException {
+        final TreeMap<ByteBuffer, ByteBuffer> live = new TreeMap<>();
+        final List<Integer> offsets = new ArrayList<>();
+        int offset = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            for (int i = 0; i < KEYS; i++) {
+                offsets.add(offset);
+                final ByteBuffer key = key(i * 3);
+                out.writeInt(key.remaining());
+                out.write(key.array());
+                offset += Integer.BYTES + key.remaining() + Long.BYTES;
+                if (i % 10 == 0) {
+                    out.writeLong(-(i + 1L));
+                } else {
+                    final ByteBuffer value = value(i);
+                    out.writeLong(i + 1L);
+                    out.writeInt(value.remaining());
+                    out.write(value.array());
+                    offset += Integer.BYTES + value.remaining();
+                    live.put(key, value);
+                }
+            }
+            for (final int cellOffset : offsets) {
+                out.writeInt(cellOffset);
+            }
+            out.writeInt(offsets.size());
+        }
+        assertTrue(file.length() > 0);
+        return live;
+    }
+
+    private static void assertContains(
+            final DAO dao,
+            final TreeMap<ByteBuffer, ByteBuffer> expected) throws IOException {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+        // Removed by a tombstone of the table
+        assertThrows(NoSuchElementException.class, () -> dao.get(key(30)));
+        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    private static DAO open(final File data) throws IOException {
+        return new LSMDao(data, Config.builder(1024 * 1024).build());
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%08d", i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer value(final int i) {
+        return ByteBuffer.wrap(("value of " + i).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,127 @@
+package ru.mail.polis;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Concurrency tests for {@link DAO} implementations
+ */
+class ConcurrentTest extends TestBase {
+    private static final int THREADS = 4;
+
+    @Test
+    void parallelWrites(@TempDir File data) throws Exception {
+        final int keysPerThread = 2_000;
+        final Map<ByteBuffer, ByteBuffer> written = new ConcurrentHashMap<>();
+
+        try (DAO dao = DAOFactory.create(data)) {
+            runInParallel(thread -> {
+                for (int i = 0; i < keysPerThread; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    written.put(key, value);
+                }
+                return null;
+            });
+
+            assertEquals(THREADS * keysPerThread, written.size());
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : written.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+
+        // Check that nothing was lost on flush
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : written.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    void readersSeeCompleteValues(@TempDir File data) throws Exception {
+        final int keyCount = 100;
+        final int rounds = 50;
+        final List<ByteBuffer> keys = new ArrayList<>(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            keys.add(randomKey());
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final ByteBuffer key : keys) {
+                dao.upsert(key, join(key, randomValue()));
+            }
+
+            runInParallel(thread -> {
+                for (int round = 0; round < rounds; round++) {
+                    for (final ByteBuffer key : keys) {
+                        if (thread % 2 == 0) {
+                            dao.upsert(key, join(key, randomValue()));
+                        } else {
+                            // Every value starts with its key whichever version is read
+                            final ByteBuffer value = dao.get(key);
+                            assertEquals(key, value.duplicate().limit(KEY_LENGTH));
+                        }
+                    }
+                }
+                return null;
+            });
+
+            // Range reads are not broken by the writes either
+            int count = 0;
+            ByteBuffer previous = null;
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            while (records.hasNext()) {
+                final ByteBuffer key = records.next().getKey();
+                assertTrue(previous == null || previous.compareTo(key) < 0);
+                previous = key;
+                count++;
+            }
+            assertEquals(keyCount, count);
+        }
+    }
+
+    private static void runInParallel(final Task task) throws IOException, InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final Collection<Future<Void>> futures = new ArrayList<>(THREADS);
+            for (int i = 0; i < THREADS; i++) {
+                final int thread = i;
+                futures.add(executor.submit(() -> task.run(thread)));
+            }
+            for (final Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new AssertionError(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @FunctionalInterface
+    private interface Task {
+        Void run(int thread) throws IOException;
+    }
+}
@@ -0,0 +1,92 @@
+package ru.mail.polis;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.brainlux.LSMDao;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link LSMDao} recovering from flushes failed in background
+ */
+class FlushFailureTest extends TestBase {
+    private static final long FLUSH_THRESHOLD = 64 * 1024;
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+
+    @Test
+    void writersRetry(@TempDir File data) {
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            try (DAO dao = new LSMDao(data, FLUSH_THRESHOLD)) {
+                failFirstFlush(data);
+                int failures = 0;
+                for (int i = 0; i < 1_000; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = randomValue();
+                    try {
+                        dao.upsert(key, value);
+                    } catch (IOException e) {
+                        // The write is applied, only its flush is reported
+                        failures++;
+                    }
+                    expected.put(key, value);
+                }
+                assertEquals(1, failures);
+                assertContains(dao, expected);
+            }
+        });
+        assertReopened(data, expected);
+    }
+
+    @Test
+    void closeRetries(@TempDir File data) {
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            try (DAO dao = new LSMDao(data, FLUSH_THRESHOLD)) {
+                failFirstFlush(data);
+                // Enough for a single flush, which fails and is left to close
+                for (int i = 0; i < 100; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+        });
+        assertReopened(data, expected);
+    }
+
+    /**
+     * Takes the name of the first temporary table, so that writing it fails.
+     */
+    private static void failFirstFlush(final File data) {
+        assertTrue(new File(data, "SSTABLE-0.tmp").mkdir());
+    }
+
+    private static void assertReopened(
+            final File data,
+            final Map<ByteBuffer, ByteBuffer> expected) {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            try (DAO dao = new LSMDao(data, FLUSH_THRESHOLD)) {
+                assertContains(dao, expected);
+            }
+        });
+    }
+
+    private static void assertContains(
+            final DAO dao,
+            final Map<ByteBuffer, ByteBuffer> expected) throws IOException {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package ru.mail.polis;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.brainlux.LSMDao;
+import ru.mail.polis.brainlux.Metrics;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of flushes of memTables which {@link DAOFactory} keeps off heap
+ */
+class OffHeapFlushTest extends TestBase {
+    // About 40 MB of keys and values
+    private static final int RECORDS = 40_000;
+
+    @Test
+    void fewerLargerFlushes(@TempDir File data) throws IOException {
+        final File offHeap = new File(data, "offHeap");
+        final File onHeap = new File(data, "onHeap");
+        assertTrue(offHeap.mkdir());
+        assertTrue(onHeap.mkdir());
+
+        final Metrics offHeapMetrics = fill((LSMDao) DAOFactory.create(offHeap));
+        // The storage as it was set up before memTables moved off heap
+        final Metrics onHeapMetrics = fill(new LSMDao(onHeap, DAOFactory.MAX_HEAP / 60));
+
+        final long offHeapFlushes = offHeapMetrics.count(Metrics.Counter.FLUSHES);
+        final long onHeapFlushes = onHeapMetrics.count(Metrics.Counter.FLUSHES);
+        assertTrue(offHeapFlushes * 4 <= onHeapFlushes, offHeapFlushes + " vs " + onHeapFlushes + " flushes");
+        final long offHeapFlushSize = offHeapMetrics.count(Metrics.Counter.FLUSHED_BYTES) / offHeapFlushes;
+        final long onHeapFlushSize = onHeapMetrics.count(Metrics.Counter.FLUSHED_BYTES) / onHeapFlushes;
+        assertTrue(offHeapFlushSize >= onHeapFlushSize * 4, offHeapFlushSize + " vs " + onHeapFlushSize + " bytes");
+    }
+
+    /**
+     * Writes the records and closes the storage, which flushes whatever is left in memory.
+     */
+    @NotNull
+    private static Metrics fill(@NotNull final LSMDao dao) throws IOException {
+        try (dao) {
+            for (int i = 0; i < RECORDS; i++) {
+                dao.upsert(randomKey(), randomValue());
+            }
+            return dao.metrics();
+        }
+    }
+}
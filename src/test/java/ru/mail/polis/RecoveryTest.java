@@ -0,0 +1,101 @@
+package ru.mail.polis;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Crash recovery tests for {@link DAO} implementations
+ */
+class RecoveryTest extends TestBase {
+    @Test
+    void unclosed(@TempDir File data) throws IOException {
+        final int keyCount = 1_000;
+        final Map<ByteBuffer, ByteBuffer> entries = new HashMap<>(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            entries.put(randomKey(), randomValue());
+        }
+        final ByteBuffer removed = randomKey();
+
+        // Never closed, as if the process crashed
+        final DAO crashed = DAOFactory.create(data);
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+            crashed.upsert(entry.getKey(), entry.getValue());
+        }
+        crashed.upsert(removed, randomValue());
+        crashed.remove(removed);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+
+        // Recovered data is persisted like any other
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    void overwrittenAfterFlush(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, randomValue());
+        }
+
+        // Replayed write has to win over the flushed one
+        final DAO crashed = DAOFactory.create(data);
+        crashed.upsert(key, value);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+        }
+    }
+
+    @Test
+    void orphanedFilters(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+        }
+
+        // Left by installs interrupted between moving the filter and the table
+        final File[] orphans = {new File(data, "SSTABLE-5.bf"), new File(data, "SSTABLE7-L1.bf")};
+        for (final File orphan : orphans) {
+            assertTrue(orphan.createNewFile());
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+        }
+        for (final File orphan : orphans) {
+            assertFalse(orphan.exists());
+        }
+        final File[] filters = data.listFiles((dir, name) -> name.endsWith(".bf"));
+        assertNotNull(filters);
+        assertTrue(filters.length > 0);
+        for (final File filter : filters) {
+            final String name = filter.getName();
+            assertTrue(new File(data, name.substring(0, name.length() - ".bf".length()) + ".db").exists());
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package ru.mail.polis;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.brainlux.Config;
+import ru.mail.polis.brainlux.LSMDao;
+import ru.mail.polis.brainlux.Metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of parallel range scans of {@link LSMDao}
+ */
+class StreamTest extends TestBase {
+    private static final int KEYS = 2_000;
+
+    @Test
+    void parallelScan(@TempDir File data) throws IOException {
+        final TreeMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            // Removals and fresh writes stay in the memTable over the tables on disk
+            final List<ByteBuffer> keys = new ArrayList<>(expected.keySet());
+            for (int i = 0; i < keys.size(); i += 3) {
+                dao.remove(keys.get(i));
+                expected.remove(keys.get(i));
+            }
+            for (int i = 0; i < 100; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+
+            final LSMDao lsm = (LSMDao) dao;
+            assertEquals(expected, toMap(lsm.stream(ByteBuffer.allocate(0), null, true).collect(Collectors.toList())));
+
+            final ByteBuffer from = keys.get(keys.size() / 4);
+            final ByteBuffer to = keys.get(keys.size() * 3 / 4);
+            assertEquals(expected.subMap(from, to), toMap(lsm.stream(from, to, true).collect(Collectors.toList())));
+        }
+    }
+
+    @Test
+    void split(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(randomKey(), randomValue());
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            final Spliterator<Record> suffix = ((LSMDao) dao).spliterator(ByteBuffer.allocate(0), null);
+            final Spliterator<Record> prefix = suffix.trySplit();
+            assertNotNull(prefix);
+
+            final List<Record> records = new ArrayList<>();
+            prefix.forEachRemaining(records::add);
+            final int prefixSize = records.size();
+            suffix.forEachRemaining(records::add);
+            assertEquals(KEYS, records.size());
+
+            // Parts are ordered and together give the same records as the iterator
+            final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+            for (final Record record : records) {
+                assertEquals(iterator.next(), record);
+            }
+            assertTrue(prefixSize > 0 && prefixSize < KEYS);
+        }
+    }
+
+    @Test
+    void estimateCountsMemTables(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(randomKey(), randomValue());
+            }
+            assertEquals(KEYS, ((LSMDao) dao).spliterator(ByteBuffer.allocate(0), null).estimateSize());
+        }
+    }
+
+    @Test
+    void partsHoldOffHeapSnapshot(@TempDir File data) throws IOException {
+        final Config config = Config.builder(1024 * 1024).offHeapBudget(4 * 1024 * 1024).build();
+        try (LSMDao dao = new LSMDao(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(randomKey(), randomValue());
+            }
+            dao.compact();
+            for (int i = 0; i < 100; i++) {
+                dao.upsert(randomKey(), randomValue());
+            }
+            final Spliterator<Record> suffix = dao.spliterator(ByteBuffer.allocate(0), null);
+            final Spliterator<Record> prefix = suffix.trySplit();
+            assertNotNull(prefix);
+            final double reserved = dao.metrics().gauge(Metrics.Gauge.OFF_HEAP_BYTES);
+            assertTrue(reserved > 0);
+
+            // The flushed memTable is freed only once both parts are read to their end
+            dao.compact();
+            final List<Record> records = new ArrayList<>();
+            prefix.forEachRemaining(records::add);
+            assertEquals(reserved, dao.metrics().gauge(Metrics.Gauge.OFF_HEAP_BYTES));
+            suffix.forEachRemaining(records::add);
+            assertFalse(suffix.tryAdvance(records::add));
+            assertEquals(0.0, dao.metrics().gauge(Metrics.Gauge.OFF_HEAP_BYTES));
+            assertEquals(KEYS + 100, records.size());
+        }
+    }
+
+    /**
+     * Collects the records checking that they come in the order of their keys.
+     */
+    private static Map<ByteBuffer, ByteBuffer> toMap(final List<Record> records) {
+        final Map<ByteBuffer, ByteBuffer> result = new LinkedHashMap<>();
+        for (final Record record : records) {
+            result.put(record.getKey(), record.getValue());
+        }
+        assertEquals(new ArrayList<>(new TreeMap<>(result).keySet()), new ArrayList<>(result.keySet()));
+        assertEquals(records.size(), result.size());
+        return result;
+    }
+}
@@ -0,0 +1,119 @@
+package ru.mail.polis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.brainlux.LSMDao;
+import ru.mail.polis.brainlux.WriteBatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link WriteBatch} applied by {@link LSMDao}
+ */
+class WriteBatchTest extends TestBase {
+    @Test
+    void applied(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer removed = randomKey();
+        final ByteBuffer overwritten = randomKey();
+        final ByteBuffer value = randomValue();
+        final ByteBuffer latest = randomValue();
+
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(removed, randomValue());
+            final WriteBatch batch = new WriteBatch()
+                    .upsert(key, value)
+                    .remove(removed)
+                    .upsert(overwritten, randomValue())
+                    .upsert(overwritten, latest);
+            assertEquals(4, batch.size());
+            ((LSMDao) dao).write(batch);
+
+            assertEquals(value, dao.get(key));
+            assertEquals(latest, dao.get(overwritten));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+            assertEquals(latest, dao.get(overwritten));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+    }
+
+    @Test
+    void unclosed(@TempDir File data) throws IOException {
+        final int keyCount = 1_000;
+        final Map<ByteBuffer, ByteBuffer> entries = new HashMap<>(keyCount);
+        final WriteBatch batch = new WriteBatch();
+        for (int i = 0; i < keyCount; i++) {
+            final ByteBuffer key = randomKey();
+            final ByteBuffer value = randomValue();
+            entries.put(key, value);
+            batch.upsert(key, value);
+        }
+
+        // Never closed, as if the process crashed
+        final DAO crashed = DAOFactory.create(data);
+        ((LSMDao) crashed).write(batch);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    void tornDroppedWhole(@TempDir File data) throws IOException {
+        final ByteBuffer single = randomKey();
+        final ByteBuffer value = randomValue();
+        final WriteBatch batch = new WriteBatch();
+        for (int i = 0; i < 100; i++) {
+            batch.upsert(randomKey(), randomValue());
+        }
+
+        final DAO crashed = DAOFactory.create(data);
+        crashed.upsert(single, value);
+        ((LSMDao) crashed).write(batch);
+
+        // Crash in the middle of the batch record
+        final File[] logs = data.listFiles((dir, name) -> name.endsWith(".log"));
+        assertNotNull(logs);
+        assertEquals(1, logs.length);
+        try (RandomAccessFile file = new RandomAccessFile(logs[0], "rw")) {
+            file.setLength(file.length() - 1);
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(single));
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            assertTrue(records.hasNext());
+            assertEquals(single, records.next().getKey());
+            assertFalse(records.hasNext());
+        }
+    }
+
+    @Test
+    void empty(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data)) {
+            final WriteBatch batch = new WriteBatch();
+            assertTrue(batch.isEmpty());
+            ((LSMDao) dao).write(batch);
+            assertFalse(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+        }
+    }
+}
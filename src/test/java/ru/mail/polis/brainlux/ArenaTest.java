@@ -0,0 +1,164 @@
+package ru.mail.polis.brainlux;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link Arena}, {@link SlabAllocator} and of {@link LSMDao} keeping memTables off heap
+ */
+class ArenaTest {
+    private static final int SLAB = 1024;
+    private static final long FLUSH_THRESHOLD = 64 * 1024;
+    private static final long BUDGET = 4 * 1024 * 1024;
+
+    @Test
+    void spillsToHeapOnceBudgetExhausted() {
+        final SlabAllocator allocator = new SlabAllocator(2 * SLAB, SLAB);
+        final Arena arena = new Arena(allocator);
+        // Each of them takes a slab of its own
+        final ByteBuffer first = arena.copy(bytes(600, 1));
+        final ByteBuffer second = arena.copy(bytes(600, 2));
+        final ByteBuffer third = arena.copy(bytes(600, 3));
+        assertTrue(first.isDirect());
+        assertTrue(second.isDirect());
+        assertFalse(third.isDirect());
+        assertEquals(bytes(600, 1), first);
+        assertEquals(bytes(600, 2), second);
+        assertEquals(bytes(600, 3), third);
+        assertEquals(2 * SLAB, allocator.reserved());
+        assertEquals(3 * 600, arena.sizeInBytes());
+
+        arena.release();
+        assertEquals(0, allocator.reserved());
+    }
+
+    @Test
+    void largerThanSlabGoesToHeap() {
+        final SlabAllocator allocator = new SlabAllocator(4 * SLAB, SLAB);
+        final Arena arena = new Arena(allocator);
+        final ByteBuffer large = arena.copy(bytes(SLAB + 1, 4));
+        assertFalse(large.isDirect());
+        assertEquals(bytes(SLAB + 1, 4), large);
+        assertEquals(0, allocator.reserved());
+        assertEquals(SLAB + 1, arena.sizeInBytes());
+    }
+
+    @Test
+    void recyclesReleasedSlabs() {
+        final SlabAllocator allocator = new SlabAllocator(SLAB, SLAB);
+        final Arena first = new Arena(allocator);
+        assertTrue(first.copy(bytes(100, 5)).isDirect());
+        assertTrue(first.copy(bytes(100, 6)).isDirect());
+        assertEquals(SLAB, allocator.reserved());
+        first.release();
+        assertEquals(0, allocator.reserved());
+
+        // The whole budget has been allocated once, so only the recycled slab is left
+        final Arena second = new Arena(allocator);
+        final ByteBuffer copy = second.copy(bytes(100, 7));
+        assertTrue(copy.isDirect());
+        assertEquals(bytes(100, 7), copy);
+        assertFalse(new Arena(allocator).copy(bytes(100, 8)).isDirect());
+    }
+
+    @Test
+    void lastReaderFreesMemTable() {
+        final SlabAllocator allocator = new SlabAllocator(4 * SLAB, SLAB);
+        final MemTable memTable = new MemTable(new Arena(allocator));
+        memTable.upsert(bytes(16, 1), bytes(100, 2));
+        assertTrue(memTable.retain());
+
+        // The owner lets the table go, the reader still holds it
+        memTable.release();
+        assertEquals(SLAB, allocator.reserved());
+        assertEquals(bytes(100, 2), memTable.get(bytes(16, 1)).getData());
+
+        memTable.release();
+        assertEquals(0, allocator.reserved());
+        assertFalse(memTable.retain());
+    }
+
+    @Test
+    void reservedFreedByFlush(@TempDir File data) throws IOException {
+        try (LSMDao dao = open(data)) {
+            for (int i = 0; i < 100; i++) {
+                dao.upsert(key(i), bytes(100, i));
+            }
+            assertTrue(dao.metrics().gauge(Metrics.Gauge.OFF_HEAP_BYTES) > 0);
+            dao.compact();
+            assertEquals(0.0, dao.metrics().gauge(Metrics.Gauge.OFF_HEAP_BYTES));
+            for (int i = 0; i < 100; i++) {
+                assertEquals(bytes(100, i), dao.get(key(i)));
+            }
+        }
+    }
+
+    @Test
+    void iteratorHoldsFlushedMemTable(@TempDir File data) throws IOException {
+        try (LSMDao dao = open(data)) {
+            for (int i = 0; i < 100; i++) {
+                dao.upsert(key(i), bytes(100, i));
+            }
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            assertEquals(key(0), records.next().getKey());
+            final double reserved = dao.metrics().gauge(Metrics.Gauge.OFF_HEAP_BYTES);
+
+            dao.compact();
+            assertEquals(reserved, dao.metrics().gauge(Metrics.Gauge.OFF_HEAP_BYTES));
+            for (int i = 1; i < 100; i++) {
+                final Record record = records.next();
+                assertEquals(key(i), record.getKey());
+                assertEquals(bytes(100, i), record.getValue());
+            }
+            assertFalse(records.hasNext());
+            assertEquals(0.0, dao.metrics().gauge(Metrics.Gauge.OFF_HEAP_BYTES));
+        }
+    }
+
+    @Test
+    void readsOutliveRecycledSlabs(@TempDir File data) throws IOException {
+        try (LSMDao dao = open(data)) {
+            dao.upsert(key(0), bytes(100, 1));
+            final ByteBuffer value = dao.get(key(0));
+            final Iterator<Record> records = dao.iterator(key(0));
+            final Record record = records.next();
+            assertFalse(records.hasNext());
+
+            // The slab of the flushed memTable is taken by the next one
+            dao.compact();
+            dao.upsert(key(1), bytes(100, 2));
+            assertEquals(bytes(100, 1), value);
+            assertEquals(bytes(100, 1), record.getValue());
+            assertEquals(key(0), record.getKey());
+        }
+    }
+
+    private static LSMDao open(final File data) throws IOException {
+        return new LSMDao(data, Config.builder(FLUSH_THRESHOLD).offHeapBudget(BUDGET).build());
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%05d", i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer bytes(
+            final int size,
+            final int seed) {
+        final byte[] result = new byte[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = (byte) (seed + i);
+        }
+        return ByteBuffer.wrap(result);
+    }
+}
@@ -0,0 +1,203 @@
+package ru.mail.polis.brainlux;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link BlockCache}
+ */
+class BlockCacheTest {
+    private static final int STRIPES = 16;
+    private static final int ENTRY = 1024;
+    // Every stripe fits 20 blocks
+    private static final long CAPACITY = STRIPES * 20L * (ENTRY + 128);
+
+    @Test
+    void hitsAndMisses() {
+        final Metrics metrics = new Metrics();
+        final BlockCache cache = new BlockCache(CAPACITY, metrics);
+        final int table = cache.newTable();
+        final Block block = new FakeBlock(ENTRY);
+        assertNull(cache.get(table, 0));
+        cache.put(table, 0, block);
+        assertSame(block, cache.get(table, 0));
+        assertNull(cache.get(cache.newTable(), 0));
+        assertEquals(1, metrics.count(Metrics.Counter.BLOCK_CACHE_HITS));
+        assertEquals(2, metrics.count(Metrics.Counter.BLOCK_CACHE_MISSES));
+        assertEquals(ENTRY + 128, cache.sizeInBytes());
+    }
+
+    @Test
+    void scanKeepsPromoted() {
+        final Metrics metrics = new Metrics();
+        final BlockCache cache = new BlockCache(CAPACITY, metrics);
+        final int hot = cache.newTable();
+        // Blocks of the hot table land in every stripe and move to the protected segment on their second read
+        for (int block = 0; block < STRIPES * 2; block++) {
+            cache.put(hot, block, new FakeBlock(ENTRY));
+            assertNotNull(cache.get(hot, block));
+        }
+
+        // Scan of many tables read once
+        for (int table = 0; table < 100; table++) {
+            final int cold = cache.newTable();
+            for (int block = 0; block < 10; block++) {
+                cache.put(cold, block, new FakeBlock(ENTRY));
+            }
+        }
+        assertTrue(metrics.count(Metrics.Counter.BLOCK_CACHE_EVICTIONS) > 0);
+        assertTrue(cache.sizeInBytes() <= CAPACITY);
+        for (int block = 0; block < STRIPES * 2; block++) {
+            assertNotNull(cache.get(hot, block), "Evicted hot block " + block);
+        }
+    }
+
+    @Test
+    void evictsLeastRecent() {
+        final Metrics metrics = new Metrics();
+        final BlockCache cache = new BlockCache(CAPACITY, metrics);
+        final int first = cache.newTable();
+        for (int block = 0; block < 10; block++) {
+            cache.put(first, block, new FakeBlock(ENTRY));
+        }
+        // Ten times more blocks than fit push out the ones read once before them
+        final int next = cache.newTable();
+        for (int block = 0; block < STRIPES * 20 * 10; block++) {
+            cache.put(next, block, new FakeBlock(ENTRY));
+        }
+        for (int block = 0; block < 10; block++) {
+            assertNull(cache.get(first, block));
+        }
+        assertTrue(cache.sizeInBytes() <= CAPACITY);
+        assertEquals(
+                10 + STRIPES * 20 * 10 - cache.sizeInBytes() / (ENTRY + 128),
+                metrics.count(Metrics.Counter.BLOCK_CACHE_EVICTIONS));
+    }
+
+    @Test
+    void protectedOverflowDemoted() {
+        final BlockCache cache = new BlockCache(CAPACITY, new Metrics());
+        final int table = cache.newTable();
+        // Promote more blocks than the protected segments hold, the overflow goes back to probation
+        final int blocks = STRIPES * 20;
+        for (int block = 0; block < blocks; block++) {
+            cache.put(table, block, new FakeBlock(ENTRY));
+            cache.get(table, block);
+        }
+        int cached = 0;
+        for (int block = 0; block < blocks; block++) {
+            if (cache.get(table, block) != null) {
+                cached++;
+            }
+        }
+        assertTrue(cached > blocks / 2, "Cached " + cached);
+        assertTrue(cache.sizeInBytes() <= CAPACITY);
+    }
+
+    @Test
+    void invalidate() {
+        final BlockCache cache = new BlockCache(CAPACITY, new Metrics());
+        final int dropped = cache.newTable();
+        final int kept = cache.newTable();
+        for (int block = 0; block < 8; block++) {
+            cache.put(dropped, block, new FakeBlock(ENTRY));
+            cache.put(kept, block, new FakeBlock(ENTRY));
+        }
+        // Promoted blocks are dropped too
+        assertNotNull(cache.get(dropped, 0));
+        cache.invalidate(dropped, 0, 8);
+        for (int block = 0; block < 8; block++) {
+            assertNull(cache.get(dropped, block));
+            assertNotNull(cache.get(kept, block));
+        }
+        assertEquals(8 * (ENTRY + 128), cache.sizeInBytes());
+    }
+
+    @Test
+    void evictedTableNotCachedAgain(@TempDir File data) throws IOException {
+        final List<Cell> cells = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            final ByteBuffer key = ByteBuffer.wrap(String.format("key%05d", i).getBytes(StandardCharsets.UTF_8));
+            cells.add(new Cell(key, new Value(i, ByteBuffer.allocate(32))));
+        }
+        final File file = new File(data, "SSTABLE1.db");
+        SSTable.write(cells.iterator(), file, Config.builder(0).blockSize(1024).build());
+        final BlockCache cache = new BlockCache(CAPACITY, new Metrics());
+        final SSTable table = new SSTable(file, 1, 0, cache);
+        assertNotNull(table.get(cells.get(500).getKey()));
+        assertTrue(cache.sizeInBytes() > 0);
+
+        // A reader still holding the replaced table gets its blocks past the cache
+        table.evict();
+        assertEquals(0, cache.sizeInBytes());
+        assertNotNull(table.get(cells.get(500).getKey()));
+        assertNotNull(table.iterator(cells.get(100).getKey()).next());
+        assertEquals(0, cache.sizeInBytes());
+    }
+
+    @Test
+    void oversizeBlockSkipped() {
+        final BlockCache cache = new BlockCache(CAPACITY, new Metrics());
+        final int table = cache.newTable();
+        cache.put(table, 0, new FakeBlock((int) (CAPACITY / STRIPES)));
+        assertNull(cache.get(table, 0));
+        assertEquals(0, cache.sizeInBytes());
+    }
+
+    /**
+     * Block of the given size without cells.
+     */
+    private static final class FakeBlock implements Block {
+        private final int size;
+
+        FakeBlock(final int size) {
+            this.size = size;
+        }
+
+        @Nullable
+        @Override
+        public Value get(@NotNull final ByteBuffer key) {
+            return null;
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
+            return Collections.emptyIterator();
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer firstKey() {
+            return ByteBuffer.allocate(0);
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer lastKey() {
+            return ByteBuffer.allocate(0);
+        }
+
+        @Override
+        public int sizeInBytes() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package ru.mail.polis.brainlux;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link BloomFilter} and its use by {@link LSMDao}
+ */
+class BloomFilterTest {
+    private static final int KEYS = 10_000;
+    private static final double FPP = 0.01;
+
+    @Test
+    void noFalseNegatives() {
+        final BloomFilter.Hashes hashes = new BloomFilter.Hashes();
+        for (int i = 0; i < KEYS; i++) {
+            hashes.add(key(i));
+        }
+        final BloomFilter filter = hashes.toFilter(FPP);
+        for (int i = 0; i < KEYS; i++) {
+            assertTrue(filter.mightContain(key(i)));
+        }
+    }
+
+    @Test
+    void falsePositiveRate() {
+        final BloomFilter.Hashes hashes = new BloomFilter.Hashes();
+        for (int i = 0; i < KEYS; i++) {
+            hashes.add(key(i));
+        }
+        final BloomFilter filter = hashes.toFilter(FPP);
+        final int probes = KEYS * 10;
+        int positives = 0;
+        for (int i = KEYS; i < KEYS + probes; i++) {
+            if (filter.mightContain(key(i))) {
+                positives++;
+            }
+        }
+        assertTrue(positives < probes * FPP * 2, "False positives: " + positives);
+    }
+
+    @Test
+    void probesReachUpperBits() {
+        // Bits of a filter for billions of keys, too large to allocate here
+        final long bitCount = 1L << 36;
+        final int probes = KEYS * 10;
+        int upper = 0;
+        for (int i = 0; i < KEYS; i++) {
+            final long hash = BloomFilter.hash(key(i));
+            for (int probe = 1; probe <= 10; probe++) {
+                final long bit = BloomFilter.bit(hash, probe, bitCount, true);
+                assertTrue(0 <= bit && bit < bitCount);
+                if (bit > Integer.MAX_VALUE) {
+                    upper++;
+                }
+                // Filters of the first format never got past 31 bits
+                assertTrue(BloomFilter.bit(hash, probe, bitCount, false) <= Integer.MAX_VALUE);
+            }
+        }
+        assertTrue(upper > probes * 0.9, "Probes past 31 bits: " + upper);
+    }
+
+    @Test
+    void readsBothFormats(@TempDir File data) throws IOException {
+        final BloomFilter.Hashes hashes = new BloomFilter.Hashes();
+        for (int i = 0; i < KEYS; i++) {
+            hashes.add(key(i));
+        }
+        final File file = new File(data, "SSTABLE1.bf");
+        hashes.toFilter(FPP).write(file, false);
+        assertContainsKeys(BloomFilter.read(file));
+
+        // The first format is [int hashes][int words][long bits]... with probes of 31 bits
+        final int words = 2048;
+        final int probes = 7;
+        final long[] bits = new long[words];
+        for (int i = 0; i < KEYS; i++) {
+            final long hash = BloomFilter.hash(key(i));
+            for (int probe = 1; probe <= probes; probe++) {
+                final long bit = BloomFilter.bit(hash, probe, (long) words * Long.SIZE, false);
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES * 2 + words * Long.BYTES);
+        buffer.putInt(probes).putInt(words).asLongBuffer().put(bits);
+        Files.write(file.toPath(), buffer.array());
+        assertContainsKeys(BloomFilter.read(file));
+    }
+
+    @Test
+    void hashIgnoresByteOrder() {
+        for (int size = 0; size < 24; size++) {
+            final byte[] bytes = new byte[size + 3];
+            ThreadLocalRandom.current().nextBytes(bytes);
+            final ByteBuffer big = ByteBuffer.wrap(bytes, 3, size);
+            final ByteBuffer little = ByteBuffer.wrap(bytes, 3, size).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals(BloomFilter.hash(big), BloomFilter.hash(little));
+            assertEquals(3, little.position());
+        }
+    }
+
+    @Test
+    void littleEndianGet(@TempDir File data) throws IOException {
+        final ByteBuffer key = key(42);
+        final ByteBuffer value = key(43);
+        try (LSMDao dao = new LSMDao(data, 1024 * 1024)) {
+            dao.upsert(key, value);
+        }
+
+        try (LSMDao dao = new LSMDao(data, 1024 * 1024)) {
+            assertEquals(value, dao.get(key.duplicate().order(ByteOrder.LITTLE_ENDIAN)));
+            assertEquals(1, dao.metrics().count(Metrics.Counter.TABLES_PROBED));
+            assertEquals(0, dao.metrics().count(Metrics.Counter.BLOOM_FILTER_SKIPS));
+        }
+    }
+
+    @Test
+    void counters(@TempDir File data) throws IOException {
+        // Large enough to keep all the keys in a single table
+        try (LSMDao dao = new LSMDao(data, 4 * 1024 * 1024)) {
+            // Even keys only, so odd ones are absent but inside the first and last keys of the table
+            for (int i = 0; i < KEYS; i += 2) {
+                dao.upsert(key(i), key(i));
+            }
+        }
+
+        try (LSMDao dao = new LSMDao(data, 4 * 1024 * 1024)) {
+            final Metrics metrics = dao.metrics();
+            for (int i = 0; i < KEYS; i += 2) {
+                assertEquals(key(i), dao.get(key(i)));
+            }
+            assertEquals(KEYS / 2, metrics.count(Metrics.Counter.TABLES_PROBED));
+            assertEquals(0, metrics.count(Metrics.Counter.BLOOM_FILTER_SKIPS));
+
+            // The last odd key is past the last key of the table
+            final int absentKeys = KEYS / 2 - 1;
+            for (int i = 1; i < KEYS - 1; i += 2) {
+                final ByteBuffer absent = key(i);
+                assertThrows(NoSuchElementException.class, () -> dao.get(absent));
+            }
+            final long skips = metrics.count(Metrics.Counter.BLOOM_FILTER_SKIPS);
+            final long falsePositives = metrics.count(Metrics.Counter.TABLES_PROBED) - KEYS / 2;
+            assertEquals(absentKeys, skips + falsePositives);
+            assertTrue(falsePositives < absentKeys * FPP * 2, "False positives: " + falsePositives);
+            assertEquals(falsePositives, metrics.count(Metrics.Counter.BLOOM_FILTER_FALSE_POSITIVES));
+            assertEquals(0, metrics.count(Metrics.Counter.FENCE_SKIPS));
+        }
+    }
+
+    private static void assertContainsKeys(@NotNull final BloomFilter filter) {
+        for (int i = 0; i < KEYS; i++) {
+            assertTrue(filter.mightContain(key(i)));
+        }
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%08d", i).getBytes(StandardCharsets.UTF_8));
+    }
+}
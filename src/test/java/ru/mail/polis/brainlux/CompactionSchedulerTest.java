@@ -0,0 +1,200 @@
+package ru.mail.polis.brainlux;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link CompactionScheduler} and of {@link LSMDao} compacting in background while it flushes
+ */
+class CompactionSchedulerTest {
+    private static final Pattern NAME = Pattern.compile("SSTABLE(\\d+)\\.db");
+    private static final int KEYS = 2_000;
+
+    @Test
+    void triggerSkipsWhileQueued() throws Exception {
+        final CompactionScheduler scheduler = new CompactionScheduler("test", 1, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Future<?> blocking = scheduler.submit(progress -> {
+            started.countDown();
+            await(release);
+        });
+        started.await();
+
+        // The first trigger waits behind the running job, the next ones would pick up the same tables
+        final AtomicInteger runs = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            scheduler.trigger(progress -> runs.incrementAndGet());
+        }
+        assertEquals(1, scheduler.queueDepth());
+        assertEquals(1, scheduler.running());
+
+        release.countDown();
+        blocking.get();
+        scheduler.submit(progress -> {
+        }).get();
+        assertEquals(1, runs.get());
+        assertEquals(0, scheduler.queueDepth());
+        scheduler.close();
+    }
+
+    @Test
+    void failedJobCompletesExceptionally() throws Exception {
+        final CompactionScheduler scheduler = new CompactionScheduler("test", 1, 1);
+        final Future<?> failed = scheduler.submit(progress -> {
+            throw new IOException("Expected");
+        });
+        final ExecutionException e = assertThrows(ExecutionException.class, failed::get);
+        assertTrue(e.getCause() instanceof IOException);
+        assertEquals(0, scheduler.running());
+        assertEquals(1.0, scheduler.progress());
+        scheduler.close();
+    }
+
+    /**
+     * Overwrites and removes a pool of keys with flushes running in background, so that compactions
+     * run while newer tables are flushed and the storage is compared with a model all along.
+     */
+    @Test
+    void flushesDuringCompactions(@TempDir File data) throws IOException {
+        final TreeMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (LSMDao dao = new LSMDao(data, 8 * 1024)) {
+            final Random random = new Random(7);
+            for (int i = 1; i <= 20_000; i++) {
+                final ByteBuffer key = key(random.nextInt(KEYS));
+                if (random.nextInt(10) == 0) {
+                    dao.remove(key);
+                    expected.remove(key);
+                } else {
+                    final byte[] value = new byte[64];
+                    random.nextBytes(value);
+                    dao.upsert(key, ByteBuffer.wrap(value));
+                    expected.put(key, ByteBuffer.wrap(value));
+                }
+                if (i % 5_000 == 0) {
+                    assertContains(dao, expected);
+                }
+            }
+            awaitCompactions(dao);
+            assertTrue(dao.metrics().count(Metrics.Counter.COMPACTIONS) > 0);
+            assertContains(dao, expected);
+            assertGenerationOrder(data);
+
+            dao.compact();
+            assertEquals(1.0, dao.metrics().gauge(Metrics.Gauge.TABLES));
+            assertContains(dao, expected);
+        }
+
+        try (LSMDao dao = new LSMDao(data, 8 * 1024)) {
+            assertContains(dao, expected);
+        }
+    }
+
+    private static void await(@NotNull final CountDownLatch latch) throws IOException {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted");
+        }
+    }
+
+    /**
+     * Waits until no flush or compaction is queued or running.
+     */
+    private static void awaitCompactions(@NotNull final LSMDao dao) {
+        final Metrics metrics = dao.metrics();
+        final long deadline = System.currentTimeMillis() + 60_000;
+        int idle = 0;
+        while (idle < 5) {
+            assertTrue(System.currentTimeMillis() < deadline, "Compactions didn't finish");
+            final boolean busy = metrics.gauge(Metrics.Gauge.FLUSH_QUEUE) > 0
+                    || metrics.gauge(Metrics.Gauge.COMPACTION_QUEUE) > 0
+                    || metrics.gauge(Metrics.Gauge.RUNNING_COMPACTIONS) > 0;
+            idle = busy ? 0 : idle + 1;
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    /**
+     * Checks that a table of a newer generation holds a newer cell of every key it shares with an older one,
+     * which is what point lookups stopping at the first found cell rely on.
+     */
+    private static void assertGenerationOrder(@NotNull final File data) throws IOException {
+        final TreeMap<Integer, SSTable> byGeneration = new TreeMap<>();
+        final File[] files = data.listFiles();
+        assertNotNull(files);
+        for (final File file : files) {
+            final Matcher matcher = NAME.matcher(file.getName());
+            if (matcher.matches()) {
+                final int generation = Integer.parseInt(matcher.group(1));
+                byGeneration.put(generation, new SSTable(file, generation, 0, null));
+            }
+        }
+        final Map<ByteBuffer, Long> latest = new HashMap<>();
+        for (final Map.Entry<Integer, SSTable> table : byGeneration.entrySet()) {
+            final Iterator<Cell> cells = table.getValue().iterator(ByteBuffer.allocate(0));
+            while (cells.hasNext()) {
+                final Cell cell = cells.next();
+                final long timestamp = cell.getValue().getTimeStamp();
+                final Long older = latest.put(cell.getKey(), timestamp);
+                assertTrue(older == null || older < timestamp, "Older cell in generation " + table.getKey());
+            }
+        }
+    }
+
+    private static void assertContains(
+            @NotNull final LSMDao dao,
+            @NotNull final TreeMap<ByteBuffer, ByteBuffer> expected) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer key = key(i);
+            if (expected.containsKey(key)) {
+                assertEquals(expected.get(key), dao.get(key));
+            } else {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            }
+        }
+        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%05d", i).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,336 @@
+package ru.mail.polis.brainlux;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link SizeTieredCompactionStrategy} and {@link LeveledCompactionStrategy},
+ * both of the choices they make and of {@link LSMDao} compacting with them
+ */
+class CompactionStrategyTest {
+    private static final Pattern NAME = Pattern.compile("SSTABLE(\\d+)(?:-L(\\d+))?\\.db");
+    private static final Config TABLES = Config.builder(0).build();
+
+    @TempDir
+    File tables;
+
+    @Test
+    void sizeTieredMergesSimilarRun() throws IOException {
+        final List<SSTable> level0 = List.of(
+                table(4, 0, 0, 100, 64),
+                table(3, 0, 0, 100, 64),
+                table(2, 0, 0, 100, 64),
+                table(1, 0, 0, 100, 64));
+        final Compaction compaction = new SizeTieredCompactionStrategy().select(List.of(level0));
+        assertNotNull(compaction);
+        assertEquals(level0, compaction.inputs());
+        assertEquals(0, compaction.outputLevel());
+
+        assertNull(new SizeTieredCompactionStrategy().select(List.of(level0.subList(0, 3))));
+    }
+
+    @Test
+    void sizeTieredStopsAtDifferentSize() throws IOException {
+        final SSTable small = table(5, 0, 0, 100, 64);
+        final SSTable big = table(6, 0, 0, 1_000, 64);
+        final List<SSTable> similar = List.of(
+                table(4, 0, 0, 100, 64),
+                table(3, 0, 0, 100, 64),
+                table(2, 0, 0, 100, 64));
+
+        // The run of the newest tables ends at the big old one
+        final List<SSTable> bigOldest = new ArrayList<>();
+        bigOldest.add(small);
+        bigOldest.addAll(similar);
+        bigOldest.add(big);
+        final Compaction compaction = new SizeTieredCompactionStrategy().select(List.of(bigOldest));
+        assertNotNull(compaction);
+        assertEquals(bigOldest.subList(0, 4), compaction.inputs());
+
+        // The big table cuts the run of the newest tables short
+        final List<SSTable> bigInside = new ArrayList<>();
+        bigInside.add(small);
+        bigInside.add(big);
+        bigInside.addAll(similar);
+        assertNull(new SizeTieredCompactionStrategy().select(List.of(bigInside)));
+    }
+
+    @Test
+    void sizeTieredMaxThreshold() throws IOException {
+        final List<SSTable> level0 = new ArrayList<>();
+        for (int generation = 5; generation > 0; generation--) {
+            level0.add(table(generation, 0, 0, 100, 64));
+        }
+        final Compaction compaction = new SizeTieredCompactionStrategy(2, 3, 0.5, 1.5).select(List.of(level0));
+        assertNotNull(compaction);
+        assertEquals(level0.subList(0, 3), compaction.inputs());
+    }
+
+    @Test
+    void sizeTieredSettings() {
+        assertThrows(IllegalArgumentException.class, () -> new SizeTieredCompactionStrategy(1, 4, 0.5, 1.5));
+        assertThrows(IllegalArgumentException.class, () -> new SizeTieredCompactionStrategy(4, 3, 0.5, 1.5));
+        assertThrows(IllegalArgumentException.class, () -> new SizeTieredCompactionStrategy(4, 8, 0.5, 0.9));
+    }
+
+    @Test
+    void leveledMergesLevel0WithOverlapping() throws IOException {
+        final List<SSTable> level0 = List.of(
+                table(10, 0, 0, 100, 64),
+                table(9, 0, 50, 150, 64),
+                table(8, 0, 100, 200, 64),
+                table(7, 0, 120, 250, 64));
+        final SSTable first = table(1, 1, 0, 100, 64);
+        final SSTable second = table(2, 1, 100, 200, 64);
+        final SSTable apart = table(3, 1, 300, 400, 64);
+        final LeveledCompactionStrategy strategy = new LeveledCompactionStrategy(4, 1024, 1024 * 1024, 10);
+
+        final Compaction compaction = strategy.select(List.of(level0, List.of(first, second, apart)));
+        assertNotNull(compaction);
+        final List<SSTable> expected = new ArrayList<>(level0);
+        expected.add(first);
+        expected.add(second);
+        assertEquals(expected, compaction.inputs());
+        assertEquals(1, compaction.outputLevel());
+        assertEquals(1024, compaction.maxFileSize());
+
+        assertNull(strategy.select(List.of(level0.subList(0, 3), List.of(first, second, apart))));
+    }
+
+    @Test
+    void leveledPushesOldestOverBudget() throws IOException {
+        final SSTable newer = table(5, 1, 0, 100, 64);
+        final SSTable older = table(3, 1, 100, 200, 64);
+        final SSTable overlapping = table(1, 2, 150, 250, 64);
+        final SSTable apart = table(2, 2, 300, 400, 64);
+        final List<List<SSTable>> levels = List.of(List.of(), List.of(newer, older), List.of(overlapping, apart));
+        final long level1 = newer.sizeInBytes() + older.sizeInBytes();
+
+        // Level 1 fits its budget exactly, level 2 fits ten times more
+        assertNull(new LeveledCompactionStrategy(4, 1024, level1, 10).select(levels));
+
+        final Compaction compaction = new LeveledCompactionStrategy(4, 1024, level1 - 1, 10).select(levels);
+        assertNotNull(compaction);
+        assertEquals(List.of(older, overlapping), compaction.inputs());
+        assertEquals(2, compaction.outputLevel());
+    }
+
+    @Test
+    void leveledBudgetGrowsByRatio() throws IOException {
+        final SSTable level1 = table(5, 1, 0, 10, 64);
+        final SSTable level2 = table(1, 2, 0, 100, 64);
+        final List<List<SSTable>> levels = List.of(List.of(), List.of(level1), List.of(level2));
+        final long budget = level1.sizeInBytes();
+
+        // Level 2 budget is twice the level 1 one
+        assertTrue(level2.sizeInBytes() > budget * 2);
+        final Compaction compaction = new LeveledCompactionStrategy(4, 1024, budget, 2).select(levels);
+        assertNotNull(compaction);
+        assertEquals(List.of(level2), compaction.inputs());
+        assertEquals(3, compaction.outputLevel());
+
+        assertNull(new LeveledCompactionStrategy(4, 1024, level2.sizeInBytes(), 2).select(levels));
+    }
+
+    @Test
+    void sizeTieredStorage(@TempDir File data) throws IOException {
+        final CompactionStrategy strategy = new SizeTieredCompactionStrategy();
+        try (LSMDao dao = open(data, strategy)) {
+            final TreeMap<ByteBuffer, ByteBuffer> expected = write(dao);
+            awaitCompactions(dao);
+            assertTrue(dao.metrics().count(Metrics.Counter.COMPACTIONS) > 0);
+            assertContains(dao, expected);
+
+            final List<List<SSTable>> levels = levels(data);
+            assertEquals(1, levels.size());
+            assertNull(strategy.select(levels));
+        }
+    }
+
+    @Test
+    void leveledStorage(@TempDir File data) throws IOException {
+        final LeveledCompactionStrategy strategy = new LeveledCompactionStrategy(4, 32 * 1024, 128 * 1024, 4);
+        try (LSMDao dao = open(data, strategy)) {
+            final TreeMap<ByteBuffer, ByteBuffer> expected = write(dao);
+            awaitCompactions(dao);
+            assertContains(dao, expected);
+
+            final List<List<SSTable>> levels = levels(data);
+            assertTrue(levels.size() > 2, "Levels: " + levels.size());
+            // Nothing left over budget
+            assertNull(strategy.select(levels));
+            long budget = 128 * 1024;
+            for (int level = 1; level < levels.size(); level++) {
+                long size = 0;
+                for (final SSTable table : levels.get(level)) {
+                    size += table.sizeInBytes();
+                }
+                assertTrue(size <= budget, "Level " + level + " of " + size + " bytes");
+                budget *= 4;
+                assertDisjoint(levels.get(level));
+            }
+        }
+
+        // Reopened storage reads the levels
+        try (LSMDao dao = open(data, strategy)) {
+            assertTrue(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+        }
+    }
+
+    private static void assertDisjoint(@NotNull final List<SSTable> level) {
+        final TreeMap<ByteBuffer, SSTable> byFirstKey = new TreeMap<>();
+        for (final SSTable table : level) {
+            byFirstKey.put(table.firstKey(), table);
+        }
+        ByteBuffer previousLast = null;
+        for (final SSTable table : byFirstKey.values()) {
+            assertTrue(previousLast == null || previousLast.compareTo(table.firstKey()) < 0);
+            previousLast = table.lastKey();
+        }
+    }
+
+    private static LSMDao open(
+            @NotNull final File data,
+            @NotNull final CompactionStrategy strategy) throws IOException {
+        return new LSMDao(data, Config.builder(32 * 1024)
+                .compactionStrategy(strategy)
+                .build());
+    }
+
+    /**
+     * Makes about a hundred flushes of upserts and removals of a pool of keys, so that keys get overwritten
+     * across tables.
+     */
+    private static TreeMap<ByteBuffer, ByteBuffer> write(@NotNull final LSMDao dao) throws IOException {
+        final Random random = new Random(3);
+        final TreeMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int i = 0; i < 10_000; i++) {
+            final ByteBuffer key = key(random.nextInt(3_000));
+            if (random.nextInt(10) == 0) {
+                dao.remove(key);
+                expected.remove(key);
+            } else {
+                final byte[] value = new byte[256];
+                random.nextBytes(value);
+                dao.upsert(key, ByteBuffer.wrap(value));
+                expected.put(key, ByteBuffer.wrap(value));
+            }
+        }
+        return expected;
+    }
+
+    /**
+     * Waits until no flush or compaction is queued or running.
+     */
+    private static void awaitCompactions(@NotNull final LSMDao dao) {
+        final Metrics metrics = dao.metrics();
+        final long deadline = System.currentTimeMillis() + 60_000;
+        int idle = 0;
+        while (idle < 5) {
+            assertTrue(System.currentTimeMillis() < deadline, "Compactions didn't finish");
+            final boolean busy = metrics.gauge(Metrics.Gauge.FLUSH_QUEUE) > 0
+                    || metrics.gauge(Metrics.Gauge.COMPACTION_QUEUE) > 0
+                    || metrics.gauge(Metrics.Gauge.RUNNING_COMPACTIONS) > 0;
+            idle = busy ? 0 : idle + 1;
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private static void assertContains(
+            @NotNull final LSMDao dao,
+            @NotNull final TreeMap<ByteBuffer, ByteBuffer> expected) throws IOException {
+        for (int i = 0; i < 3_000; i++) {
+            final ByteBuffer key = key(i);
+            if (expected.containsKey(key)) {
+                assertEquals(expected.get(key), dao.get(key));
+            } else {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            }
+        }
+        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    /**
+     * Opens tables of the storage by level as {@link LSMDao} hands them to strategies.
+     */
+    private static List<List<SSTable>> levels(@NotNull final File data) throws IOException {
+        final TreeMap<Integer, TreeMap<Integer, SSTable>> byLevel = new TreeMap<>();
+        final File[] files = data.listFiles();
+        assertNotNull(files);
+        for (final File file : files) {
+            final Matcher matcher = NAME.matcher(file.getName());
+            if (matcher.matches()) {
+                final int generation = Integer.parseInt(matcher.group(1));
+                final int level = matcher.group(2) == null ? 0 : Integer.parseInt(matcher.group(2));
+                byLevel.computeIfAbsent(level, l -> new TreeMap<>())
+                        .put(generation, new SSTable(file, generation, level, null));
+            }
+        }
+        final List<List<SSTable>> result = new ArrayList<>();
+        final int deepest = byLevel.isEmpty() ? 0 : byLevel.lastKey();
+        for (int level = 0; level <= deepest; level++) {
+            final TreeMap<Integer, SSTable> tables = byLevel.getOrDefault(level, new TreeMap<>());
+            result.add(new ArrayList<>(level == 0 ? tables.descendingMap().values() : tables.values()));
+        }
+        return result;
+    }
+
+    /**
+     * Writes table of the keys in the range with values of the given size.
+     */
+    @NotNull
+    private SSTable table(
+            final int generation,
+            final int level,
+            final int from,
+            final int to,
+            final int valueSize) throws IOException {
+        final Collection<Cell> cells = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            cells.add(new Cell(key(i), new Value(generation, ByteBuffer.allocate(valueSize))));
+        }
+        final File file = new File(tables, "SSTABLE" + generation + (level == 0 ? "" : "-L" + level) + ".db");
+        SSTable.write(cells.iterator(), file, TABLES);
+        return new SSTable(file, generation, level, null);
+    }
+
+    @NotNull
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%08d", i).getBytes(StandardCharsets.UTF_8));
+    }
+}
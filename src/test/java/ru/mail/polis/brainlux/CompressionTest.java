@@ -0,0 +1,198 @@
+package ru.mail.polis.brainlux;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link Compression} codecs, {@link Lz4Block} included, and of tables written with them
+ */
+class CompressionTest {
+    private static final Random RANDOM = new Random(7);
+
+    @Test
+    void empty() {
+        for (final Compression codec : new Compression[]{Compression.LZ, Compression.DEFLATE}) {
+            assertArrayEquals(new byte[0], roundTrip(codec, new byte[0]));
+        }
+    }
+
+    @Test
+    void incompressible() {
+        final byte[] input = random(64 * 1024);
+        for (final Compression codec : new Compression[]{Compression.LZ, Compression.DEFLATE}) {
+            final byte[] compressed = new byte[Compression.maxCompressedLength(input.length)];
+            final int size = codec.compress(input, input.length, compressed);
+            assertTrue(size >= 0 && size <= compressed.length, codec + ": " + size);
+            assertArrayEquals(input, roundTrip(codec, input));
+        }
+        assertEquals(-1, Compression.NONE.compress(input, input.length, new byte[input.length]));
+    }
+
+    @Test
+    void shortInputs() {
+        // Inputs around the limits of the last literals and the last match
+        for (int length = 1; length < 32; length++) {
+            final byte[] runs = new byte[length];
+            Arrays.fill(runs, (byte) 'a');
+            final byte[] noise = random(length);
+            for (final Compression codec : new Compression[]{Compression.LZ, Compression.DEFLATE}) {
+                assertArrayEquals(runs, roundTrip(codec, runs));
+                assertArrayEquals(noise, roundTrip(codec, noise));
+            }
+        }
+    }
+
+    @Test
+    void longMatch() {
+        // Repeats of a block longer than the 4-bit match length and the 255 byte continuations
+        final byte[] unit = random(1000);
+        final byte[] input = new byte[unit.length * 20];
+        for (int i = 0; i < 20; i++) {
+            System.arraycopy(unit, 0, input, i * unit.length, unit.length);
+        }
+        final byte[] compressed = new byte[Compression.maxCompressedLength(input.length)];
+        final int size = Compression.LZ.compress(input, input.length, compressed);
+        assertTrue(size < unit.length + 200, "Compressed size " + size);
+        assertArrayEquals(input, roundTrip(Compression.LZ, input));
+        assertArrayEquals(input, roundTrip(Compression.DEFLATE, input));
+    }
+
+    @Test
+    void overlappingCopy() {
+        // Offsets of 1 to 3 copy matches overlapping their own output
+        for (int period = 1; period <= 3; period++) {
+            final byte[] input = new byte[10_000];
+            for (int i = 0; i < input.length; i++) {
+                input[i] = (byte) (i % period * 37 + 1);
+            }
+            final byte[] compressed = new byte[Compression.maxCompressedLength(input.length)];
+            final int size = Compression.LZ.compress(input, input.length, compressed);
+            assertTrue(size < 100, "Compressed size " + size);
+            assertArrayEquals(input, roundTrip(Compression.LZ, input));
+        }
+    }
+
+    @Test
+    void offsets() {
+        final byte[] input = text(5_000).getBytes(StandardCharsets.UTF_8);
+        final byte[] src = new byte[input.length + 10];
+        System.arraycopy(input, 0, src, 3, input.length);
+        final byte[] compressed = new byte[Lz4Block.maxCompressedLength(input.length) + 5];
+        final int size = Lz4Block.compress(src, 3, input.length, compressed, 5);
+        final byte[] output = new byte[input.length + 7];
+        Lz4Block.decompress(compressed, 5, size, output, 7, input.length);
+        assertArrayEquals(input, Arrays.copyOfRange(output, 7, output.length));
+    }
+
+    @Test
+    void corrupted() {
+        final byte[] input = text(1_000).getBytes(StandardCharsets.UTF_8);
+        final byte[] compressed = new byte[Compression.maxCompressedLength(input.length)];
+        final int size = Compression.LZ.compress(input, input.length, compressed);
+        final byte[] truncated = Arrays.copyOf(compressed, size / 2);
+        assertThrows(
+                IllegalStateException.class,
+                () -> Compression.LZ.decompress(truncated, truncated.length, new byte[input.length]));
+        assertThrows(
+                IllegalStateException.class,
+                () -> Compression.LZ.decompress(compressed, size, new byte[input.length + 1]));
+        assertThrows(
+                IllegalStateException.class,
+                () -> Compression.DEFLATE.decompress(input, input.length, new byte[input.length]));
+    }
+
+    @Test
+    void mixedCodecs(@TempDir File data) throws IOException {
+        final TreeMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        int next = 0;
+        for (final Compression codec : new Compression[]{Compression.NONE, Compression.LZ, Compression.DEFLATE}) {
+            try (LSMDao dao = open(data, codec)) {
+                for (int i = 0; i < 2_000; i++, next++) {
+                    final ByteBuffer key = ByteBuffer.wrap(String.format("key%08d", next).getBytes());
+                    // Runs of compressible values and of random ones, so some blocks don't get smaller
+                    final ByteBuffer value = next / 100 % 2 == 0
+                            ? ByteBuffer.wrap(text(100).getBytes(StandardCharsets.UTF_8))
+                            : ByteBuffer.wrap(random(100));
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+        }
+
+        // Any settings read blocks of any codec
+        try (LSMDao dao = open(data, Compression.NONE)) {
+            assertEquals(3.0, dao.metrics().gauge(Metrics.Gauge.TABLES));
+            assertContains(dao, expected);
+            dao.compact();
+            assertEquals(1.0, dao.metrics().gauge(Metrics.Gauge.TABLES));
+            assertContains(dao, expected);
+        }
+    }
+
+    private static void assertContains(
+            @NotNull final LSMDao dao,
+            @NotNull final TreeMap<ByteBuffer, ByteBuffer> expected) throws IOException {
+        for (final ByteBuffer key : expected.keySet()) {
+            assertEquals(expected.get(key), dao.get(key));
+        }
+        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+        for (final ByteBuffer key : expected.keySet()) {
+            final Record record = records.next();
+            assertEquals(key, record.getKey());
+            assertEquals(expected.get(key), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    private static LSMDao open(
+            @NotNull final File data,
+            @NotNull final Compression codec) throws IOException {
+        return new LSMDao(data, Config.builder(16 * 1024 * 1024).compression(codec).build());
+    }
+
+    @NotNull
+    private static byte[] roundTrip(
+            @NotNull final Compression codec,
+            @NotNull final byte[] input) {
+        final byte[] compressed = new byte[Compression.maxCompressedLength(input.length)];
+        final int size = codec.compress(input, input.length, compressed);
+        assertTrue(size >= 0, codec + " didn't fit");
+        final byte[] output = new byte[input.length];
+        codec.decompress(compressed, size, output);
+        return output;
+    }
+
+    @NotNull
+    private static byte[] random(final int length) {
+        final byte[] result = new byte[length];
+        RANDOM.nextBytes(result);
+        return result;
+    }
+
+    @NotNull
+    private static String text(final int length) {
+        final String words = "the quick brown fox jumps over the lazy dog ";
+        final StringBuilder result = new StringBuilder(length);
+        while (result.length() < length) {
+            result.append(words, 0, 1 + RANDOM.nextInt(words.length() - 1));
+        }
+        return result.substring(0, length);
+    }
+}
@@ -0,0 +1,139 @@
+package ru.mail.polis.brainlux;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests of {@link LSMDao} skipping tables out of the range of the read by their first and last keys
+ */
+class FencesTest {
+    private static final Config CONFIG = Config.builder(16 * 1024 * 1024).forceTables(false).build();
+    // Disjoint tables with gaps between them: [0, 100), [200, 300), [400, 500) and [600, 700)
+    private static final int TABLES = 4;
+
+    @TempDir
+    File data;
+
+    @Test
+    void level0Range() throws IOException {
+        write(0);
+        try (LSMDao dao = new LSMDao(data, CONFIG)) {
+            // Inside a single table
+            assertRange(dao, 220, 250, 220, 250, 3);
+            // The end equals the first key of the next table, which is out of the range as the end is exclusive
+            assertRange(dao, 250, 400, 250, 300, 3);
+            // Between the tables
+            assertRange(dao, 100, 200, 0, 0, 4);
+            // The start equals the last key of a table
+            assertRange(dao, 299, 401, 299, 401, 2);
+            assertRange(dao, 0, 700, 0, 700, 0);
+        }
+    }
+
+    @Test
+    void level0Get() throws IOException {
+        write(0);
+        try (LSMDao dao = new LSMDao(data, CONFIG)) {
+            final Metrics metrics = dao.metrics();
+            final long skips = metrics.count(Metrics.Counter.FENCE_SKIPS);
+            final long probed = metrics.count(Metrics.Counter.TABLES_PROBED);
+            // Tables of level 0 are looked at from the newest one, so every other table is checked
+            assertEquals(value(50), dao.get(key(50)));
+            assertEquals(skips + TABLES - 1, metrics.count(Metrics.Counter.FENCE_SKIPS));
+            assertEquals(probed + 1, metrics.count(Metrics.Counter.TABLES_PROBED));
+        }
+    }
+
+    @Test
+    void deeperLevelRange() throws IOException {
+        write(1);
+        try (LSMDao dao = new LSMDao(data, CONFIG)) {
+            assertRange(dao, 220, 250, 220, 250, 3);
+            assertRange(dao, 250, 400, 250, 300, 3);
+            assertRange(dao, 100, 200, 0, 0, 4);
+            assertRange(dao, 299, 401, 299, 401, 2);
+            assertRange(dao, 0, 700, 0, 700, 0);
+        }
+    }
+
+    @Test
+    void deeperLevelGet() throws IOException {
+        write(1);
+        try (LSMDao dao = new LSMDao(data, CONFIG)) {
+            final Metrics metrics = dao.metrics();
+            final long skips = metrics.count(Metrics.Counter.FENCE_SKIPS);
+            final long probed = metrics.count(Metrics.Counter.TABLES_PROBED);
+            // Only the table the key may belong to is looked at
+            assertEquals(value(250), dao.get(key(250)));
+            assertEquals(skips, metrics.count(Metrics.Counter.FENCE_SKIPS));
+            assertEquals(probed + 1, metrics.count(Metrics.Counter.TABLES_PROBED));
+
+            // The key is past the last key of that table
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(150)));
+            assertEquals(skips + 1, metrics.count(Metrics.Counter.FENCE_SKIPS));
+            assertEquals(probed + 1, metrics.count(Metrics.Counter.TABLES_PROBED));
+        }
+    }
+
+    /**
+     * Reads the range and checks both its records and the number of tables skipped.
+     */
+    private static void assertRange(
+            @NotNull final LSMDao dao,
+            final int from,
+            final int to,
+            final int expectedFrom,
+            final int expectedTo,
+            final long skipped) throws IOException {
+        final Metrics metrics = dao.metrics();
+        final long skips = metrics.count(Metrics.Counter.FENCE_SKIPS);
+        final Iterator<Record> records = dao.range(key(from), key(to));
+        assertEquals(skips + skipped, metrics.count(Metrics.Counter.FENCE_SKIPS));
+        for (int i = expectedFrom; i < expectedTo; i++) {
+            if (i / 100 % 2 == 1) {
+                continue;
+            }
+            final Record record = records.next();
+            assertEquals(key(i), record.getKey());
+            assertEquals(value(i), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    private void write(final int level) throws IOException {
+        for (int table = 0; table < TABLES; table++) {
+            final Collection<Cell> cells = new ArrayList<>();
+            for (int i = table * 200; i < table * 200 + 100; i++) {
+                cells.add(new Cell(key(i), new Value(1, value(i))));
+            }
+            final int generation = table + 1;
+            final File file = new File(data, "SSTABLE" + generation + (level == 0 ? "" : "-L" + level) + ".db");
+            SSTable.write(cells.iterator(), file, CONFIG);
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%08d", i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @NotNull
+    private static ByteBuffer value(final int i) {
+        return ByteBuffer.wrap(String.format("value%d", i).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,252 @@
+package ru.mail.polis.brainlux;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link Keys}
+ */
+class KeysTest {
+    // Bytes at the edges of the signed and the unsigned orders
+    private static final byte[] ALPHABET = {0x00, 0x01, 0x7F, (byte) 0x80, (byte) 0x81, (byte) 0xFF};
+
+    @Test
+    void signedBytes() {
+        // The keys are ordered like ByteBuffer.compareTo does, so bytes from 0x80 go before bytes up to 0x7F
+        for (final int size : new int[]{1, 3, 8, 11, 16}) {
+            for (int at = 0; at < size; at++) {
+                final byte[] high = new byte[size];
+                final byte[] low = new byte[size];
+                high[at] = (byte) 0x80;
+                low[at] = 0x7F;
+                assertCompare(high, low);
+                assertTrue(compare(high, low) < 0);
+                assertTrue(compare(low, high) > 0);
+
+                high[at] = (byte) 0xFF;
+                low[at] = 0x00;
+                assertTrue(compare(high, low) < 0);
+                assertTrue(compare(low, high) > 0);
+            }
+        }
+    }
+
+    @Test
+    void shortKeys() {
+        assertEquals(0, compare(bytes(""), bytes("")));
+        assertTrue(compare(bytes(""), bytes("a")) < 0);
+        assertTrue(compare(bytes("a"), bytes("")) > 0);
+        assertTrue(compare(bytes("abc"), bytes("abd")) < 0);
+        assertEquals(0, compare(bytes("abc"), bytes("abc")));
+        // The shorter key is less even if the longer one goes on with the least byte
+        assertTrue(compare(bytes("abc"), new byte[]{'a', 'b', 'c', (byte) 0x80}) < 0);
+        assertTrue(compare(new byte[]{'a', 'b', 'c', (byte) 0x80}, bytes("abc")) > 0);
+    }
+
+    @Test
+    void keyPrefixOfAnother() {
+        for (final String key : new String[]{"abcdefg", "abcdefgh", "abcdefghi", "abcdefghabcdefgh"}) {
+            assertEquals(0, compare(bytes(key), bytes(key)));
+            assertTrue(compare(bytes(key), bytes(key + "a")) < 0);
+            assertTrue(compare(bytes(key + "a"), bytes(key)) > 0);
+            assertTrue(compare(bytes(key.substring(1)), bytes(key)) > 0);
+        }
+    }
+
+    @Test
+    void differAfterFirstLong() {
+        assertTrue(compare(bytes("abcdefgh1"), bytes("abcdefgh2")) < 0);
+        assertTrue(compare(bytes("abcdefghabcdefg1"), bytes("abcdefghabcdefg2")) < 0);
+        assertTrue(compare(bytes("abcdefghabcdefgh1"), bytes("abcdefghabcdefgh0")) > 0);
+        assertTrue(compare(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, (byte) 0x80}, new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 0}) < 0);
+    }
+
+    @Test
+    void positions() {
+        final byte[] stored = bytes("abcdefghij");
+        final byte[] key = bytes("abcdefghik");
+        for (int offset = 0; offset < 10; offset++) {
+            final ByteBuffer data = embed(stored, offset, (byte) 'z');
+            final ByteBuffer search = embed(key, offset + 3, (byte) 'a');
+            search.position(offset + 3);
+            search.limit(offset + 3 + key.length);
+            assertTrue(Keys.compare(data, offset, stored.length, search) < 0);
+            // Only the remaining bytes of the key matter
+            search.limit(offset + 3 + 9);
+            assertTrue(Keys.compare(data, offset, stored.length, search) > 0);
+            assertEquals(0, Keys.compare(data, offset, 9, search));
+            assertEquals(offset + 3, search.position());
+        }
+    }
+
+    @Test
+    void byteOrders() {
+        final byte[] a = {1, 2, 3, 4, 5, 6, 7, (byte) 0x80, 9};
+        final byte[] b = {1, 2, 3, 4, 5, 6, 7, 0x7F, 9};
+        for (final ByteOrder storedOrder : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            for (final ByteOrder keyOrder : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+                final ByteBuffer stored = ByteBuffer.wrap(a).order(storedOrder);
+                final ByteBuffer key = ByteBuffer.wrap(b).order(keyOrder);
+                assertTrue(Keys.compare(stored, 0, a.length, key) < 0);
+                assertEquals(0, Keys.compare(stored, 0, a.length, ByteBuffer.wrap(a).order(keyOrder)));
+            }
+        }
+    }
+
+    @Test
+    void randomKeys() {
+        final Random random = new Random(1);
+        final List<byte[]> keys = randomKeys(random);
+        for (final byte[] a : keys) {
+            for (final byte[] b : keys) {
+                assertCompare(a, b);
+            }
+        }
+    }
+
+    @Test
+    void prefixOfSignedBytes() {
+        assertEquals(0L, Keys.prefix(ByteBuffer.wrap(new byte[]{(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+                (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80})));
+        assertEquals(-1L, Keys.prefix(ByteBuffer.wrap(new byte[]{0x7F, 0x7F, 0x7F, 0x7F, 0x7F, 0x7F, 0x7F, 0x7F})));
+        assertEquals(0x8080808080808080L, Keys.prefix(ByteBuffer.wrap(new byte[8])));
+        for (final int size : new int[]{1, 3, 8, 11}) {
+            for (int at = 0; at < Math.min(size, Long.BYTES); at++) {
+                final byte[] high = new byte[size];
+                final byte[] low = new byte[size];
+                high[at] = (byte) 0x80;
+                low[at] = 0x7F;
+                assertTrue(Long.compareUnsigned(prefix(high), prefix(low)) < 0);
+                high[at] = (byte) 0xFF;
+                low[at] = 0x00;
+                assertTrue(Long.compareUnsigned(prefix(high), prefix(low)) < 0);
+            }
+        }
+    }
+
+    @Test
+    void prefixOfShortKeys() {
+        assertEquals(0L, prefix(bytes("")));
+        assertEquals(0xE1E2E30000000000L, prefix(bytes("abc")));
+        assertTrue(Long.compareUnsigned(prefix(bytes("abc")), prefix(bytes("abd"))) < 0);
+        assertTrue(Long.compareUnsigned(prefix(bytes("ab")), prefix(bytes("abc"))) < 0);
+        assertTrue(Long.compareUnsigned(prefix(bytes("abcdefg")), prefix(bytes("abcdefgh"))) < 0);
+        // Padding is the least byte, so a key going on with it has the same prefix and is compared as a whole
+        assertEquals(prefix(bytes("abc")), prefix(new byte[]{'a', 'b', 'c', (byte) 0x80}));
+    }
+
+    @Test
+    void prefixOfLongKeys() {
+        final long prefix = prefix(bytes("abcdefgh"));
+        assertEquals(0xE1E2E3E4E5E6E7E8L, prefix);
+        assertEquals(prefix, prefix(bytes("abcdefgh1")));
+        assertEquals(prefix, prefix(bytes("abcdefgh2")));
+        assertEquals(prefix, prefix(bytes("abcdefghabcdefgh")));
+        assertTrue(Long.compareUnsigned(prefix, prefix(bytes("abcdefgi"))) < 0);
+    }
+
+    @Test
+    void prefixAtPositions() {
+        for (final String key : new String[]{"", "abc", "abcdefg", "abcdefgh", "abcdefghij"}) {
+            final long expected = prefix(bytes(key));
+            for (int offset = 0; offset < 10; offset++) {
+                final ByteBuffer data = embed(bytes(key), offset, (byte) 0x7F);
+                assertEquals(expected, Keys.prefix(data, offset, key.length()));
+                assertEquals(expected, Keys.prefix(data.order(ByteOrder.LITTLE_ENDIAN), offset, key.length()));
+
+                // Only the remaining bytes of the key matter
+                data.position(offset);
+                data.limit(offset + key.length());
+                assertEquals(expected, Keys.prefix(data));
+                assertEquals(expected, Keys.prefix(data.order(ByteOrder.BIG_ENDIAN)));
+                assertEquals(offset, data.position());
+            }
+        }
+    }
+
+    @Test
+    void prefixOfRandomKeys() {
+        final Random random = new Random(2);
+        final List<byte[]> keys = randomKeys(random);
+        for (final byte[] a : keys) {
+            for (final byte[] b : keys) {
+                final int byPrefix = Long.compareUnsigned(prefix(a), prefix(b));
+                final int expected = ByteBuffer.wrap(a).compareTo(ByteBuffer.wrap(b));
+                // Different prefixes are ordered like the keys, equal prefixes say nothing
+                if (byPrefix != 0) {
+                    assertEquals(Integer.signum(expected), Integer.signum(byPrefix));
+                } else if (a.length >= Long.BYTES && b.length >= Long.BYTES) {
+                    assertEquals(ByteBuffer.wrap(a, 0, Long.BYTES), ByteBuffer.wrap(b, 0, Long.BYTES));
+                }
+            }
+        }
+    }
+
+    private static long prefix(@NotNull final byte[] key) {
+        final ByteBuffer search = embed(key, 5, (byte) 0x7F);
+        search.position(5);
+        search.limit(5 + key.length);
+        return Keys.prefix(search);
+    }
+
+    private static void assertCompare(
+            @NotNull final byte[] stored,
+            @NotNull final byte[] key) {
+        final int expected = Integer.signum(ByteBuffer.wrap(stored).compareTo(ByteBuffer.wrap(key)));
+        assertEquals(expected, Integer.signum(compare(stored, key)));
+    }
+
+    /**
+     * Compares the keys lying at non-zero offsets of larger buffers.
+     */
+    private static int compare(
+            @NotNull final byte[] stored,
+            @NotNull final byte[] key) {
+        final ByteBuffer search = embed(key, 5, (byte) 0);
+        search.position(5);
+        search.limit(5 + key.length);
+        return Keys.compare(embed(stored, 3, (byte) 0xFF), 3, stored.length, search);
+    }
+
+    @NotNull
+    private static ByteBuffer embed(
+            @NotNull final byte[] key,
+            final int offset,
+            final byte filler) {
+        final byte[] data = new byte[offset + key.length + 8];
+        Arrays.fill(data, filler);
+        System.arraycopy(key, 0, data, offset, key.length);
+        return ByteBuffer.wrap(data);
+    }
+
+    @NotNull
+    private static List<byte[]> randomKeys(@NotNull final Random random) {
+        final List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            final byte[] key = new byte[random.nextInt(20)];
+            // Keys mostly share their first bytes so that they differ past the first long as well
+            final int shared = random.nextInt(key.length + 1);
+            for (int j = 0; j < key.length; j++) {
+                key[j] = j < shared ? (byte) 'k' : ALPHABET[random.nextInt(ALPHABET.length)];
+            }
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    @NotNull
+    private static byte[] bytes(@NotNull final String key) {
+        return key.getBytes(StandardCharsets.US_ASCII);
+    }
+}
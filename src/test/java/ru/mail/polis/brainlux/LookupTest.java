@@ -0,0 +1,73 @@
+package ru.mail.polis.brainlux;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests of the newest-first point lookup of {@link LSMDao}.
+ */
+class LookupTest {
+    private static final long FLUSH_THRESHOLD = 1024 * 1024;
+
+    @Test
+    void tombstoneInNewerTable(@TempDir File data) throws IOException {
+        final ByteBuffer key = bytes("key");
+        try (LSMDao dao = new LSMDao(data, FLUSH_THRESHOLD)) {
+            dao.upsert(key, bytes("value"));
+        }
+        try (LSMDao dao = new LSMDao(data, FLUSH_THRESHOLD)) {
+            dao.remove(key);
+        }
+
+        try (LSMDao dao = new LSMDao(data, FLUSH_THRESHOLD)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            // The lookup stops at the tombstone instead of going on to the older value
+            assertEquals(1, dao.metrics().count(Metrics.Counter.TABLES_PROBED));
+            assertFalse(dao.iterator(key).hasNext());
+        }
+    }
+
+    @Test
+    void valueInNewerTable(@TempDir File data) throws IOException {
+        final ByteBuffer key = bytes("key");
+        try (LSMDao dao = new LSMDao(data, FLUSH_THRESHOLD)) {
+            dao.upsert(key, bytes("old"));
+        }
+        try (LSMDao dao = new LSMDao(data, FLUSH_THRESHOLD)) {
+            dao.upsert(key, bytes("new"));
+        }
+
+        try (LSMDao dao = new LSMDao(data, FLUSH_THRESHOLD)) {
+            assertEquals(bytes("new"), dao.get(key));
+            assertEquals(1, dao.metrics().count(Metrics.Counter.TABLES_PROBED));
+        }
+    }
+
+    @Test
+    void tombstoneInMemTable(@TempDir File data) throws IOException {
+        final ByteBuffer key = bytes("key");
+        try (LSMDao dao = new LSMDao(data, FLUSH_THRESHOLD)) {
+            dao.upsert(key, bytes("value"));
+        }
+
+        try (LSMDao dao = new LSMDao(data, FLUSH_THRESHOLD)) {
+            dao.remove(key);
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            assertEquals(0, dao.metrics().count(Metrics.Counter.TABLES_PROBED));
+        }
+    }
+
+    private static ByteBuffer bytes(final String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,133 @@
+package ru.mail.polis.brainlux;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests of {@link MergeIterator}
+ */
+class MergeIteratorTest {
+    @Test
+    void noSources() {
+        final Iterator<Cell> merged = new MergeIterator(Collections.emptyList(), false, null);
+        assertFalse(merged.hasNext());
+        assertThrows(NoSuchElementException.class, merged::next);
+    }
+
+    @Test
+    void emptySources() {
+        final List<Iterator<Cell>> sources = new ArrayList<>();
+        sources.add(Collections.emptyIterator());
+        sources.add(List.of(cell(1, 1L, false)).iterator());
+        sources.add(Collections.emptyIterator());
+        final Iterator<Cell> merged = new MergeIterator(sources, false, null);
+        assertEquals(key(1), merged.next().getKey());
+        assertFalse(merged.hasNext());
+    }
+
+    @Test
+    void newestWins() {
+        final Cell oldest = cell(1, 1L, false);
+        final Cell newest = cell(1, 3L, false);
+        final Cell middle = cell(1, 2L, false);
+        final Iterator<Cell> merged = new MergeIterator(
+                List.of(List.of(oldest).iterator(), List.of(newest).iterator(), List.of(middle).iterator()),
+                false,
+                null);
+        assertSame(newest, merged.next());
+        assertFalse(merged.hasNext());
+    }
+
+    @Test
+    void earlierSourceWinsTie() {
+        final Cell first = cell(1, 1L, false);
+        final Cell second = cell(1, 1L, false);
+        final Iterator<Cell> merged = new MergeIterator(
+                List.of(List.of(first).iterator(), List.of(second).iterator()),
+                false,
+                null);
+        assertSame(first, merged.next());
+        assertFalse(merged.hasNext());
+    }
+
+    @Test
+    void tombstones() {
+        final Metrics metrics = new Metrics();
+        final List<Iterator<Cell>> sources = List.of(
+                List.of(cell(1, 2L, true), cell(3, 1L, false)).iterator(),
+                List.of(cell(1, 1L, false), cell(2, 1L, true)).iterator());
+        final Iterator<Cell> alive = new MergeIterator(sources, true, metrics);
+        assertEquals(key(3), alive.next().getKey());
+        assertFalse(alive.hasNext());
+        assertEquals(2, metrics.count(Metrics.Counter.TOMBSTONES_SCANNED));
+
+        final Iterator<Cell> all = new MergeIterator(
+                List.of(
+                        List.of(cell(1, 2L, true), cell(3, 1L, false)).iterator(),
+                        List.of(cell(1, 1L, false), cell(2, 1L, true)).iterator()),
+                false,
+                null);
+        final Cell removed = all.next();
+        assertEquals(key(1), removed.getKey());
+        assertEquals(2L, removed.getValue().getTimeStamp());
+        assertEquals(key(2), all.next().getKey());
+        assertEquals(key(3), all.next().getKey());
+        assertFalse(all.hasNext());
+    }
+
+    @Test
+    void manySources() {
+        final Random random = new Random(42);
+        for (int round = 0; round < 50; round++) {
+            final int sourceCount = 1 + random.nextInt(40);
+            final List<Iterator<Cell>> sources = new ArrayList<>(sourceCount);
+            // The latest cell of every key, the earliest source of equal timestamps
+            final Map<ByteBuffer, Cell> latest = new TreeMap<>();
+            for (int source = 0; source < sourceCount; source++) {
+                // Some sources stay empty and the rest run out at different keys
+                final int size = random.nextInt(4) == 0 ? 0 : random.nextInt(200);
+                final TreeMap<ByteBuffer, Cell> cells = new TreeMap<>();
+                for (int i = 0; i < size; i++) {
+                    final Cell cell = cell(random.nextInt(500), 1L + random.nextInt(20), random.nextInt(5) == 0);
+                    cells.put(cell.getKey(), cell);
+                }
+                for (final Cell cell : cells.values()) {
+                    latest.merge(cell.getKey(), cell, (previous, next) ->
+                            next.getValue().getTimeStamp() > previous.getValue().getTimeStamp() ? next : previous);
+                }
+                sources.add(new ArrayList<>(cells.values()).iterator());
+            }
+
+            final Iterator<Cell> merged = new MergeIterator(sources, false, null);
+            for (final Cell expected : latest.values()) {
+                assertSame(expected, merged.next());
+            }
+            assertFalse(merged.hasNext());
+        }
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(0, i);
+    }
+
+    private static Cell cell(
+            final int key,
+            final long timestamp,
+            final boolean removed) {
+        return new Cell(key(key), new Value(timestamp, removed ? null : ByteBuffer.allocate(1)));
+    }
+}
@@ -0,0 +1,113 @@
+package ru.mail.polis.brainlux;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link Metrics} and {@link LatencyHistogram} as {@link LSMDao} updates them
+ */
+class MetricsTest {
+    private static final long FLUSH_THRESHOLD = 1024 * 1024;
+
+    @Test
+    void percentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0L, histogram.percentile(0.99));
+        for (long nanos = 1; nanos <= 1_000; nanos++) {
+            histogram.record(nanos * 1_000);
+        }
+        assertEquals(1_000, histogram.count());
+        assertEquals(500_500.0, histogram.mean());
+        // Buckets are at most a quarter wide
+        final long median = histogram.percentile(0.5);
+        assertTrue(median >= 500_000 && median <= 500_000 * 5 / 4, "Median " + median);
+        final long max = histogram.percentile(1.0);
+        assertTrue(max >= 1_000_000 && max <= 1_000_000 * 5 / 4, "Maximum " + max);
+        assertThrows(IllegalArgumentException.class, () -> histogram.percentile(1.5));
+    }
+
+    @Test
+    void rangeTimedUntilExhausted(@TempDir File data) throws IOException {
+        try (LSMDao dao = new LSMDao(data, FLUSH_THRESHOLD)) {
+            for (int i = 0; i < 10; i++) {
+                dao.upsert(key(i), key(i));
+            }
+            dao.remove(key(5));
+            final Iterator<Record> records = dao.iterator(key(0));
+            records.next();
+            assertEquals(0, dao.metrics().timer(Metrics.Timer.RANGE).count());
+
+            while (records.hasNext()) {
+                records.next();
+            }
+            assertFalse(records.hasNext());
+            assertEquals(1, dao.metrics().timer(Metrics.Timer.RANGE).count());
+            assertEquals(1, dao.metrics().count(Metrics.Counter.TOMBSTONES_SCANNED));
+            assertEquals(10, dao.metrics().timer(Metrics.Timer.UPSERT).count());
+            assertEquals(1, dao.metrics().timer(Metrics.Timer.REMOVE).count());
+        }
+    }
+
+    @Test
+    void flushesAndCompactions(@TempDir File data) throws IOException {
+        try (LSMDao dao = new LSMDao(data, FLUSH_THRESHOLD)) {
+            dao.upsert(key(0), key(0));
+            dao.compact();
+            dao.upsert(key(1), key(1));
+            dao.remove(key(0));
+            dao.compact();
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(0)));
+            assertEquals(key(1), dao.get(key(1)));
+
+            final Metrics metrics = dao.metrics();
+            assertEquals(2, metrics.count(Metrics.Counter.FLUSHES));
+            assertEquals(metrics.count(Metrics.Counter.FLUSHES), metrics.timer(Metrics.Timer.FLUSH).count());
+            assertTrue(metrics.count(Metrics.Counter.FLUSHED_BYTES) > 0);
+            assertEquals(metrics.count(Metrics.Counter.COMPACTIONS), metrics.timer(Metrics.Timer.COMPACT).count());
+            assertTrue(metrics.count(Metrics.Counter.COMPACTION_READ_BYTES) > 0);
+            assertEquals(metrics.gauge(Metrics.Gauge.DISK_BYTES),
+                    (double) metrics.count(Metrics.Counter.COMPACTION_WRITTEN_BYTES)
+                            - metrics.count(Metrics.Counter.COMPACTION_READ_BYTES)
+                            + metrics.count(Metrics.Counter.FLUSHED_BYTES));
+            assertEquals(2, metrics.timer(Metrics.Timer.GET).count());
+            assertEquals(0.0, metrics.gauge(Metrics.Gauge.MEMTABLE_BYTES));
+        }
+    }
+
+    @Test
+    void publishedToJmx(@TempDir File data) throws IOException, JMException {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(
+                "ru.mail.polis.brainlux:type=LSMDao,path=" + ObjectName.quote(data.getAbsolutePath()));
+        try (LSMDao dao = new LSMDao(data, Config.builder(FLUSH_THRESHOLD).jmx(true).build())) {
+            dao.upsert(key(0), key(0));
+            final Map<String, Number> snapshot = dao.metrics().snapshot();
+            assertEquals(1L, snapshot.get("UPSERT_COUNT"));
+            assertEquals(1L, server.getAttribute(name, "UPSERT_COUNT"));
+            assertTrue(server.getAttribute(name, "MEMTABLE_BYTES") instanceof Double);
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%05d", i).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,168 @@
+package ru.mail.polis.brainlux;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of seeks in {@link PrefixBlock}
+ */
+class PrefixBlockTest {
+    private static final int RESTART_INTERVAL = 4;
+
+    @Test
+    void seekAroundRestarts() {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int i = 0; i < 37; i++) {
+            keys.add(ByteBuffer.wrap(String.format("key%04d", i * 2).getBytes()));
+        }
+        assertSeeks(keys, block(keys));
+    }
+
+    @Test
+    void longSharedPrefixes() {
+        // Shared prefixes past 127 bytes take varints of two bytes
+        final byte[] prefix = new byte[300];
+        new Random(1).nextBytes(prefix);
+        final TreeSet<ByteBuffer> sorted = new TreeSet<>();
+        for (int i = 0; i < 50; i++) {
+            final ByteBuffer key = ByteBuffer.allocate(prefix.length + 2);
+            key.put(prefix, 0, 150 + i % 3 * 75).putShort((short) (i * 997)).flip();
+            sorted.add(key);
+        }
+        final List<ByteBuffer> keys = new ArrayList<>(sorted);
+        assertSeeks(keys, block(keys));
+    }
+
+    @Test
+    void signedBytes() {
+        // Bytes past 0x7F go before the smaller ones in the order of keys
+        final TreeSet<ByteBuffer> sorted = new TreeSet<>();
+        final Random random = new Random(2);
+        for (int i = 0; i < 200; i++) {
+            final byte[] key = new byte[1 + random.nextInt(12)];
+            random.nextBytes(key);
+            sorted.add(ByteBuffer.wrap(key));
+        }
+        final List<ByteBuffer> keys = new ArrayList<>(sorted);
+        assertSeeks(keys, block(keys));
+    }
+
+    @Test
+    void singleCell() {
+        final List<ByteBuffer> keys = List.of(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        assertSeeks(keys, block(keys));
+    }
+
+    /**
+     * Checks seeks to every key, to keys right after and before it, before the first key and after the last one.
+     */
+    private static void assertSeeks(
+            @NotNull final List<ByteBuffer> keys,
+            @NotNull final PrefixBlock block) {
+        assertEquals(keys.get(0), block.firstKey());
+        assertEquals(keys.get(keys.size() - 1), block.lastKey());
+        assertSeek(keys, block, ByteBuffer.allocate(0));
+        final byte[] last = new byte[400];
+        Arrays.fill(last, Byte.MAX_VALUE);
+        assertSeek(keys, block, ByteBuffer.wrap(last));
+
+        for (final ByteBuffer key : keys) {
+            assertSeek(keys, block, key);
+
+            // The least key greater than this one
+            final ByteBuffer after = ByteBuffer.allocate(key.remaining() + 1);
+            after.put(key.duplicate()).put(Byte.MIN_VALUE).flip();
+            assertSeek(keys, block, after);
+
+            final ByteBuffer shorter = key.duplicate();
+            shorter.limit(shorter.limit() - 1);
+            assertSeek(keys, block, shorter);
+
+            final ByteBuffer decremented = ByteBuffer.allocate(key.remaining()).put(key.duplicate());
+            decremented.put(key.remaining() - 1, (byte) (key.get(key.limit() - 1) - 1)).flip();
+            assertSeek(keys, block, decremented);
+        }
+    }
+
+    private static void assertSeek(
+            @NotNull final List<ByteBuffer> keys,
+            @NotNull final PrefixBlock block,
+            @NotNull final ByteBuffer key) {
+        final int index = Collections.binarySearch(keys, key);
+        if (index >= 0) {
+            assertEquals(value(index), block.get(key).getData());
+            assertIterates(keys, index, block.iterator(key));
+        } else {
+            assertNull(block.get(key));
+            assertIterates(keys, -index - 1, block.iterator(key));
+        }
+    }
+
+    private static void assertIterates(
+            @NotNull final List<ByteBuffer> keys,
+            final int from,
+            @NotNull final Iterator<Cell> cells) {
+        for (int i = from; i < keys.size(); i++) {
+            assertTrue(cells.hasNext());
+            final Cell cell = cells.next();
+            assertEquals(keys.get(i), cell.getKey());
+            assertEquals(value(i), cell.getValue().getData());
+        }
+        assertFalse(cells.hasNext());
+    }
+
+    @NotNull
+    private static ByteBuffer value(final int i) {
+        return ByteBuffer.wrap(("value" + i).getBytes());
+    }
+
+    /**
+     * Encodes the keys with their values as {@link SSTableWriter} does, a restart point every few cells.
+     */
+    @NotNull
+    private static PrefixBlock block(@NotNull final List<ByteBuffer> keys) {
+        final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        final List<Integer> restarts = new ArrayList<>();
+        ByteBuffer previous = ByteBuffer.allocate(0);
+        for (int i = 0; i < keys.size(); i++) {
+            final ByteBuffer key = keys.get(i);
+            int shared = 0;
+            if (i % RESTART_INTERVAL == 0) {
+                restarts.add(buffer.position());
+            } else {
+                while (shared < Math.min(key.remaining(), previous.remaining())
+                        && key.get(shared) == previous.get(shared)) {
+                    shared++;
+                }
+            }
+            PrefixBlock.putVarInt(buffer, shared);
+            PrefixBlock.putVarInt(buffer, key.remaining() - shared);
+            buffer.put(key.duplicate().position(shared));
+            final ByteBuffer value = value(i);
+            buffer.putLong(i + 1L);
+            buffer.putInt(value.remaining());
+            buffer.put(value);
+            previous = key;
+        }
+        for (final int restart : restarts) {
+            buffer.putInt(restart);
+        }
+        buffer.putInt(restarts.size());
+        buffer.flip();
+        return new PrefixBlock(buffer.slice());
+    }
+}
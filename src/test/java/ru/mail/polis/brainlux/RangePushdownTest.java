@@ -0,0 +1,164 @@
+package ru.mail.polis.brainlux;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link SSTable} stopping range scans at the exclusive end inside the last block of the range
+ */
+class RangePushdownTest {
+    private static final int KEYS = 600;
+    private static final Config CONFIG = Config.builder(16 * 1024 * 1024)
+            .blockSize(256)
+            .forceTables(false)
+            .build();
+
+    @TempDir
+    File data;
+    private File file;
+    // Index keys of the blocks, every one is not less than the last key of its block
+    private List<ByteBuffer> separators;
+
+    @BeforeEach
+    void write() throws IOException {
+        final Collection<Cell> cells = new ArrayList<>();
+        for (int i = 0; i < KEYS; i++) {
+            cells.add(new Cell(key(i), new Value(1, value(i))));
+        }
+        file = new File(data, "SSTABLE1.db");
+        SSTable.write(cells.iterator(), file, CONFIG);
+        separators = new SSTable(file, 1, 0, null).sampleKeys(key(0), null, Integer.MAX_VALUE);
+        assertTrue(separators.size() > 20);
+    }
+
+    @Test
+    void endEqualsKey() throws IOException {
+        for (int to = 0; to <= KEYS; to++) {
+            final Metrics metrics = new Metrics();
+            final Iterator<Cell> cells = table(metrics).iterator(key(0), key(to));
+            assertCells(cells, 0, to);
+            assertEquals(to == 0 ? 0 : blockOf(key(to)) + 1, metrics.count(Metrics.Counter.BLOCK_CACHE_MISSES));
+        }
+    }
+
+    @Test
+    void endInsideBlock() throws IOException {
+        int inside = 0;
+        for (int last = 0; last < KEYS - 1; last++) {
+            final Metrics metrics = new Metrics();
+            final ByteBuffer to = after(last);
+            assertCells(table(metrics).iterator(key(0), to), 0, last + 1);
+            final int block = blockOf(key(last));
+            if (block == blockOf(key(last + 1))) {
+                // Nothing past the block of the last key is read
+                inside++;
+                assertEquals(block + 1, metrics.count(Metrics.Counter.BLOCK_CACHE_MISSES));
+            } else {
+                // The end is past the last key of the block so the next block may hold keys before it
+                assertTrue(metrics.count(Metrics.Counter.BLOCK_CACHE_MISSES) <= block + 2);
+            }
+        }
+        assertTrue(inside > KEYS / 2);
+    }
+
+    @Test
+    void rangeInsideBlocks() throws IOException {
+        final SSTable table = table(new Metrics());
+        for (int from = 0; from < KEYS; from += 7) {
+            for (int to = from; to <= KEYS; to += 13) {
+                assertCells(table.iterator(key(from), key(to)), from, to);
+                assertCells(table.iterator(after(from), after(to)), from + 1, Math.min(to + 1, KEYS));
+            }
+        }
+        // Before the first key and past the last one
+        assertFalse(table.iterator(ByteBuffer.allocate(0), key(0)).hasNext());
+        assertFalse(table.iterator(key(KEYS), null).hasNext());
+        assertCells(table.iterator(ByteBuffer.allocate(0), key(KEYS)), 0, KEYS);
+    }
+
+    @Test
+    void daoRange() throws IOException {
+        try (LSMDao dao = new LSMDao(data, CONFIG)) {
+            for (int from = 0; from < KEYS; from += 37) {
+                for (int to = from; to <= KEYS; to += 41) {
+                    assertRecords(dao.range(key(from), key(to)), from, to);
+                    assertRecords(dao.range(key(from), after(to)), from, Math.min(to + 1, KEYS));
+                }
+            }
+        }
+    }
+
+    @NotNull
+    private SSTable table(@NotNull final Metrics metrics) throws IOException {
+        return new SSTable(file, 1, 0, new BlockCache(1024 * 1024, metrics));
+    }
+
+    /**
+     * Returns index of the first block which may hold the key.
+     */
+    private int blockOf(@NotNull final ByteBuffer key) {
+        int block = 0;
+        while (block < separators.size() - 1 && separators.get(block).compareTo(key) < 0) {
+            block++;
+        }
+        return block;
+    }
+
+    private static void assertCells(
+            @NotNull final Iterator<Cell> cells,
+            final int from,
+            final int to) {
+        for (int i = from; i < to; i++) {
+            final Cell cell = cells.next();
+            assertEquals(key(i), cell.getKey());
+            assertEquals(value(i), cell.getValue().getData());
+        }
+        assertFalse(cells.hasNext());
+    }
+
+    private static void assertRecords(
+            @NotNull final Iterator<Record> records,
+            final int from,
+            final int to) {
+        for (int i = from; i < to; i++) {
+            final Record record = records.next();
+            assertEquals(key(i), record.getKey());
+            assertEquals(value(i), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    /**
+     * Returns a key between the given one and the next one.
+     */
+    @NotNull
+    private static ByteBuffer after(final int i) {
+        return ByteBuffer.wrap(String.format("key%08d5", i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @NotNull
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%08d", i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @NotNull
+    private static ByteBuffer value(final int i) {
+        return ByteBuffer.wrap(String.format("value%d", i).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,153 @@
+package ru.mail.polis.brainlux;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link RowCache} and its invalidation by writes to {@link LSMDao}
+ */
+class RowCacheTest {
+    private static final long FLUSH_THRESHOLD = 1024 * 1024;
+    private static final long CACHE_SIZE = 1024 * 1024;
+
+    @Test
+    void absentInvalidatedByUpsert(@TempDir File data) throws IOException {
+        try (LSMDao dao = open(data)) {
+            final ByteBuffer key = bytes("key");
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            assertEquals(1, dao.metrics().count(Metrics.Counter.ROW_CACHE_HITS));
+
+            dao.upsert(key, bytes("value"));
+            assertEquals(bytes("value"), dao.get(key));
+        }
+    }
+
+    @Test
+    void valueInvalidatedByRemove(@TempDir File data) throws IOException {
+        try (LSMDao dao = open(data)) {
+            final ByteBuffer key = bytes("key");
+            dao.upsert(key, bytes("value"));
+            assertEquals(bytes("value"), dao.get(key));
+            assertEquals(bytes("value"), dao.get(key));
+            assertEquals(1, dao.metrics().count(Metrics.Counter.ROW_CACHE_HITS));
+
+            dao.remove(key);
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+        }
+    }
+
+    @Test
+    void valueInvalidatedByBatch(@TempDir File data) throws IOException {
+        try (LSMDao dao = open(data)) {
+            final ByteBuffer updated = bytes("updated");
+            final ByteBuffer removed = bytes("removed");
+            dao.upsert(updated, bytes("old"));
+            dao.upsert(removed, bytes("old"));
+            assertEquals(bytes("old"), dao.get(updated));
+            assertEquals(bytes("old"), dao.get(removed));
+
+            dao.write(new WriteBatch()
+                    .upsert(updated, bytes("new"))
+                    .remove(removed));
+            assertEquals(bytes("new"), dao.get(updated));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+    }
+
+    @Test
+    void valueSurvivesCompaction(@TempDir File data) throws IOException {
+        try (LSMDao dao = open(data)) {
+            final ByteBuffer kept = bytes("kept");
+            final ByteBuffer updated = bytes("updated");
+            final ByteBuffer removed = bytes("removed");
+            dao.upsert(kept, bytes("value"));
+            dao.upsert(updated, bytes("old"));
+            dao.upsert(removed, bytes("old"));
+            dao.compact();
+            assertEquals(bytes("value"), dao.get(kept));
+            assertEquals(bytes("old"), dao.get(updated));
+            assertEquals(bytes("old"), dao.get(removed));
+
+            dao.upsert(updated, bytes("new"));
+            dao.remove(removed);
+            dao.compact();
+            final long hits = dao.metrics().count(Metrics.Counter.ROW_CACHE_HITS);
+            // Cached values are copies, so they outlive the compacted tables
+            assertEquals(bytes("value"), dao.get(kept));
+            assertEquals(hits + 1, dao.metrics().count(Metrics.Counter.ROW_CACHE_HITS));
+            assertEquals(bytes("new"), dao.get(updated));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+    }
+
+    @Test
+    void littleEndianLookupCached(@TempDir File data) throws IOException {
+        final ByteBuffer key = bytes("key of the table");
+        try (LSMDao dao = open(data)) {
+            dao.upsert(key, bytes("value"));
+        }
+
+        try (LSMDao dao = open(data)) {
+            assertEquals(bytes("value"), dao.get(key.duplicate().order(ByteOrder.LITTLE_ENDIAN)));
+            assertEquals(bytes("value"), dao.get(key));
+            assertEquals(1, dao.metrics().count(Metrics.Counter.ROW_CACHE_HITS));
+        }
+    }
+
+    @Test
+    void admission() {
+        // Every stripe fits a single entry
+        final Metrics metrics = new Metrics();
+        final RowCache cache = new RowCache(64 * 200, metrics);
+        final ByteBuffer hot = bytes("hot");
+        for (int i = 0; i < 10; i++) {
+            assertNull(cache.get(hot));
+        }
+        cache.put(hot, Value.of(bytes("hot value")), cache.version(hot));
+        assertNotNull(cache.get(hot));
+
+        // Keys read once don't push out the key read often
+        for (int i = 0; i < 1_000; i++) {
+            final ByteBuffer cold = bytes("cold" + i);
+            final long version = cache.version(cold);
+            assertNull(cache.get(cold));
+            cache.put(cold, Value.of(bytes("cold value")), version);
+        }
+        assertEquals(bytes("hot value"), cache.get(hot).getData());
+        assertTrue(metrics.count(Metrics.Counter.ROW_CACHE_REJECTIONS) > 0);
+        assertTrue(cache.sizeInBytes() <= 64 * 200);
+    }
+
+    @Test
+    void staleLookupDropped() {
+        final RowCache cache = new RowCache(CACHE_SIZE, new Metrics());
+        final ByteBuffer key = bytes("key");
+        final long version = cache.version(key);
+        // Written while the lookup was in progress
+        cache.invalidate(key);
+        cache.put(key, Value.of(bytes("stale")), version);
+        assertNull(cache.get(key));
+    }
+
+    private static LSMDao open(final File data) throws IOException {
+        return new LSMDao(data, Config.builder(FLUSH_THRESHOLD).rowCacheSize(CACHE_SIZE).build());
+    }
+
+    private static ByteBuffer bytes(final String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
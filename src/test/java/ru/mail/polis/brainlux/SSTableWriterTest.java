@@ -0,0 +1,101 @@
+package ru.mail.polis.brainlux;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests of {@link SSTableWriter} and of the tables it writes
+ */
+class SSTableWriterTest {
+    private static final Config TABLES = Config.builder(0).build();
+
+    @Test
+    void valueLargerThanOutput(@TempDir File data) throws IOException {
+        // Goes to the file past the 1 MB output buffer
+        final ByteBuffer large = value(3 * 1024 * 1024 / 2, 1);
+        final List<Cell> cells = List.of(
+                new Cell(key(0), new Value(1, value(100, 2))),
+                new Cell(key(1), new Value(2, large)),
+                new Cell(key(2), new Value(3, value(100, 3))));
+        final File file = new File(data, "SSTABLE1.db");
+        SSTable.write(cells.iterator(), file, TABLES);
+
+        final SSTable table = new SSTable(file, 1, 0, null);
+        assertEquals(value(100, 2), table.get(key(0)).getData());
+        assertEquals(large, table.get(key(1)).getData());
+        assertEquals(value(100, 3), table.get(key(2)).getData());
+        final Iterator<Cell> iterator = table.iterator(key(1));
+        assertEquals(large, iterator.next().getValue().getData());
+        assertEquals(key(2), iterator.next().getKey());
+    }
+
+    @Test
+    void outputPooledAfterFailure(@TempDir File data) {
+        final int pooled = SSTableWriter.pooledOutputs();
+        final Iterator<Cell> failing = new Iterator<>() {
+            private int i;
+
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public Cell next() {
+                if (i == 1_000) {
+                    throw new UncheckedIOException(new IOException("Expected"));
+                }
+                return new Cell(key(i), new Value(++i, value(1024, i)));
+            }
+        };
+        assertThrows(UncheckedIOException.class,
+                () -> SSTable.write(failing, new File(data, "SSTABLE1.db"), TABLES));
+        // The buffer taken from the pool, or allocated for an empty one, is back there
+        assertEquals(Math.max(pooled, 1), SSTableWriter.pooledOutputs());
+    }
+
+    @Test
+    void tablesNotForced(@TempDir File data) throws IOException {
+        final Config config = Config.builder(64 * 1024).forceTables(false).build();
+        try (LSMDao dao = new LSMDao(data, config)) {
+            for (int i = 0; i < 1_000; i++) {
+                dao.upsert(key(i), value(100, i));
+            }
+        }
+
+        try (LSMDao dao = new LSMDao(data, config)) {
+            assertEquals(0.0, dao.metrics().gauge(Metrics.Gauge.FLUSH_QUEUE));
+            for (int i = 0; i < 1_000; i++) {
+                assertEquals(value(100, i), dao.get(key(i)));
+            }
+            dao.compact();
+            assertEquals(1.0, dao.metrics().gauge(Metrics.Gauge.TABLES));
+            assertEquals(value(100, 500), dao.get(key(500)));
+        }
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%05d", i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer value(
+            final int size,
+            final int seed) {
+        final byte[] result = new byte[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = (byte) (seed * 31 + i);
+        }
+        return ByteBuffer.wrap(result);
+    }
+}
@@ -0,0 +1,126 @@
+package ru.mail.polis.brainlux;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link LSMDao} splitting compactions into key ranges merged in parallel
+ */
+class SubcompactionTest {
+    private static final int KEYS = 3_000;
+    private static final int RANGES = 4;
+    private static final long RANGE_SIZE = 8 * 1024;
+
+    @Test
+    void full(@TempDir File data) throws IOException {
+        // Every range of a level 0 compaction is joined into a single table
+        final Metrics metrics = compareWithModel(data, new FullCompactionStrategy(4));
+        assertEquals(1.0, metrics.gauge(Metrics.Gauge.TABLES));
+    }
+
+    @Test
+    void sizeTiered(@TempDir File data) throws IOException {
+        final Metrics metrics = compareWithModel(data, new SizeTieredCompactionStrategy());
+        assertEquals(1.0, metrics.gauge(Metrics.Gauge.TABLES));
+    }
+
+    @Test
+    void leveled(@TempDir File data) throws IOException {
+        // Ranges merged into a deeper level keep tables of their own
+        final Metrics metrics = compareWithModel(data, new LeveledCompactionStrategy(4, 16 * 1024, 64 * 1024, 4));
+        assertTrue(metrics.gauge(Metrics.Gauge.TABLES) > 1.0);
+    }
+
+    /**
+     * Overwrites and removes a pool of keys, so that background compactions are split into ranges,
+     * compacts everything and compares the storage with a model before and after reopening.
+     *
+     * @return metrics of the storage after the major compaction
+     */
+    @NotNull
+    private static Metrics compareWithModel(
+            @NotNull final File data,
+            @NotNull final CompactionStrategy strategy) throws IOException {
+        final TreeMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final Random random = new Random(11);
+        final Metrics metrics;
+        try (LSMDao dao = open(data, strategy)) {
+            for (int round = 0; round < 2; round++) {
+                for (int i = 0; i < 10_000; i++) {
+                    final ByteBuffer key = key(random.nextInt(KEYS));
+                    if (random.nextInt(10) == 0) {
+                        dao.remove(key);
+                        expected.remove(key);
+                    } else {
+                        final byte[] value = new byte[32 + random.nextInt(64)];
+                        random.nextBytes(value);
+                        dao.upsert(key, ByteBuffer.wrap(value));
+                        expected.put(key, ByteBuffer.wrap(value));
+                    }
+                }
+                assertContains(dao, expected);
+            }
+            final long subcompactions = dao.metrics().count(Metrics.Counter.SUBCOMPACTIONS);
+            dao.compact();
+            metrics = dao.metrics();
+            assertTrue(metrics.count(Metrics.Counter.SUBCOMPACTIONS) > subcompactions, "Major compaction wasn't split");
+            assertContains(dao, expected);
+        }
+
+        try (LSMDao dao = open(data, strategy)) {
+            assertContains(dao, expected);
+        }
+        return metrics;
+    }
+
+    private static LSMDao open(
+            @NotNull final File data,
+            @NotNull final CompactionStrategy strategy) throws IOException {
+        return new LSMDao(data, Config.builder(16 * 1024)
+                .compactionStrategy(strategy)
+                .subcompactions(RANGES)
+                .subcompactionSize(RANGE_SIZE)
+                .build());
+    }
+
+    private static void assertContains(
+            @NotNull final LSMDao dao,
+            @NotNull final TreeMap<ByteBuffer, ByteBuffer> expected) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer key = key(i);
+            if (expected.containsKey(key)) {
+                assertEquals(expected.get(key), dao.get(key));
+            } else {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            }
+        }
+        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%05d", i).getBytes(StandardCharsets.UTF_8));
+    }
+}